@@ -0,0 +1,120 @@
+-- 历史记录查询的延迟基准：在一个独立的库中生成 1000 万条聊天记录，对比旧的 OR 查询和新的键集分页查询
+-- 用法：mysql -u root -p < bench_chat_log_history.sql
+-- 需要 MySQL 8.0.18 及以上（EXPLAIN ANALYZE 会实际执行查询并给出每一步的耗时）
+-- 生成数据需要几分钟，结束后可以 DROP DATABASE chatdb_bench
+
+CREATE DATABASE IF NOT EXISTS chatdb_bench;
+USE chatdb_bench;
+
+DROP TABLE IF EXISTS chat_log;
+CREATE TABLE chat_log (
+    id BIGINT AUTO_INCREMENT PRIMARY KEY,
+    send_time DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    sender VARCHAR(50) NOT NULL,
+    receiver VARCHAR(50),
+    room VARCHAR(50),
+    message TEXT NOT NULL,
+    log_level VARCHAR(50),
+    INDEX idx_chat_log_room (room, receiver, id),
+    INDEX idx_chat_log_receiver (receiver, id),
+    INDEX idx_chat_log_sender (sender, id)
+    );
+
+-- ChatBenchmark 的写入基准需要：服务器启动时从这里预留聊天记录 id
+DROP TABLE IF EXISTS id_reservation;
+CREATE TABLE id_reservation (
+    name VARCHAR(32) PRIMARY KEY,
+    high_water BIGINT NOT NULL
+    );
+
+-- 0 ~ 9999 的序号表，自连接一次得到 1 亿以内的行号
+DROP TABLE IF EXISTS seq;
+CREATE TABLE seq (n INT PRIMARY KEY);
+INSERT INTO seq (n)
+SELECT a.d + b.d * 10 + c.d * 100 + e.d * 1000
+FROM (SELECT 0 d UNION ALL SELECT 1 UNION ALL SELECT 2 UNION ALL SELECT 3 UNION ALL SELECT 4
+      UNION ALL SELECT 5 UNION ALL SELECT 6 UNION ALL SELECT 7 UNION ALL SELECT 8 UNION ALL SELECT 9) a,
+     (SELECT 0 d UNION ALL SELECT 1 UNION ALL SELECT 2 UNION ALL SELECT 3 UNION ALL SELECT 4
+      UNION ALL SELECT 5 UNION ALL SELECT 6 UNION ALL SELECT 7 UNION ALL SELECT 8 UNION ALL SELECT 9) b,
+     (SELECT 0 d UNION ALL SELECT 1 UNION ALL SELECT 2 UNION ALL SELECT 3 UNION ALL SELECT 4
+      UNION ALL SELECT 5 UNION ALL SELECT 6 UNION ALL SELECT 7 UNION ALL SELECT 8 UNION ALL SELECT 9) c,
+     (SELECT 0 d UNION ALL SELECT 1 UNION ALL SELECT 2 UNION ALL SELECT 3 UNION ALL SELECT 4
+      UNION ALL SELECT 5 UNION ALL SELECT 6 UNION ALL SELECT 7 UNION ALL SELECT 8 UNION ALL SELECT 9) e;
+
+-- 1000 万条记录，分 10 批插入：约 40% 大厅群聊、40% 分布在 100 个房间中的群聊、15% 私信、5% 系统消息，1000 个用户
+DROP PROCEDURE IF EXISTS fill_chat_log;
+DELIMITER //
+CREATE PROCEDURE fill_chat_log()
+BEGIN
+    DECLARE batch INT DEFAULT 0;
+    WHILE batch < 10 DO
+        INSERT INTO chat_log (send_time, sender, receiver, room, message, log_level)
+        SELECT NOW() - INTERVAL (10000000 - (batch * 1000000 + hi.n * 10000 + lo.n)) SECOND,
+               CONCAT('user', (hi.n * 10000 + lo.n) % 1000),
+               CASE WHEN lo.n % 20 < 16 THEN NULL
+                    WHEN lo.n % 20 < 19 THEN CONCAT('user', (hi.n * 7 + lo.n * 13) % 1000)
+                    ELSE NULL END,
+               CASE WHEN lo.n % 20 BETWEEN 8 AND 15 THEN CONCAT('room', hi.n) ELSE NULL END,
+               CONCAT('benchmark message ', batch * 1000000 + hi.n * 10000 + lo.n),
+               CASE WHEN lo.n % 20 = 19 THEN 'system' ELSE 'user' END
+        FROM seq hi JOIN seq lo
+        WHERE hi.n < 100;
+        SET batch = batch + 1;
+    END WHILE;
+END //
+DELIMITER ;
+
+CALL fill_chat_log();
+DROP PROCEDURE fill_chat_log;
+DROP TABLE seq;
+ANALYZE TABLE chat_log;
+
+SET @user = 'user42';
+SELECT MAX(id) INTO @newest FROM chat_log;
+SET @deep = @newest DIV 2; -- 翻到中间位置时的键集位置
+
+-- 1. 旧的查询：OR 条件无法使用单个索引，只能按主键倒序扫描并逐行过滤
+EXPLAIN ANALYZE
+SELECT send_time, sender, receiver, message FROM chat_log
+WHERE (receiver IS NULL OR sender = @user OR receiver = @user) AND log_level != 'system'
+ORDER BY id DESC LIMIT 50;
+
+-- 2. 旧的查询用 OFFSET 翻到中间位置：需要先扫描并丢弃前面所有的行
+EXPLAIN ANALYZE
+SELECT send_time, sender, receiver, message FROM chat_log
+WHERE (receiver IS NULL OR sender = @user OR receiver = @user) AND log_level != 'system'
+ORDER BY id DESC LIMIT 50 OFFSET 4000000;
+
+-- 3. ChatLogDAO.getChatHistoryBefore：最新一页
+-- 4. ChatLogDAO.getChatHistoryBefore：翻到中间位置，耗时应与第 3 条相当
+-- 两条查询与 ChatLogDAO.HISTORY_SQL 相同
+EXPLAIN ANALYZE
+(SELECT id, send_time, sender, receiver, message FROM chat_log
+ WHERE room IS NULL AND receiver IS NULL AND log_level != 'system' AND id < @newest + 1 ORDER BY id DESC LIMIT 50)
+UNION ALL
+(SELECT id, send_time, sender, receiver, message FROM chat_log
+ WHERE receiver = @user AND log_level != 'system' AND id < @newest + 1 ORDER BY id DESC LIMIT 50)
+UNION ALL
+(SELECT id, send_time, sender, receiver, message FROM chat_log
+ WHERE sender = @user AND receiver IS NOT NULL AND receiver != @user AND log_level != 'system' AND id < @newest + 1
+ ORDER BY id DESC LIMIT 50)
+ORDER BY id DESC LIMIT 50;
+
+EXPLAIN ANALYZE
+(SELECT id, send_time, sender, receiver, message FROM chat_log
+ WHERE room IS NULL AND receiver IS NULL AND log_level != 'system' AND id < @deep ORDER BY id DESC LIMIT 50)
+UNION ALL
+(SELECT id, send_time, sender, receiver, message FROM chat_log
+ WHERE receiver = @user AND log_level != 'system' AND id < @deep ORDER BY id DESC LIMIT 50)
+UNION ALL
+(SELECT id, send_time, sender, receiver, message FROM chat_log
+ WHERE sender = @user AND receiver IS NOT NULL AND receiver != @user AND log_level != 'system' AND id < @deep
+ ORDER BY id DESC LIMIT 50)
+ORDER BY id DESC LIMIT 50;
+
+-- 5. ChatLogDAO.getRoomHistoryBefore：某个房间翻到中间位置，与 ChatLogDAO.ROOM_HISTORY_SQL 相同，
+--    只扫描该房间的 (room, receiver, id) 索引范围，耗时与其他房间的消息量无关
+EXPLAIN ANALYZE
+SELECT id, send_time, sender, receiver, message FROM chat_log
+WHERE room = 'room42' AND receiver IS NULL AND log_level != 'system' AND id > 0 AND id < @deep
+ORDER BY id DESC LIMIT 50;
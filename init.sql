@@ -3,8 +3,26 @@ CREATE TABLE IF NOT EXISTS chat_log (
     send_time DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP,
     sender VARCHAR(50) NOT NULL,
     receiver VARCHAR(50),
+    room VARCHAR(50), -- 群聊所在的房间，NULL 表示大厅（私信也为 NULL）
     message TEXT NOT NULL,
-    log_level VARCHAR(50)
+    log_level VARCHAR(50),
+    -- 大厅和各个房间的群聊时间线（room = ? AND receiver IS NULL）按 id 倒序扫描
+    INDEX idx_chat_log_room (room, receiver, id),
+    -- “发给我的私信”按 id 倒序扫描
+    INDEX idx_chat_log_receiver (receiver, id),
+    -- “我发出的私信”按 id 倒序扫描
+    INDEX idx_chat_log_sender (sender, id)
+    );
+-- 已分配的聊天记录 id 的上限：服务器按段预留，重启后从上限之后继续分配（chat_log 中的 id 由服务器分配）
+CREATE TABLE IF NOT EXISTS id_reservation (
+    name VARCHAR(32) PRIMARY KEY,
+    high_water BIGINT NOT NULL
+    );
+-- 离线收件箱：接收者不在线时收到的私信（内容在 chat_log 中），登录时按接收者取出并删除
+CREATE TABLE IF NOT EXISTS offline_message (
+    receiver VARCHAR(50) NOT NULL,
+    message_id BIGINT NOT NULL,
+    PRIMARY KEY (receiver, message_id)
     );
 CREATE TABLE users (
                        uid INT AUTO_INCREMENT PRIMARY KEY,
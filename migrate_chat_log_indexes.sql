@@ -0,0 +1,7 @@
+-- 为已有的 chat_log 表补充历史记录查询所需的索引（新建的数据库直接使用 init.sql 即可）
+-- 历史记录按 (receiver, id) 和 (sender, id) 键集分页：WHERE ... AND id < ? ORDER BY id DESC LIMIT ?
+-- MySQL 8 支持在线添加索引，执行期间仍然可以写入聊天记录
+ALTER TABLE chat_log
+    ADD INDEX idx_chat_log_receiver (receiver, id),
+    ADD INDEX idx_chat_log_sender (sender, id),
+    ALGORITHM = INPLACE, LOCK = NONE;
@@ -0,0 +1,7 @@
+-- 为已有的 chat_log 表增加房间列（新建的数据库直接使用 init.sql 即可）
+-- 已有的群聊记录 room 为 NULL，即属于大厅；大厅和各个房间的历史记录按 (room, receiver, id) 键集分页
+-- MySQL 8 支持在线添加列和索引，执行期间仍然可以写入聊天记录
+ALTER TABLE chat_log
+    ADD COLUMN room VARCHAR(50) NULL AFTER receiver,
+    ADD INDEX idx_chat_log_room (room, receiver, id),
+    ALGORITHM = INPLACE, LOCK = NONE;
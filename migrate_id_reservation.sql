@@ -0,0 +1,7 @@
+-- 为已有的数据库增加聊天记录 id 的预留表（新建的数据库直接使用 init.sql 即可）
+-- 服务器启动时从 high_water 和 chat_log 中最大 id 中较大的一个继续分配，并按段把 high_water 向前推进，
+-- 已经分配给客户端、但没有写入 chat_log 的 id 重启后也不会再被分配
+CREATE TABLE IF NOT EXISTS id_reservation (
+    name VARCHAR(32) PRIMARY KEY,
+    high_water BIGINT NOT NULL
+    );
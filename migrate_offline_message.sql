@@ -0,0 +1,7 @@
+-- 为已有的数据库增加离线收件箱（新建的数据库直接使用 init.sql 即可）
+-- 只保存接收者和 chat_log 中的记录 id，主键 (receiver, message_id) 即按接收者取出、删除时使用的索引
+CREATE TABLE IF NOT EXISTS offline_message (
+    receiver VARCHAR(50) NOT NULL,
+    message_id BIGINT NOT NULL,
+    PRIMARY KEY (receiver, message_id)
+    );
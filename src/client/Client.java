@@ -1,6 +1,9 @@
 package client;
 
+import shared.FrameCodec; // 协议版本
+import shared.FramedChannel; // 分帧协议的消息通道
 import shared.Message; // 引入自定义的消息类
+import shared.MessageChannel;
 
 import javax.net.ssl.*; // 用于建立安全连接（SSL/TLS）
 import java.awt.*; // 图形界面基础包
@@ -12,7 +15,14 @@ import java.io.*; // 输入输出流
 import java.security.KeyStore; // 用于信任证书库
 import java.time.LocalDateTime; // 获取当前时间
 import java.time.format.DateTimeFormatter; // 时间格式化
+import java.util.List;
 import java.util.Map; // 映射类型数据结构
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicBoolean; // 线程安全布尔值
 
 import static client.SecurityUtil.hashPasswordWithSalt;
@@ -27,15 +37,53 @@ public class Client extends JFrame {
     // 用户列表的数据模型
     private final DefaultListModel<String> onlineUsersModel = new DefaultListModel<>();
 
-    // 输出对象流，用于发送消息给服务器
-    private ObjectOutputStream out;
-    // 输入对象流，用于接收服务器消息
-    private ObjectInputStream is;
+    // 与服务器之间的消息通道，用于收发消息（断线重连后由接收线程替换）
+    private volatile MessageChannel channel;
     // 标记是否已连接到服务器
     private final AtomicBoolean connected = new AtomicBoolean(false);
+    // 向上翻页的位置（服务器返回），null 表示从登录时收到的最早一条记录继续
+    private volatile String historyBefore;
+    // 已经没有更早的聊天记录
+    private volatile boolean historyExhausted;
+    // 服务器发来的会话恢复令牌，断线后用它重新连接而不需要再次输入密码；null 表示不能恢复
+    private volatile String resumeToken;
+    // 最后收到的聊天消息 id（按收到的顺序，不是最大的 id），恢复会话时服务器只补发在它之后发出的消息
+    private volatile Long lastMessageId;
+    // 最后一次确认的消息 id，以及之后收到、还没有确认的消息数（协议第 8 版）
+    private volatile Long ackedId;
+    private final AtomicInteger unacked = new AtomicInteger();
+    // 累积确认：每隔 ACK_INTERVAL_MS 毫秒，或者每收到 ACK_BATCH 条消息发送一次
+    private static final long ACK_INTERVAL_MS = 1000;
+    private static final int ACK_BATCH = 50;
+    // 定期发送确认的后台线程
+    private final transient ScheduledExecutorService acker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ack");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 当前连接的服务器地址，断线重连时使用
+    private volatile String serverHost;
+    private volatile int serverPort;
+    // 当前登录的用户名
+    private volatile String username;
+    // 已加入的房间，以及当前输入的消息发往的房间（null 表示大厅）
+    private final transient Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+    private volatile String currentRoom;
+    // 已发出加入请求、收到确认后要切换过去的房间
+    private volatile String pendingRoom;
+    // 每个房间向上翻页的位置，以及已经没有更早记录的房间
+    private final transient Map<String, String> roomHistoryBefore = new ConcurrentHashMap<>();
+    private final transient Set<String> roomHistoryExhausted = ConcurrentHashMap.newKeySet();
+    // 断线后自动恢复会话的最多尝试次数，以及第一次重试前等待的时间（毫秒，之后每次加倍）
+    private static final int RESUME_ATTEMPTS = 5;
+    private static final long RESUME_BACKOFF_MS = 1000;
 
     // SSL 相关字段
-    private static SSLContext sslContext = null; // SSL上下文
+    // SSL上下文：整个程序只创建一次，它的会话缓存保存着与服务器建立过的会话，重新连接时可以复用
+    private static SSLContext sslContext = null;
+    // 客户端缓存的会话数和会话有效期（秒）
+    private static final int SESSION_CACHE_SIZE = 16;
+    private static final int SESSION_TIMEOUT = 3600;
     private boolean isSecureConnection = false; // 是否使用加密连接
 
     // 构造方法：初始化图形界面和功能
@@ -47,9 +95,14 @@ public class Client extends JFrame {
                     .getInstance(TrustManagerFactory.getDefaultAlgorithm());
             tmf.init((KeyStore) null); // 使用默认信任库（cacerts）
 
+            // 启用会话票据（需要在创建 SSLContext 之前设置）
+            System.setProperty("jdk.tls.client.enableSessionTicketExtension", "true");
+
             // 初始化SSLContext
             sslContext = SSLContext.getInstance("TLS");
             sslContext.init(null, tmf.getTrustManagers(), null);
+            sslContext.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            sslContext.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
 
             // 设置默认的主机名校验器（基于证书中的SAN/CN）
             HttpsURLConnection.setDefaultHostnameVerifier(HttpsURLConnection.getDefaultHostnameVerifier());
@@ -58,6 +111,8 @@ public class Client extends JFrame {
             JOptionPane.showMessageDialog(this, "初始化SSL失败: " + e.getMessage(), "错误", JOptionPane.ERROR_MESSAGE);
         }
 
+        acker.scheduleWithFixedDelay(this::sendAck, ACK_INTERVAL_MS, ACK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
         // 设置窗口标题
         setTitle("聊天客户端");
         // 设置窗口大小
@@ -111,6 +166,12 @@ public class Client extends JFrame {
         menu.add(connectItem); // 添加菜单项
         menu.add(disconnectItem);
         menuBar.add(menu); // 添加菜单到菜单栏
+
+        JMenu historyMenu = new JMenu("记录"); // 聊天记录菜单
+        JMenuItem olderItem = new JMenuItem("加载更早的消息");
+        olderItem.addActionListener(e -> loadOlderHistory()); // 向上翻页
+        historyMenu.add(olderItem);
+        menuBar.add(historyMenu);
         setJMenuBar(menuBar); // 设置菜单栏到窗口
 
         // 发送按钮和回车键绑定发送消息方法
@@ -134,7 +195,7 @@ public class Client extends JFrame {
         setVisible(true); // 显示窗口
     }
 
-    private void showRegisterDialog(ObjectOutputStream out) {
+    private void showRegisterDialog() {
         JPanel panel = new JPanel(new GridLayout(3, 2));
 
         JTextField regUserField = new JTextField();
@@ -174,11 +235,10 @@ public class Client extends JFrame {
             Message registerMsg = Message.register(username, hashedPassword, salt);
 
             try {
-                this.out.writeObject(registerMsg);
-                this.out.flush();
+                channel.send(registerMsg);
 
                 // === 新增：接收服务器返回结果 ===
-                Object response = is.readObject(); // 假设服务器返回的是 String 类型
+                Object response = Message.textReply(channel.receive()); // 服务器返回的是 String 类型（繁忙回复换成提示文字）
                 if (response instanceof String result) {
 
                     if ("success".equals(result)) {
@@ -197,7 +257,7 @@ public class Client extends JFrame {
         }
     }
 
-    private void showLoginDialog(ObjectOutputStream out, ObjectInputStream in, String host, int port) {
+    private void showLoginDialog(String host, int port) {
         // 登录面板
         JPanel loginPanel = new JPanel(new GridLayout(2, 2));
 
@@ -229,11 +289,14 @@ public class Client extends JFrame {
             try {
                 // 发送请求获取 salt
                 Message getSaltMsg = Message.getSalt(username);
-                out.writeObject(getSaltMsg);
-                out.flush();
+                channel.send(getSaltMsg);
 
                 // 接收 salt 响应
-                Object response = in.readObject();
+                Object response = Message.textReply(channel.receive());
+                if (response instanceof String busy) {
+                    JOptionPane.showMessageDialog(loginDialogHolder[0], busy); // 例如服务器繁忙时的重试提示
+                    return;
+                }
                 if (!(response instanceof Message saltResponse)) {
                     JOptionPane.showMessageDialog(loginDialogHolder[0], "服务器响应错误");
                     return;
@@ -257,14 +320,25 @@ public class Client extends JFrame {
 
                 // 发送登录消息
                 Message loginMsg = Message.login(username, hashedPassword);
-                out.writeObject(loginMsg);
-                out.flush();
+                channel.send(loginMsg);
 
                 // 接收登录结果
-                Object loginResult = in.readObject();
+                Object loginResult = Message.textReply(channel.receive());
                 if (loginResult instanceof String result) {
                     if ("success".equals(result)) {
                         connected.set(true);
+                        historyBefore = null;
+                        historyExhausted = false;
+                        lastMessageId = null;
+                        ackedId = null;
+                        unacked.set(0);
+                        Client.this.username = username;
+                        joinedRooms.clear();
+                        currentRoom = null;
+                        roomHistoryBefore.clear();
+                        roomHistoryExhausted.clear();
+                        serverHost = host;
+                        serverPort = port;
                         setTitle("聊天客户端 - 已连接到 TLS://" + host + ":" + port);
                         loginDialogHolder[0].dispose(); // 关闭窗口
                         new Thread(new RecvThread()).start();
@@ -290,7 +364,7 @@ public class Client extends JFrame {
         // 注册按钮动作监听器
         registerButton.addActionListener(e -> {
             loginDialogHolder[0].dispose(); // 关闭登录窗口
-            showRegisterDialog(out); // 打开注册窗口
+            showRegisterDialog(); // 打开注册窗口
         });
 
         // 使用 JOptionPane 构建登录窗口
@@ -343,32 +417,10 @@ public class Client extends JFrame {
 
                 disconnect_beforeconnect(); // 如果之前有连接先断开
 
-                // 使用SSL工厂创建安全连接
-                SSLSocketFactory factory = sslContext.getSocketFactory();
-                SSLSocket sslSocket = (SSLSocket) factory.createSocket(host, port);
-
-                // 设置协议版本（TLS 1.2 和 TLS 1.3）
-                sslSocket.setEnabledProtocols(new String[]{"TLSv1.2", "TLSv1.3"});
-                // 设置加密套件（默认支持的）
-                sslSocket.setEnabledCipherSuites(sslSocket.getSupportedCipherSuites());
-
-                // 开始握手验证
-                try {
-                    sslSocket.startHandshake();
-                } catch (SSLHandshakeException ex) {
-                    throw new IOException("TLS 握手失败，请检查服务器证书是否有效：" + ex.getMessage(), ex);
-                }
-
-                // 将SSL套接字赋值给普通socket变量
-                isSecureConnection = true; // 标记为安全连接
-
-                // 初始化输入输出流
-                out = new ObjectOutputStream(sslSocket.getOutputStream());
-                out.flush();
-                is = new ObjectInputStream(sslSocket.getInputStream());
+                channel = openChannel(host, port);
 
                 // 在连接成功后调用登录窗口
-                showLoginDialog(out, is, host, port);
+                showLoginDialog(host, port);
 
             } catch (SSLException ex) {
                 JOptionPane.showMessageDialog(this, "TLS 握手失败：\n" + ex.getMessage(),
@@ -384,6 +436,79 @@ public class Client extends JFrame {
         }
     }
 
+    // 建立 TLS 连接并发送协议握手头，返回分帧协议的消息通道
+    private MessageChannel openChannel(String host, int port) throws IOException {
+        // 使用SSL工厂创建安全连接（按主机和端口查找可以复用的会话）
+        SSLSocketFactory factory = sslContext.getSocketFactory();
+        SSLSocket sslSocket = (SSLSocket) factory.createSocket(host, port);
+
+        // 设置协议版本（TLS 1.2 和 TLS 1.3）
+        sslSocket.setEnabledProtocols(new String[]{"TLSv1.2", "TLSv1.3"});
+        // 设置加密套件（默认支持的）
+        sslSocket.setEnabledCipherSuites(sslSocket.getSupportedCipherSuites());
+
+        // 开始握手验证
+        try {
+            sslSocket.startHandshake();
+        } catch (SSLHandshakeException ex) {
+            throw new IOException("TLS 握手失败，请检查服务器证书是否有效：" + ex.getMessage(), ex);
+        }
+
+        // 将SSL套接字赋值给普通socket变量
+        isSecureConnection = true; // 标记为安全连接
+
+        // 发送协议握手头，建立分帧协议的消息通道
+        return FramedChannel.connect(sslSocket.getInputStream(), sslSocket.getOutputStream());
+    }
+
+    /**
+     * 连接断开后用会话恢复令牌重新连接：跳过 getsalt / login，服务器只补发错过的消息。
+     * 连接失败时按指数退避重试，令牌被拒绝（例如已过期）时不再重试。
+     *
+     * @return 恢复成功返回 true
+     */
+    private boolean resumeSession() {
+        long backoff = RESUME_BACKOFF_MS;
+        for (int attempt = 1; attempt <= RESUME_ATTEMPTS && connected.get(); attempt++) {
+            String token = resumeToken;
+            if (token == null) {
+                return false;
+            }
+            try {
+                Thread.sleep(backoff);
+                backoff *= 2;
+                MessageChannel newChannel = openChannel(serverHost, serverPort);
+                newChannel.send(Message.resume(token, lastMessageId));
+                Object reply = newChannel.receive();
+                if ("success".equals(reply)) {
+                    channel = newChannel;
+                    // 服务器通常已经把房间交给了新连接，重新加入只会收到成员快照；旧会话已经失效时则会重新加入
+                    for (String room : joinedRooms) {
+                        newChannel.send(Message.joinRoom(room));
+                    }
+                    return true;
+                }
+                newChannel.close();
+                long retryAfter = Message.retryAfterMs(reply);
+                if (retryAfter >= 0) {
+                    // 服务器繁忙：令牌仍然有效，按服务器建议的时间再试
+                    backoff = Math.max(backoff, retryAfter);
+                    appendMessage(Message.textReply(reply) + "（第 " + attempt + " 次）");
+                    continue;
+                }
+                resumeToken = null;
+                appendMessage("无法恢复会话：" + reply);
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (Exception e) {
+                appendMessage("重新连接失败（第 " + attempt + " 次）：" + e.getMessage());
+            }
+        }
+        return false;
+    }
+
     // 发送消息的方法
     private void sendMessage() {
         String text = inputField.getText().trim(); // 获取输入内容
@@ -391,21 +516,25 @@ public class Client extends JFrame {
 
         try {
             Message msg;
-            if (text.startsWith("/msg ")) { // 如果是以 /msg 开头表示私信
+            if (text.startsWith("/join ") || text.equals("/leave") || text.startsWith("/leave ") || text.equals("/lobby")) {
+                roomCommand(text);
+            } else if (text.startsWith("/msg ")) { // 如果是以 /msg 开头表示私信
                 String[] parts = text.split(" ", 3); // 分成三部分
                 if (parts.length >= 3) {
                     String target = parts[1]; // 私信目标
                     String content = parts[2]; // 内容
 
                     msg = Message.privateMsg("我", target, content); // 创建私信消息
-                    out.writeObject(msg); // 发送给服务器
-                    out.flush();
+                    channel.send(msg); // 发送给服务器
                     appendMessage("[私信] 我 → " + target + ": " + content); // 显示到消息区
                 }
+            } else if (currentRoom != null) { // 当前房间内的消息
+                String room = currentRoom;
+                channel.send(Message.chat("我", text, room));
+                appendMessage("[#" + room + "] 我: " + text);
             } else { // 普通群发消息
                 msg = Message.chat("我", text); // 创建群发消息
-                out.writeObject(msg); // 发送
-                out.flush();
+                channel.send(msg); // 发送
                 appendMessage("我: " + text); // 显示到消息区
             }
         } catch (IOException ex) {
@@ -415,12 +544,87 @@ public class Client extends JFrame {
         inputField.setText(""); // 清空输入框
     }
 
+    // 房间命令：/join 房间名（加入并切换到该房间）、/leave [房间名]（离开房间，默认为当前房间）、/lobby（回到大厅）
+    private void roomCommand(String text) throws IOException {
+        if (text.equals("/lobby")) {
+            currentRoom = null;
+            appendMessage("已回到大厅");
+            return;
+        }
+        if (channel.version() < FrameCodec.VERSION_ROOMS) {
+            appendMessage("服务器不支持房间");
+            return;
+        }
+        String[] parts = text.split(" ", 2);
+        String room = parts.length > 1 ? parts[1].trim() : currentRoom;
+        if (room == null || room.isEmpty()) {
+            appendMessage("用法：/join 房间名、/leave [房间名]、/lobby");
+            return;
+        }
+        if (parts[0].equals("/join")) {
+            if (joinedRooms.contains(room)) {
+                currentRoom = room;
+                appendMessage("已切换到房间 #" + room);
+                return;
+            }
+            pendingRoom = room;
+            channel.send(Message.joinRoom(room));
+        } else {
+            channel.send(Message.leaveRoom(room));
+        }
+    }
+
+    // 请求一页更早的聊天记录
+    private void loadOlderHistory() {
+        if (!connected.get()) return;
+        String room = currentRoom;
+        if (room != null) { // 当前房间的更早记录
+            if (roomHistoryExhausted.contains(room)) {
+                appendMessage("房间 #" + room + " 没有更早的聊天记录了");
+                return;
+            }
+            try {
+                channel.send(Message.loadOlder(roomHistoryBefore.get(room), room));
+            } catch (IOException ex) {
+                JOptionPane.showMessageDialog(this, "加载聊天记录失败：" + ex.getMessage(), "发送错误", JOptionPane.ERROR_MESSAGE);
+            }
+            return;
+        }
+        if (historyExhausted) {
+            appendMessage("没有更早的聊天记录了");
+            return;
+        }
+        try {
+            channel.send(Message.loadOlder(historyBefore));
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "加载聊天记录失败：" + ex.getMessage(), "发送错误", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * 发送累积确认（协议第 8 版）：上次确认之后收到过新消息时，告诉服务器最后收到的消息 id，
+     * 服务器据此删除重传窗口中这条及之前的消息。发送失败时不处理，连接断开由接收线程负责。
+     */
+    private void sendAck() {
+        MessageChannel current = channel;
+        Long last = lastMessageId;
+        if (!connected.get() || current == null || current.version() < FrameCodec.VERSION_ACK
+                || last == null || last.equals(ackedId)) {
+            return;
+        }
+        try {
+            current.send(Message.ack(last));
+            ackedId = last;
+            unacked.set(0);
+        } catch (IOException ignored) {}
+    }
+
     // 断开连接的方法
     private void disconnect() {
         try {
-            if (out != null) out.close(); // 关闭输出流
-            if (is != null) is.close(); // 关闭输入流
-            connected.set(false); // 设置为未连接
+            connected.set(false); // 先设置为未连接，接收线程不会尝试恢复会话
+            resumeToken = null; // 主动断开后不再恢复会话
+            if (channel != null) channel.close(); // 关闭消息通道
             appendMessage("已断开连接"); // 显示提示信息
             setTitle("聊天客户端 - 未连接"); // 修改标题
         } catch (IOException ignored) {} // 忽略异常
@@ -429,9 +633,9 @@ public class Client extends JFrame {
     // 连接前尝试断开旧连接
     private void disconnect_beforeconnect() {
         try {
-            if (out != null) out.close();
-            if (is != null) is.close();
             connected.set(false);
+            resumeToken = null;
+            if (channel != null) channel.close();
             setTitle("聊天客户端 - 未连接");
         } catch (IOException ignored) {}
     }
@@ -446,21 +650,81 @@ public class Client extends JFrame {
         });
     }
 
+    // 一次性添加多条消息到消息区域，只触发一次界面更新
+    private void appendMessages(List<String> lines) {
+        String text = formatLines(lines);
+        SwingUtilities.invokeLater(() -> {
+            messageArea.append(text); // 添加消息
+            messageArea.setCaretPosition(messageArea.getDocument().getLength()); // 自动滚动到底部
+        });
+    }
+
+    // 把一页更早的聊天记录插入到消息区域顶部
+    private void prependMessages(List<String> lines) {
+        String text = formatLines(lines);
+        SwingUtilities.invokeLater(() -> {
+            messageArea.insert(text, 0); // 插入到最前面
+            messageArea.setCaretPosition(0); // 滚动到顶部
+        });
+    }
+
+    // 给房间的记录加上房间名前缀；大厅的记录不变
+    private static List<String> inRoom(List<String> lines, String room) {
+        if (room == null) {
+            return lines;
+        }
+        return lines.stream().map(line -> "[#" + room + "] " + line).toList();
+    }
+
+    // 取出消息中的一个字段。每种消息类型的字段类型是确定的（见 BinaryCodec 的布局表），未经检查的转换集中在这里
+    @SuppressWarnings("unchecked")
+    private static <T> T field(Message msg, String name) {
+        return (T) msg.data.get(name);
+    }
+
+    // 给每条记录加上当前时间，拼接成一段文本
+    private static String formatLines(List<String> lines) {
+        String time = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss")); // 当前时间
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append("[").append(time).append("] ").append(line).append("\n");
+        }
+        return text.toString();
+    }
+
     public boolean isSecureConnection() {
         return isSecureConnection;
     }
 
     // 接收服务器消息的线程类
     class RecvThread implements Runnable {
+        // 已应用到 onlineUsersModel 的在线用户列表版本号，-1 表示正在等待完整快照
+        private long presenceVersion = -1;
+
         @Override
         public void run() {
             try {
                 while (connected.get()) { // 循环读取消息直到断开连接
-                    Message msg = (Message) is.readObject(); // 读取消息
+                    Message msg; // 读取消息
+                    try {
+                        msg = (Message) channel.receive();
+                    } catch (Exception e) {
+                        // 连接意外断开：有会话恢复令牌时自动重新连接，否则结束
+                        if (!connected.get() || resumeToken == null) {
+                            throw e;
+                        }
+                        appendMessage("与服务器的连接已断开，正在恢复会话……");
+                        if (!resumeSession()) {
+                            throw e;
+                        }
+                        presenceVersion = -1; // 等待新连接上的完整快照
+                        appendMessage("会话已恢复");
+                        continue;
+                    }
 
                     switch (msg.type) {
                         case "user_list": // 用户列表更新
-                            Map<String, Object> users = (Map<String, Object>) msg.data.get("users");
+                            Map<String, Object> users = field(msg, "users");
                             final DefaultListModel<String> tempModel = new DefaultListModel<>();
                             for (String user : users.keySet()) {
                                 tempModel.addElement(user);
@@ -475,21 +739,119 @@ public class Client extends JFrame {
                             });
                             break;
 
+                        case "presence_snapshot": // 完整的在线用户列表（协议第 4 版）
+                            Map<String, Object> snapshot = field(msg, "users");
+                            presenceVersion = (Long) msg.data.get("version");
+                            List<String> names = List.copyOf(snapshot.keySet());
+                            SwingUtilities.invokeLater(() -> {
+                                onlineUsersModel.clear();
+                                onlineUsersModel.addAll(names);
+                            });
+                            break;
+
+                        case "presence_join": // 有用户上线
+                        case "presence_leave": // 有用户下线
+                        case "presence_batch": // 合并后的多个上线、下线
+                            applyPresence(msg);
+                            break;
+
                         case "history": // 历史记录
                             String log = (String) msg.data.get("log");
                             appendMessage(log); // 添加历史消息
                             break;
 
+                        case "history_batch": // 登录（或加入房间）时收到的整页历史记录，或恢复会话时补发的错过的消息
+                            String batchRoom = (String) msg.data.get("room");
+                            appendMessages(inRoom(field(msg, "lines"), batchRoom));
+                            noteHistoryId(msg.data.get("last_id"));
+                            if (msg.data.get("before") != null) {
+                                if (batchRoom == null) {
+                                    historyBefore = (String) msg.data.get("before");
+                                } else {
+                                    roomHistoryBefore.put(batchRoom, (String) msg.data.get("before"));
+                                }
+                            }
+                            break;
+
+                        case "offline_batch": // 离线期间收到、不在登录时那一页历史记录中的私信（协议第 7 版）
+                            List<String> offline = field(msg, "lines");
+                            appendMessage("—— 离线期间收到 " + offline.size() + " 条更早的私信 ——");
+                            appendMessages(offline);
+                            break;
+
+                        case "history_page": // 向上翻页得到的更早记录
+                            List<String> lines = field(msg, "lines");
+                            String pageRoom = (String) msg.data.get("room");
+                            String before = (String) msg.data.get("before");
+                            if (pageRoom == null) {
+                                historyBefore = before;
+                                historyExhausted = before == null;
+                            } else if (before == null) {
+                                roomHistoryBefore.remove(pageRoom);
+                                roomHistoryExhausted.add(pageRoom);
+                            } else {
+                                roomHistoryBefore.put(pageRoom, before);
+                            }
+                            prependMessages(inRoom(lines, pageRoom));
+                            if (before == null) {
+                                appendMessage(pageRoom == null ? "没有更早的聊天记录了" : "房间 #" + pageRoom + " 没有更早的聊天记录了");
+                            }
+                            break;
+
+                        case "room_snapshot": // 加入房间成功，收到房间成员列表（协议第 6 版）
+                            String joined = (String) msg.data.get("room");
+                            Map<String, Object> members = field(msg, "users");
+                            if (joined.equals(pendingRoom)) {
+                                currentRoom = joined;
+                                pendingRoom = null;
+                            }
+                            if (joinedRooms.add(joined)) {
+                                appendMessage("已加入房间 #" + joined + "（" + members.size() + " 人）：" + String.join("、", members.keySet())
+                                        + "，输入 /lobby 回到大厅");
+                            }
+                            break;
+
+                        case "room_join": // 有用户加入房间
+                            appendMessage("[#" + msg.data.get("room") + "] " + msg.data.get("username") + " 加入了房间");
+                            break;
+
+                        case "room_leave": // 有用户离开房间（离开者是自己时为确认）
+                            String leftRoom = (String) msg.data.get("room");
+                            if (msg.data.get("username").equals(username)) {
+                                joinedRooms.remove(leftRoom);
+                                roomHistoryBefore.remove(leftRoom);
+                                roomHistoryExhausted.remove(leftRoom);
+                                if (leftRoom.equals(currentRoom)) {
+                                    currentRoom = null;
+                                }
+                                appendMessage("已离开房间 #" + leftRoom);
+                            } else {
+                                appendMessage("[#" + leftRoom + "] " + msg.data.get("username") + " 离开了房间");
+                            }
+                            break;
+
                         case "private": // 收到私信
                             String from = (String) msg.data.get("sender");
                             String content = (String) msg.data.get("content");
                             appendMessage("【私信】" + from + ": " + content); // 显示私信
+                            noteMessageId(msg.data.get("id"));
                             break;
 
                         case "chat": // 收到群发消息
                             String sender = (String) msg.data.get("sender");
                             String text = (String) msg.data.get("content");
-                            appendMessage("[" + sender + "] " + text); // 显示消息
+                            String room = (String) msg.data.get("room");
+                            appendMessage((room == null ? "" : "[#" + room + "] ") + "[" + sender + "] " + text); // 显示消息
+                            noteMessageId(msg.data.get("id"));
+                            break;
+
+                        case "session_token": // 会话恢复令牌（协议第 5 版）
+                            resumeToken = (String) msg.data.get("token");
+                            break;
+
+                        case "session_replaced": // 账号在其他地方登录，服务器随后关闭这个连接（协议第 10 版）
+                            resumeToken = null; // 不再自动恢复会话，否则会把另一台设备上的会话抢回来
+                            appendMessage("[系统消息] " + msg.data.get("content"));
                             break;
 
                         case "system": // 系统消息
@@ -512,6 +874,62 @@ public class Client extends JFrame {
                 connected.set(false); // 最终标记为未连接
             }
         }
+
+        // 记下最后收到的聊天消息 id（旧版服务器的消息没有 id）。
+        // 集群中其他节点的消息 id 不一定按收到的顺序递增，服务器的重传窗口按发送顺序定位，所以记录最后收到的而不是最大的
+        private void noteMessageId(Object id) {
+            if (id instanceof Long value) {
+                lastMessageId = value;
+                if (unacked.incrementAndGet() >= ACK_BATCH) {
+                    sendAck();
+                }
+            }
+        }
+
+        // 历史记录中最新一条的 id：只在比已经收到的更新时记录（恢复会话时补发的记录可能晚于新消息到达）
+        private void noteHistoryId(Object id) {
+            if (id instanceof Long value && (lastMessageId == null || value > lastMessageId)) {
+                lastMessageId = value;
+            }
+        }
+
+        /**
+         * 把一条上线 / 下线（或合并后的多个上线、下线）的增量更新应用到在线用户列表。
+         * 版本号不连续（中间的更新丢失了）时请求完整快照，收到快照之前忽略后续的增量更新。
+         */
+        private void applyPresence(Message msg) throws IOException {
+            long version = (Long) msg.data.get("version");
+            if (presenceVersion < 0 || version <= presenceVersion) {
+                return; // 还没有收到快照，或者这条更新已经包含在快照中
+            }
+            if (version != presenceVersion + 1) {
+                presenceVersion = -1;
+                channel.send(Message.presenceSync());
+                return;
+            }
+            presenceVersion = version;
+
+            List<String> joined;
+            List<String> left;
+            if ("presence_batch".equals(msg.type)) {
+                joined = field(msg, "joined");
+                left = field(msg, "left");
+            } else {
+                String user = (String) msg.data.get("username");
+                joined = "presence_join".equals(msg.type) ? List.of(user) : List.of();
+                left = "presence_leave".equals(msg.type) ? List.of(user) : List.of();
+            }
+            SwingUtilities.invokeLater(() -> {
+                for (String user : left) {
+                    onlineUsersModel.removeElement(user);
+                }
+                for (String user : joined) {
+                    if (!onlineUsersModel.contains(user)) {
+                        onlineUsersModel.addElement(user);
+                    }
+                }
+            });
+        }
     }
 
     // 程序入口点
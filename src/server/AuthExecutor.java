@@ -0,0 +1,186 @@
+// AuthExecutor.java 位于 server 包中
+package server;
+
+import java.io.IOException;
+import java.io.Serial;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AuthExecutor 是登录阶段请求（getsalt / register / login / resume）专用的有界线程池。
+ *
+ * 登录请求需要查询数据库，而连接池只有少量连接。大量客户端同时登录时，
+ * 如果每个连接线程都直接访问数据库，成千上万的线程会排队等待连接池，登录延迟不断增长，连接泄露检测也会误报。
+ * 这里把并发度限制在连接池大小，并对排队进行准入控制：
+ * - 线程数与连接池大小相同，同时访问数据库的登录请求不会超过连接数
+ * - 等待队列有上限，队列已满的请求立即被拒绝
+ * - 在队列中等待超过 maxWait 的请求不再执行（客户端很可能已经超时），同样按拒绝处理
+ * 被拒绝的客户端收到“服务器繁忙，请在 N 秒后重试”（第 9 版起是带有 retry_after_ms 字段的 busy 消息），N 随队列长度增长并带有随机抖动，
+ * 避免所有客户端在同一时刻重试。
+ */
+public class AuthExecutor {
+
+    /**
+     * 登录阶段的一个请求。
+     */
+    public interface Task {
+        void run() throws IOException;
+    }
+
+    /**
+     * 请求被拒绝：队列已满，或者排队时间过长。
+     */
+    public static class BusyException extends Exception {
+        @Serial
+        private static final long serialVersionUID = 1L;
+        private final long retryAfterMs;
+
+        BusyException(long retryAfterMs) {
+            super("服务器繁忙");
+            this.retryAfterMs = retryAfterMs;
+        }
+
+        /**
+         * 建议客户端等待多久之后重试（毫秒，已包含随机抖动）。
+         */
+        public long retryAfterMs() {
+            return retryAfterMs;
+        }
+    }
+
+    // 建议的重试间隔上限（毫秒）
+    private static final long MAX_RETRY_AFTER_MS = 30000;
+
+    private final ThreadPoolExecutor pool;
+    private final int threads;
+    private final long maxWaitNanos;
+    private final long retryBaseMs;
+
+    // 统计
+    private final AtomicLong executed = new AtomicLong();  // 执行完成的请求数
+    private final AtomicLong rejected = new AtomicLong();  // 队列已满被拒绝的请求数
+    private final AtomicLong expired = new AtomicLong();   // 排队超时被拒绝的请求数
+    private final AtomicLong waitNanos = new AtomicLong(); // 执行的请求累计排队时间
+    private final AtomicLong maxWait = new AtomicLong();   // 最长排队时间（纳秒）
+    private final LatencyHistogram queueWait = new LatencyHistogram(); // 排队时间分布（包括排队超时的请求）
+
+    /**
+     * @param threads       线程数，通常等于数据库连接池大小
+     * @param queueCapacity 等待队列容量
+     * @param maxWaitMs     请求在队列中最多等待的时间（毫秒）
+     * @param retryBaseMs   建议重试间隔的基数（毫秒）
+     */
+    public AuthExecutor(int threads, int queueCapacity, long maxWaitMs, long retryBaseMs) {
+        this.threads = Math.max(1, threads);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, maxWaitMs));
+        this.retryBaseMs = Math.max(1, retryBaseMs);
+        AtomicInteger id = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(this.threads, this.threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), r -> {
+                    Thread t = new Thread(r, "auth-" + id.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 在登录线程池中执行请求，并等待它完成。
+     *
+     * @throws BusyException 队列已满或排队超时，请求没有执行
+     * @throws IOException   请求执行时抛出的异常
+     */
+    public void execute(Task task) throws BusyException, IOException {
+        long enqueuedAt = System.nanoTime();
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        try {
+            pool.execute(() -> {
+                long waited = System.nanoTime() - enqueuedAt;
+                queueWait.record(waited);
+                if (waited > maxWaitNanos) {
+                    expired.incrementAndGet();
+                    done.complete(false);
+                    return;
+                }
+                waitNanos.addAndGet(waited);
+                maxWait.accumulateAndGet(waited, Math::max);
+                try {
+                    task.run();
+                    done.complete(true);
+                } catch (Throwable e) {
+                    done.completeExceptionally(e);
+                } finally {
+                    executed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new BusyException(retryAfterMs());
+        }
+
+        try {
+            if (!done.get()) {
+                throw new BusyException(retryAfterMs());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("等待登录请求时被中断", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("处理登录请求失败", e.getCause());
+        }
+    }
+
+    /**
+     * 建议的重试间隔：基数按当前排队长度放大，再加上 [0, 间隔) 的随机抖动。
+     */
+    private long retryAfterMs() {
+        long base = retryBaseMs * (1 + pool.getQueue().size() / threads);
+        long hint = Math.min(MAX_RETRY_AFTER_MS, base);
+        return hint + ThreadLocalRandom.current().nextLong(hint);
+    }
+
+    /**
+     * 请求在队列中等待的时间分布。
+     */
+    public LatencyHistogram queueWait() {
+        return queueWait;
+    }
+
+    /**
+     * 当前排队的请求数。
+     */
+    public int queueDepth() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * 被拒绝的请求总数（队列已满 + 排队超时）。
+     */
+    public long rejectedCount() {
+        return rejected.get() + expired.get();
+    }
+
+    /**
+     * 关闭线程池，不再接受新的请求。
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * 返回执行和拒绝统计。
+     */
+    public String stats() {
+        long count = executed.get();
+        return "线程=" + threads
+                + " 排队=" + pool.getQueue().size()
+                + " 已执行=" + count
+                + " 队列满拒绝=" + rejected.get()
+                + " 排队超时=" + expired.get()
+                + String.format(" 平均排队=%.1fms 最长排队=%.1fms",
+                count == 0 ? 0.0 : waitNanos.get() / 1e6 / count, maxWait.get() / 1e6);
+    }
+}
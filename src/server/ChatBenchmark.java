@@ -0,0 +1,446 @@
+// ChatBenchmark.java 位于 server 包中
+package server;
+
+import client.SecurityUtil;
+import shared.Frame;
+import shared.FrameCodec;
+import shared.Message;
+import shared.MessageSink;
+import shared.ObjectStreamChannel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * ChatBenchmark 是服务器热点路径的微基准：消息编解码、广播扇出、密码哈希，以及（可选的）聊天记录读写。
+ *
+ * 测量方式与 JMH 的 AverageTime 模式相同：每个基准先预热若干轮让 JIT 编译完成，再测量若干轮，
+ * 每轮固定时长，输出每次操作的平均耗时（纳秒）和各轮之间的标准差，以及测量线程每次操作花费的 CPU 时间；
+ * 操作的返回值累加到 sink 中，防止 JIT 把没有用到结果的计算消除掉。
+ *
+ * 结果以“基准名=纳秒/次”（CPU 时间为“基准名.cpu=纳秒/次”）写入结果文件（默认 benchmark-results.properties，不纳入版本控制），
+ * 指定基线文件时逐项对比，变慢超过阈值的基准标记为回归，进程以退出码 1 结束，可以在合并前比较主分支与修改后的结果。
+ * 仓库中的 benchmark-baseline.properties 是参考机器上的结果，文件头记录了 JDK、CPU 核数和操作系统。
+ *
+ * 广播扇出的基准会触发 Server 的静态初始化。基准把系统属性 server.config 指向 --config 指定的文件
+ * （默认是仓库中的 bench.properties），不会读取服务器自己的 server.properties。
+ * 聊天记录的基准（--db）向 chat_log 表写入 2 万多条记录，只在基准配置的 db.url 是单独的测试库时运行：
+ * 库名必须含有 bench（例如 bench_chat_log_history.sql 生成的 chatdb_bench），并且不能与 server.properties 中的 db.url 相同。
+ *
+ * 用法：java -cp . server.ChatBenchmark [--out=结果文件] [--baseline=基线文件] [--threshold=百分比]
+ *      [--config=基准配置文件] [--db] [基准名前缀...]
+ */
+public class ChatBenchmark {
+
+    /**
+     * 一次被测操作，返回值会被累加，避免被优化掉。
+     */
+    private interface Op {
+        long run() throws Exception;
+    }
+
+    // 预热轮数、测量轮数、每轮时长（毫秒）
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURE_ROUNDS = 5;
+    private static final long ROUND_MS = 1000;
+    // 扇出基准的接收者数
+    private static final int[] RECIPIENTS = {10, 100, 1000, 10000};
+    // 扇出基准中每个接收者的重传窗口大小，与 session.window.size 的默认值相同
+    private static final int WINDOW_SIZE = 256;
+    // 带重传窗口的扇出基准最多测到多少个接收者（每个窗口都会存满，接收者太多时占用内存过大）
+    private static final int WINDOW_RECIPIENTS_MAX = 1000;
+    // 历史记录一页的条数，与 Server.Client.HISTORY_PAGE_SIZE 相同
+    private static final int PAGE_SIZE = 50;
+
+    private static long sink; // 所有操作的返回值累加到这里
+    private static final Map<String, double[]> results = new LinkedHashMap<>(); // 基准名 -> {平均耗时, 标准差, CPU 时间}
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        String outFile = "benchmark-results.properties";
+        String baselineFile = null;
+        String configFile = "bench.properties";
+        double threshold = 10;
+        boolean db = false;
+        List<String> filters = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--out=")) {
+                outFile = arg.substring("--out=".length());
+            } else if (arg.startsWith("--baseline=")) {
+                baselineFile = arg.substring("--baseline=".length());
+            } else if (arg.startsWith("--threshold=")) {
+                threshold = Double.parseDouble(arg.substring("--threshold=".length()));
+            } else if (arg.startsWith("--config=")) {
+                configFile = arg.substring("--config=".length());
+            } else if ("--db".equals(arg)) {
+                db = true;
+            } else {
+                filters.add(arg);
+            }
+        }
+
+        // 必须在第一次用到 Server 之前设置
+        System.setProperty("server.config", configFile);
+        if (db) {
+            String reason = unsafeDatabase(configFile);
+            if (reason != null) {
+                System.out.println("拒绝运行聊天记录基准：" + reason);
+                System.exit(2);
+            }
+        }
+
+        codecBenchmarks(filters);
+        fanOutBenchmarks(filters);
+        byte[] salt = SecurityUtil.generateSalt();
+        bench(filters, "hash.sha256", () -> SecurityUtil.hashPasswordWithSalt("password123", salt).length());
+        if (db) {
+            chatLogBenchmarks(filters);
+        }
+
+        save(outFile);
+        System.out.println("结果已写入 " + outFile);
+        if (baselineFile != null && compare(baselineFile, threshold) > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 消息编解码：一条带 id 的群聊消息、一页 50 条的历史记录，分别使用二进制格式和旧版 Java 序列化。
+     */
+    private static void codecBenchmarks(List<String> filters) throws IOException {
+        Message chat = Message.chat("张三", "大家好，今天下午三点在会议室开会，请准时参加。");
+        chat.data.put("id", 123456789L);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            lines.add("[2025-06-12 02:30:45] [user" + i + "]：第 " + i + " 条历史消息，内容长度和普通聊天差不多");
+        }
+        Message history = Message.historyBatch(lines, 123456789L, "123456700");
+
+        int[] versions = {FrameCodec.VERSION, FrameCodec.VERSION_SERIALIZED};
+        String[] formats = {"binary", "serialized"};
+        Message[] messages = {chat, history};
+        String[] names = {"chat", "history_batch"};
+        for (int f = 0; f < formats.length; f++) {
+            int version = versions[f];
+            for (int m = 0; m < messages.length; m++) {
+                Message message = messages[m];
+                byte[] frame = FrameCodec.encode(message, version);
+                String suffix = formats[f] + "." + names[m];
+                bench(filters, "codec.encode." + suffix, () -> FrameCodec.encode(message, version).length);
+                bench(filters, "codec.decode." + suffix,
+                        () -> FrameCodec.decode(frame, 4, frame.length - 4, version).hashCode());
+            }
+        }
+    }
+
+    /**
+     * 广播扇出：通过服务器的扇出方法 Server.Client.fanOut 把一条消息发给 N 个内存中的接收者，
+     * 接收者像写线程一样取得要写出的帧字节（不做网络写入）。
+     * - fanout.server：没有重传窗口的接收者（第 8 版以前的客户端），消息只编码一次，所有接收者共享同一份帧字节
+     * - fanout.window：带有重传窗口的接收者（当前版本的客户端），每条消息还要记入每个接收者的窗口
+     * - fanout.legacy：旧对象流客户端（ObjectStreamChannel），同样经过服务器的扇出方法，但每个接收者各自做一次 Java 序列化，
+     *   也就是只编码一次之前所有接收者的做法
+     * - fanout.per_recipient：不经过服务器，每个接收者各自做一次二进制编码，作为对照
+     * 比较 fanout.server 与 fanout.legacy / fanout.per_recipient 的 CPU 时间，就是只编码一次省下的开销。
+     */
+    private static void fanOutBenchmarks(List<String> filters) throws IOException {
+        if (!anySelected(filters, "fanout.")) {
+            return; // 不需要时不触发 Server 的静态初始化
+        }
+        Message chat = Message.chat("张三", "大家好，今天下午三点在会议室开会，请准时参加。");
+        chat.data.put("id", 123456789L);
+        long[] nextId = {1};
+        for (int n : RECIPIENTS) {
+            List<MessageSink> recipients = new ArrayList<>();
+            List<Server.Client> plain = new ArrayList<>();
+            List<Server.Client> windowed = new ArrayList<>();
+            List<Server.Client> legacy = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                EncodingSink sink = new EncodingSink(FrameCodec.VERSION);
+                recipients.add(sink);
+                plain.add(Server.Client.benchmarkRecipient(sink, 0));
+                if (n <= WINDOW_RECIPIENTS_MAX) {
+                    windowed.add(Server.Client.benchmarkRecipient(sink, WINDOW_SIZE));
+                }
+                legacy.add(Server.Client.benchmarkRecipient(legacyChannel(), 0));
+            }
+            bench(filters, "fanout.server." + n, () -> {
+                Server.Client.fanOut(chat, 0, plain);
+                return n;
+            });
+            if (!windowed.isEmpty()) {
+                bench(filters, "fanout.window." + n, () -> {
+                    Server.Client.fanOut(chat, nextId[0]++, windowed);
+                    return n;
+                });
+            }
+            bench(filters, "fanout.legacy." + n, () -> {
+                Server.Client.fanOut(chat, 0, legacy);
+                return n;
+            });
+            bench(filters, "fanout.per_recipient." + n, () -> {
+                for (MessageSink recipient : recipients) {
+                    recipient.send(chat);
+                }
+                return n;
+            });
+        }
+    }
+
+    /**
+     * 聊天记录的读写：翻页查询直接访问数据库，登录时的最近记录优先走缓存；
+     * 写入分别测量经过后台写线程的批量写入，以及写线程停止后的逐条同步写入。
+     */
+    private static void chatLogBenchmarks(List<String> filters) throws Exception {
+        Server.logger.info("聊天记录基准使用 " + Server.CONFIG_FILE + " 中配置的数据库");
+        bench(filters, "db.history.before", () -> ChatLogDAO.getChatHistoryBefore(Long.MAX_VALUE, PAGE_SIZE, "user1").lines().size());
+        bench(filters, "db.history.recent", () -> ChatLogDAO.getRecentChatHistory(PAGE_SIZE, "user1").lines().size());
+        bench(filters, "db.history.room", () -> ChatLogDAO.getRoomHistoryBefore("room42", Long.MAX_VALUE, PAGE_SIZE).lines().size());
+
+        // 批量写入：一次写入 rows 条，等写线程全部写完，按条数折算成每条的耗时
+        if (selected(filters, "db.insert.batched")) {
+            int rows = 20000;
+            long start = System.nanoTime();
+            for (int i = 0; i < rows; i++) {
+                ChatLogDAO.logMessage("bench" + (i % 100), null, "批量写入基准消息 " + i, "user");
+            }
+            ChatLogDAO.shutdown(); // 写完缓冲区中的记录后返回；之后的 logMessage 变为同步写入
+            record("db.insert.batched", (double) (System.nanoTime() - start) / rows, 0, -1); // 写线程中的耗时不计入 CPU 时间
+        } else {
+            ChatLogDAO.shutdown();
+        }
+        bench(filters, "db.insert.sync", () -> ChatLogDAO.logMessage("bench", null, "同步写入基准消息", "user"));
+    }
+
+    /**
+     * 运行一个基准：预热后测量若干轮，记录每次操作的平均耗时和各轮之间的标准差。
+     */
+    private static void bench(List<String> filters, String name, Op op) {
+        if (!selected(filters, name)) {
+            return;
+        }
+        try {
+            // 每轮中分成若干批执行，批大小逐渐翻倍，直到一批至少耗时 1 毫秒，减少读取时钟的开销
+            int batch = 1;
+            while (true) {
+                long start = System.nanoTime();
+                for (int i = 0; i < batch; i++) {
+                    sink += op.run();
+                }
+                if (System.nanoTime() - start >= 1_000_000 || batch >= 1 << 20) {
+                    break;
+                }
+                batch <<= 1;
+            }
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                round(op, batch);
+            }
+            double[] rounds = new double[MEASURE_ROUNDS];
+            double mean = 0;
+            double cpu = 0;
+            for (int i = 0; i < MEASURE_ROUNDS; i++) {
+                double[] r = round(op, batch);
+                rounds[i] = r[0];
+                mean += r[0] / MEASURE_ROUNDS;
+                cpu += r[1] / MEASURE_ROUNDS;
+            }
+            double variance = 0;
+            for (double r : rounds) {
+                variance += (r - mean) * (r - mean) / Math.max(1, MEASURE_ROUNDS - 1);
+            }
+            record(name, mean, Math.sqrt(variance), cpu);
+        } catch (Exception e) {
+            System.out.println(name + " 运行失败：" + e);
+        }
+    }
+
+    /**
+     * 执行一轮，返回这一轮中每次操作的平均耗时和测量线程花费的平均 CPU 时间（纳秒）。
+     */
+    private static double[] round(Op op, int batch) throws Exception {
+        long deadline = System.nanoTime() + ROUND_MS * 1_000_000;
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        long count = 0;
+        long now;
+        do {
+            for (int i = 0; i < batch; i++) {
+                sink += op.run();
+            }
+            count += batch;
+            now = System.nanoTime();
+        } while (now < deadline);
+        long cpu = threads.getCurrentThreadCpuTime() - cpuStart;
+        return new double[]{(double) (now - start) / count, (double) cpu / count};
+    }
+
+    private static boolean selected(List<String> filters, String name) {
+        if (filters.isEmpty()) {
+            return true;
+        }
+        for (String filter : filters) {
+            if (name.startsWith(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 是否有以 prefix 开头的基准会被运行
+    private static boolean anySelected(List<String> filters, String prefix) {
+        if (filters.isEmpty()) {
+            return true;
+        }
+        for (String filter : filters) {
+            if (filter.startsWith(prefix) || prefix.startsWith(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param cpu 每次操作的 CPU 时间（纳秒）；小于 0 表示没有测量
+     */
+    private static void record(String name, double mean, double stddev, double cpu) {
+        results.put(name, new double[]{mean, stddev, cpu});
+        System.out.printf(Locale.ROOT, "%-32s %14.1f ns/op  ± %-10.1f%s%n", name, mean, stddev,
+                cpu < 0 ? "" : String.format(Locale.ROOT, "  CPU %14.1f ns/op", cpu));
+    }
+
+    /**
+     * 检查基准配置中的数据库是否可以写入：db.url 不能为空，库名必须含有 bench，并且不能与 server.properties 中的 db.url 相同。
+     *
+     * @return 不能写入的原因；可以写入时返回 null
+     */
+    private static String unsafeDatabase(String configFile) throws IOException {
+        String url = load(configFile).getProperty("db.url", "").trim();
+        if (url.isEmpty()) {
+            return configFile + " 中没有配置 db.url";
+        }
+        if (!databaseName(url).toLowerCase(Locale.ROOT).contains("bench")) {
+            return "库名必须含有 bench（例如 chatdb_bench）：" + url;
+        }
+        File server = new File("server.properties");
+        if (server.exists() && url.equalsIgnoreCase(load(server.getPath()).getProperty("db.url", "").trim())) {
+            return "与 server.properties 中的 db.url 相同，不能向服务器使用的数据库写入测试数据：" + url;
+        }
+        return null;
+    }
+
+    // jdbc:mysql://localhost:3306/chatdb_bench?useSSL=false 中的 chatdb_bench
+    private static String databaseName(String url) {
+        int query = url.indexOf('?');
+        String path = query < 0 ? url : url.substring(0, query);
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static Properties load(String file) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        }
+        return props;
+    }
+
+    /**
+     * 把结果写入文件，每行“基准名=纳秒/次”，文件头记录运行环境，便于判断两份结果是否可以直接比较。
+     */
+    private static void save(String file) throws IOException {
+        Properties props = new Properties();
+        for (Map.Entry<String, double[]> e : results.entrySet()) {
+            props.setProperty(e.getKey(), String.format(Locale.ROOT, "%.1f", e.getValue()[0]));
+            if (e.getValue()[2] >= 0) {
+                props.setProperty(e.getKey() + ".cpu", String.format(Locale.ROOT, "%.1f", e.getValue()[2]));
+            }
+        }
+        String environment = String.format("JDK %s，%d 核，%s %s", System.getProperty("java.version"),
+                Runtime.getRuntime().availableProcessors(), System.getProperty("os.name"), System.getProperty("os.arch"));
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            // Properties 会把注释中的中文转义，文件头自己写
+            out.write("# ChatBenchmark 结果（纳秒/次），" + environment + "，sink=" + sink + System.lineSeparator());
+            props.store(out, null);
+        }
+    }
+
+    /**
+     * 与基线逐项比较，打印变化百分比。
+     *
+     * @return 变慢超过 threshold% 的基准个数
+     */
+    private static int compare(String baselineFile, double threshold) throws IOException {
+        Properties baseline = load(baselineFile);
+        int regressions = 0;
+        System.out.println("与基线 " + baselineFile + " 比较（阈值 " + threshold + "%）：");
+        for (Map.Entry<String, double[]> e : results.entrySet()) {
+            String old = baseline.getProperty(e.getKey());
+            if (old == null) {
+                System.out.printf("%-32s 新增%n", e.getKey());
+                continue;
+            }
+            double before = Double.parseDouble(old);
+            double change = before == 0 ? 0 : (e.getValue()[0] - before) / before * 100;
+            boolean regressed = change > threshold;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf(Locale.ROOT, "%-32s %14.1f -> %14.1f ns/op  %+6.1f%%%s%n",
+                    e.getKey(), before, e.getValue()[0], change, regressed ? "  回归" : "");
+        }
+        System.out.println(regressions == 0 ? "没有发现回归" : "发现 " + regressions + " 项回归");
+        return regressions;
+    }
+
+    /**
+     * 旧对象流客户端的输出端：真实的 ObjectStreamChannel，写入的数据直接丢弃。
+     */
+    private static ObjectStreamChannel legacyChannel() throws IOException {
+        // 构造时要读取对端的对象流头部
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        new ObjectOutputStream(header).flush();
+        return new ObjectStreamChannel(new ByteArrayInputStream(header.toByteArray()), OutputStream.nullOutputStream());
+    }
+
+    /**
+     * 内存中的接收者：像写线程一样取得对应协议版本的帧字节，但不写入网络。
+     */
+    private static class EncodingSink implements MessageSink {
+        private final int version;
+
+        EncodingSink(int version) {
+            this.version = version;
+        }
+
+        @Override
+        public void send(Object obj) throws IOException {
+            sink += Frame.bytesOf(obj, version).length;
+        }
+
+        @Override
+        public int version() {
+            return version;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
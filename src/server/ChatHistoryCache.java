@@ -0,0 +1,407 @@
+// ChatHistoryCache.java 位于 server 包中
+package server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ChatHistoryCache 是最近聊天记录的内存缓存，位于 ChatLogDAO.getRecentChatHistory 之前。
+ *
+ * 它包含：
+ * - 一个最近大厅群聊消息的环形缓冲区
+ * - 每个用户一个小的私信环形缓冲区（该用户发送或接收的私信）
+ * - 每个房间一个环形缓冲区（该房间的群聊消息），按最近使用顺序淘汰
+ *
+ * 启动时从数据库预热，之后每次 logMessage 都会同步更新缓存，
+ * 所以用户登录时通常直接从内存合并出最近的聊天记录，不再查询数据库。
+ *
+ * 缓存只在能保证结果与数据库查询完全一致时才命中：
+ * 每个缓冲区记录自己“从哪条消息开始是完整的”（floor），
+ * 合并结果中最旧的一条如果早于这个位置，就认为未命中，交给数据库查询。
+ */
+public class ChatHistoryCache {
+    // 表示“从最早开始就是完整的”
+    private static final long COMPLETE = Long.MIN_VALUE;
+
+    /**
+     * 一条缓存的聊天记录。
+     *
+     * @param seq  记录在 chat_log 表中的 id，越大越新
+     * @param line 已经格式化好的历史记录字符串
+     */
+    private record Entry(long seq, String line) {}
+
+    /**
+     * 固定容量的环形缓冲区，满了之后覆盖最旧的记录。
+     */
+    private static class Ring {
+        private final Entry[] entries;
+        private int head;  // 下一条写入的位置
+        private int size;
+        private long floor; // 序号不小于 floor 的记录都在缓冲区中
+
+        Ring(int capacity, long floor) {
+            this.entries = new Entry[Math.max(1, capacity)];
+            this.floor = floor;
+        }
+
+        void add(Entry entry) {
+            if (size == entries.length && entry.seq < newest(size - 1).seq) {
+                // 比缓冲区中最旧的记录还旧（集群中其他节点转发来的迟到记录），放不下，完整范围移到它之后
+                floor = Math.max(floor, entry.seq + 1);
+                return;
+            }
+            if (size == entries.length) {
+                // 覆盖最旧的记录，完整范围随之前移
+                floor = Math.max(floor, entries[head].seq + 1);
+            } else {
+                size++;
+            }
+            entries[head] = entry;
+            head = (head + 1) % entries.length;
+            // 迟到的记录向旧的一端移动，保持按 id 排列
+            for (int i = 0; i + 1 < size && newest(i).seq < newest(i + 1).seq; i++) {
+                int a = slot(i), b = slot(i + 1);
+                Entry t = entries[a];
+                entries[a] = entries[b];
+                entries[b] = t;
+            }
+        }
+
+        /**
+         * 按从新到旧的顺序取第 i 条（i 从 0 开始）。
+         */
+        Entry newest(int i) {
+            return entries[slot(i)];
+        }
+
+        private int slot(int i) {
+            return Math.floorMod(head - 1 - i, entries.length);
+        }
+    }
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static Ring publicRing;
+    // 每个用户的私信缓冲区，按最近使用顺序淘汰
+    private static LinkedHashMap<String, Ring> privateRings;
+    private static int privateCapacity;
+    // 私信的完整范围：预热时未加载到的，或被淘汰的用户缓冲区中的私信都早于这个位置
+    private static long privateFloor = COMPLETE;
+    // 每个房间的缓冲区，按最近使用顺序淘汰；完整范围的含义与私信相同
+    private static LinkedHashMap<String, Ring> roomRings;
+    private static int roomCapacity;
+    private static long roomFloor = COMPLETE;
+    private static volatile boolean enabled;
+
+    // 命中统计
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * 初始化缓存并从数据库预热。
+     *
+     * @param publicCapacity  缓存的群聊消息条数
+     * @param perUserCapacity 每个用户缓存的私信条数
+     * @param maxUsers        最多为多少个用户缓存私信
+     * @param warmPrivate     预热时最多加载的私信条数
+     * @param perRoomCapacity 每个房间缓存的消息条数
+     * @param maxRooms        最多为多少个房间缓存消息
+     * @param warmRooms       预热时最多加载的房间消息条数
+     */
+    public static void init(int publicCapacity, int perUserCapacity, int maxUsers, int warmPrivate,
+                            int perRoomCapacity, int maxRooms, int warmRooms) {
+        lock.lock();
+        try {
+            privateCapacity = perUserCapacity;
+            roomCapacity = perRoomCapacity;
+            roomRings = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Ring> eldest) {
+                    if (size() > maxRooms) {
+                        Ring ring = eldest.getValue();
+                        if (ring.size > 0) {
+                            roomFloor = Math.max(roomFloor, ring.newest(0).seq + 1);
+                        }
+                        return true;
+                    }
+                    return false;
+                }
+            };
+            privateRings = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Ring> eldest) {
+                    if (size() > maxUsers) {
+                        // 被淘汰用户的私信不再可知，之后新建的缓冲区只能从更新的位置开始保证完整
+                        Ring ring = eldest.getValue();
+                        if (ring.size > 0) {
+                            privateFloor = Math.max(privateFloor, ring.newest(0).seq + 1);
+                        }
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+            List<Object[]> publicRows = loadRows("room IS NULL AND receiver IS NULL", publicCapacity);
+            List<Object[]> privateRows = loadRows("receiver IS NOT NULL", warmPrivate);
+            List<Object[]> roomRows = loadRows("room IS NOT NULL AND receiver IS NULL", warmRooms);
+
+            // 按 id 从旧到新放入缓冲区
+            List<Object[]> rows = new ArrayList<>(publicRows);
+            rows.addAll(privateRows);
+            rows.addAll(roomRows);
+            rows.sort(Comparator.comparingLong(row -> (Long) row[0]));
+            long publicFloor = COMPLETE;
+            long oldestPrivate = COMPLETE;
+            if (publicRows.size() >= publicCapacity && !publicRows.isEmpty()) {
+                publicFloor = (Long) publicRows.get(publicRows.size() - 1)[0];
+            }
+            if (privateRows.size() >= warmPrivate && !privateRows.isEmpty()) {
+                oldestPrivate = (Long) privateRows.get(privateRows.size() - 1)[0];
+            }
+            roomFloor = COMPLETE;
+            if (roomRows.size() >= warmRooms && !roomRows.isEmpty()) {
+                roomFloor = (Long) roomRows.get(roomRows.size() - 1)[0];
+            }
+
+            publicRing = new Ring(publicCapacity, publicFloor);
+            privateFloor = oldestPrivate;
+            for (Object[] row : rows) {
+                add((Long) row[0], (String) row[1], (String) row[2], (String) row[3], (String) row[4], (String) row[5]);
+            }
+            enabled = true;
+            Server.logger.info("聊天记录缓存预热完成：群聊 " + publicRows.size() + " 条，私信 " + privateRows.size()
+                    + " 条，房间消息 " + roomRows.size() + " 条");
+        } catch (Exception e) {
+            Server.logger.log(java.util.logging.Level.SEVERE, "聊天记录缓存预热失败，历史记录将直接查询数据库", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 记录一条新消息（由 ChatLogDAO 在分配 id 的锁内调用；集群中其他节点转发来的记录可能比已有的稍旧）。
+     * 系统消息不会出现在历史记录中，因此不缓存。
+     */
+    public static void record(long id, String time, String sender, String receiver, String room,
+                              String message, String logLevel) {
+        if (!enabled || logLevel == null || "system".equals(logLevel)) {
+            return;
+        }
+        lock.lock();
+        try {
+            add(id, time, sender, receiver, room, message);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 声明 id 小于 seq 的记录都可能不在缓存中（例如与集群中某个节点的连接断开过，期间它转发的消息都没有收到），
+     * 之后涉及这些记录的查询交给数据库。
+     */
+    public static void invalidateBefore(long seq) {
+        if (!enabled) {
+            return;
+        }
+        lock.lock();
+        try {
+            publicRing.floor = Math.max(publicRing.floor, seq);
+            privateFloor = Math.max(privateFloor, seq);
+            roomFloor = Math.max(roomFloor, seq);
+            for (Ring ring : privateRings.values()) {
+                ring.floor = Math.max(ring.floor, seq);
+            }
+            for (Ring ring : roomRings.values()) {
+                ring.floor = Math.max(ring.floor, seq);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 声明某个用户 id 小于 seq 的私信可能不在缓存中。
+     * 集群模式下私信只转发给接收者所在的节点，用户登录到本节点时，之前发给他的私信可能只经过了其他节点。
+     */
+    public static void invalidateUser(String user, long seq) {
+        if (!enabled) {
+            return;
+        }
+        lock.lock();
+        try {
+            Ring ring = ringOf(user);
+            ring.floor = Math.max(ring.floor, seq);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从缓存中取出某个用户最近的聊天记录（群聊 + 与该用户有关的私信），按从旧到新排列。
+     *
+     * @param after 只取 id 大于该值的记录（恢复会话时为客户端最后收到的 id），0 表示不限制
+     * @return 缓存命中时返回一页记录；无法保证与数据库一致时返回 null
+     */
+    public static ChatLogDAO.HistoryPage recent(int limit, String user, long after) {
+        if (!enabled) {
+            return null;
+        }
+        lock.lock();
+        try {
+            Ring mine = privateRings.get(user);
+            long floor = Math.max(publicRing.floor, mine != null ? Math.max(mine.floor, privateFloor) : privateFloor);
+
+            // 从新到旧归并两个缓冲区
+            List<String> lines = new ArrayList<>(limit);
+            int p = 0, q = 0;
+            int privateSize = mine == null ? 0 : mine.size;
+            long oldest = Long.MAX_VALUE;
+            Long newest = null;
+            while (lines.size() < limit && (p < publicRing.size || q < privateSize)) {
+                Entry a = p < publicRing.size ? publicRing.newest(p) : null;
+                Entry b = q < privateSize ? mine.newest(q) : null;
+                Entry next;
+                if (b == null || (a != null && a.seq > b.seq)) {
+                    next = a;
+                    p++;
+                } else {
+                    next = b;
+                    q++;
+                }
+                if (next.seq <= after) {
+                    break;
+                }
+                lines.add(next.line);
+                oldest = next.seq;
+                if (newest == null) {
+                    newest = next.seq;
+                }
+            }
+
+            // 取够了条数且最旧的一条在完整范围内，或者两个缓冲区从 after 之后开始就是完整的
+            boolean hit = lines.size() == limit ? oldest >= floor : floor <= after + 1;
+            if (!hit) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            Collections.reverse(lines);
+            // 取满一页时以最旧一条的 id 作为翻页位置，否则说明已经没有更早的记录
+            return new ChatLogDAO.HistoryPage(lines, lines.size() == limit ? oldest : null, newest);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从缓存中取出某个房间最近的聊天记录，按从旧到新排列。
+     *
+     * @param after 只取 id 大于该值的记录，0 表示不限制
+     * @return 缓存命中时返回一页记录；无法保证与数据库一致时返回 null
+     */
+    public static ChatLogDAO.HistoryPage recentInRoom(String room, int limit, long after) {
+        if (!enabled) {
+            return null;
+        }
+        lock.lock();
+        try {
+            Ring ring = roomRings.get(room);
+            long floor = ring != null ? Math.max(ring.floor, roomFloor) : roomFloor;
+            int size = ring == null ? 0 : ring.size;
+
+            List<String> lines = new ArrayList<>(limit);
+            long oldest = Long.MAX_VALUE;
+            Long newest = null;
+            for (int i = 0; i < size && lines.size() < limit; i++) {
+                Entry next = ring.newest(i);
+                if (next.seq <= after) {
+                    break;
+                }
+                lines.add(next.line);
+                oldest = next.seq;
+                if (newest == null) {
+                    newest = next.seq;
+                }
+            }
+
+            boolean hit = lines.size() == limit ? oldest >= floor : floor <= after + 1;
+            if (!hit) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            Collections.reverse(lines);
+            return new ChatLogDAO.HistoryPage(lines, lines.size() == limit ? oldest : null, newest);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 返回缓存命中统计。
+     */
+    public static String stats() {
+        return "命中=" + hits.get() + " 未命中=" + misses.get();
+    }
+
+    // 调用者需持有 lock
+    private static void add(long seq, String time, String sender, String receiver, String room, String message) {
+        boolean isPrivate = receiver != null && !receiver.isEmpty();
+        Entry entry = new Entry(seq, ChatLogDAO.formatHistory(time, sender, receiver, message));
+        if (!isPrivate) {
+            if (room == null) {
+                publicRing.add(entry);
+            } else {
+                Ring ring = roomRings.get(room);
+                if (ring == null) {
+                    ring = new Ring(roomCapacity, roomFloor);
+                    roomRings.put(room, ring);
+                }
+                ring.add(entry);
+            }
+            return;
+        }
+        ringOf(sender).add(entry);
+        if (!receiver.equals(sender)) {
+            ringOf(receiver).add(entry);
+        }
+    }
+
+    private static Ring ringOf(String user) {
+        Ring ring = privateRings.get(user);
+        if (ring == null) {
+            ring = new Ring(privateCapacity, privateFloor);
+            privateRings.put(user, ring);
+        }
+        return ring;
+    }
+
+    /**
+     * 从数据库按 id 倒序加载最近的若干条非系统消息。
+     *
+     * @return 每行依次为 id、发送时间、发送者、接收者、房间、消息内容
+     */
+    private static List<Object[]> loadRows(String condition, int limit) throws Exception {
+        String sql = "SELECT id, send_time, sender, receiver, room, message FROM chat_log " +
+                "WHERE " + condition + " AND log_level != 'system' ORDER BY id DESC LIMIT ?";
+        List<Object[]> rows = new ArrayList<>();
+        try (
+                Connection conn = DBUtil.getConnection();
+                PreparedStatement pstmt = conn.prepareStatement(sql)
+        ) {
+            pstmt.setInt(1, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    rows.add(new Object[]{rs.getLong("id"), rs.getString("send_time"), rs.getString("sender"),
+                            rs.getString("receiver"), rs.getString("room"), rs.getString("message")});
+                }
+            }
+        }
+        return rows;
+    }
+}
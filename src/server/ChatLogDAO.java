@@ -5,110 +5,871 @@ import java.sql.*; // JDBC 相关类，用于连接数据库和执行 SQL 操作
 import java.time.LocalDateTime; // 用于获取当前时间
 import java.time.format.DateTimeFormatter; // 时间格式化工具
 import java.util.*; // 使用 List、ArrayList 等集合类
+import java.util.concurrent.ArrayBlockingQueue; // 有界的环形缓冲区
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * ChatLogDAO 类是数据访问对象（Data Access Object），专门负责操作聊天记录。
  * 它有两个主要功能：
  * 1. 把聊天消息保存到数据库中（logMessage）
  * 2. 从数据库中读取历史聊天记录（getRecentChatHistory）
+ *
+ * 写入是异步的：logMessage 只把记录放进一个有界的环形缓冲区，
+ * 由后台写线程按批次（攒够 batchSize 条或等待 flushInterval 毫秒）用 JDBC 批处理写入数据库，
+ * 聊天消息的投递延迟不再受数据库往返时间影响。
+ *
+ * 读取时优先使用 ChatHistoryCache 中的最近记录，只有缓存无法给出完整结果时才查询数据库。
+ *
+ * 群聊消息属于某个房间（room 列）：room 为 NULL 的是所有人都在的大厅，私信不属于任何房间。
+ *
+ * 接收者不在线的私信同时放入接收者的离线收件箱（offline_message 表，只保存接收者和记录 id），
+ * 与聊天记录在同一批、同一个事务中写入；接收者下次登录时分页取出，每页在一个事务中锁住、取出并删除。
+ * 离线收件箱的记录不会因为缓冲区暂时满了而被丢弃，写入失败时也会重试几次，
+ * 调用者拿到的 CompletableFuture 在事务提交（或最终失败）之后才完成，据此告诉发送者私信是否能够送达。
+ * 大厅的历史记录包括大厅消息和与当前用户有关的私信，其他房间的历史记录只包括该房间的消息。
+ *
+ * 记录的 id 由服务器在 logMessage 时分配，这样还没写入数据库的记录也有确定的 id，缓存中的记录和向上翻页（id < ?）使用同一套位置。
+ * 分配出去的 id 可能还没写入就丢失（缓冲区满被丢弃、进程崩溃），而客户端已经把它当作 lastMessageId、确认或恢复会话的位置，
+ * 所以 id 不能在重启后重新分配：启动时从 id_reservation 表中保存的上限和表中最大 id 中较大的一个继续，
+ * 并预先把上限推进一段（chatlog.id.block）；用掉一半时由写线程在后台再推进一段，分配 id 时从不访问数据库。
+ * 集群模式下多个节点共用一张表：每个节点只分配除以 stride 余 slot 的 id，互不冲突；
+ * 收到其他节点转发的消息时把自己的计数推进到该 id 之后，各节点分配的 id 仍然大致按时间递增。
  */
 public class ChatLogDAO {
+    // 已分配 id 的上限，多个节点共用一行，只增不减
+    private static final String RESERVATION_SQL = "SELECT high_water FROM id_reservation WHERE name = 'chat_log'";
+    private static final String RESERVE_SQL =
+            "INSERT INTO id_reservation(name, high_water) VALUES ('chat_log', ?) " +
+            "ON DUPLICATE KEY UPDATE high_water = GREATEST(high_water, VALUES(high_water))";
+    // SQL 插入语句：将聊天记录插入到 chat_log 数据表中
+    private static final String INSERT_SQL =
+            "INSERT INTO chat_log(id, send_time, sender, receiver, room, message, log_level) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    // 某个用户在大厅能看到的历史记录：大厅群聊 + 收到的私信 + 发出的私信，三段分别走索引，再合并取最新的 limit 条
+    private static final String HISTORY_SQL =
+            "(SELECT id, send_time, sender, receiver, message FROM chat_log " +
+            " WHERE room IS NULL AND receiver IS NULL AND log_level != 'system' AND id > ? AND id < ? " +
+            " ORDER BY id DESC LIMIT ?) " +
+            "UNION ALL " +
+            "(SELECT id, send_time, sender, receiver, message FROM chat_log " +
+            " WHERE receiver = ? AND log_level != 'system' AND id > ? AND id < ? ORDER BY id DESC LIMIT ?) " +
+            "UNION ALL " +
+            "(SELECT id, send_time, sender, receiver, message FROM chat_log " +
+            " WHERE sender = ? AND receiver IS NOT NULL AND receiver != ? AND log_level != 'system' " +
+            " AND id > ? AND id < ? " +
+            " ORDER BY id DESC LIMIT ?) " +
+            "ORDER BY id DESC LIMIT ?";
+    // 放入离线收件箱；同一条私信重复放入时忽略
+    private static final String INBOX_SQL =
+            "INSERT IGNORE INTO offline_message(receiver, message_id) VALUES (?, ?)";
+    // 某个用户的离线私信中 id 大于游标的一页，按 id 从旧到新，锁住取出的收件箱记录直到事务结束；
+    // 记录本身丢失（写入缓冲区满时被丢弃）的也一并取出，只是不再发送
+    private static final String OFFLINE_SQL =
+            "SELECT o.message_id, c.send_time, c.sender, c.receiver, c.message FROM offline_message o " +
+            "LEFT JOIN chat_log c ON c.id = o.message_id WHERE o.receiver = ? AND o.message_id > ? " +
+            "ORDER BY o.message_id LIMIT ? FOR UPDATE OF o";
+    // 删除一条已经取出的离线私信；只删除这一页中取出的，取出之后才放入收件箱的（即使 id 更小）留到下一次
+    private static final String OFFLINE_DELETE_SQL =
+            "DELETE FROM offline_message WHERE receiver = ? AND message_id = ?";
+    // 某个房间的历史记录，走 (room, receiver, id) 索引
+    private static final String ROOM_HISTORY_SQL =
+            "SELECT id, send_time, sender, receiver, message FROM chat_log " +
+            "WHERE room = ? AND receiver IS NULL AND log_level != 'system' AND id > ? AND id < ? " +
+            "ORDER BY id DESC LIMIT ?";
+    // 发送时间的格式（如 2025-06-12 02:30:45）
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    // 缓冲区满时，调用者最多等待的时间（毫秒），超时后丢弃该记录；离线收件箱的记录等待得更久
+    private static final long OFFER_TIMEOUT_MS = 50;
+    private static final long INBOX_OFFER_TIMEOUT_MS = 2000;
+    // 离线收件箱的记录写入失败时最多尝试的次数，以及第一次重试前等待的时间（毫秒，之后逐次增加）
+    private static final int INBOX_ATTEMPTS = 3;
+    private static final long INBOX_RETRY_MS = 200;
 
     /**
-     * 将一条聊天消息写入数据库。
+     * 一条记录写入哪些表。
+     */
+    private enum Target {
+        LOG,           // 只写入 chat_log
+        LOG_AND_INBOX, // 写入 chat_log，同时放入接收者的离线收件箱
+        INBOX          // 记录已经写入（或已经在写入缓冲区中），只放入接收者的离线收件箱
+    }
+
+    /**
+     * 一条等待写入数据库的聊天记录，发送时间在入队时确定。
+     *
+     * @param stored 放入离线收件箱的记录在写入成功或最终失败时完成；其他记录为 null
+     */
+    private record LogEntry(long id, LocalDateTime time, String sender, String receiver, String room,
+                            String message, String logLevel, Target target, CompletableFuture<Boolean> stored) {}
+
+    /**
+     * 一页历史记录。
+     *
+     * @param lines  按从旧到新排列的格式化记录
+     * @param before 继续向上翻页时使用的位置（本页最早一条记录的 id）；为 null 表示没有更早的记录了
+     * @param newest 本页最新一条记录的 id；本页为空时为 null
+     */
+    public record HistoryPage(List<String> lines, Long before, Long newest) {}
+
+    /**
+     * 从离线收件箱中取出的一页私信。
+     *
+     * @param lines 按从旧到新排列的格式化记录
+     * @param next  继续取下一页时使用的游标（本页最后一条的 id）；为 null 表示收件箱已经取完
+     */
+    public record OfflinePage(List<String> lines, Long next) {}
+
+    // 环形缓冲区以及后台写线程
+    private static ArrayBlockingQueue<LogEntry> queue;
+    private static Thread writer;
+    private static volatile boolean running;
+    private static int batchSize;
+    private static long flushIntervalMs;
+
+    // 已分配的最大记录 id，启动时从数据库读取；-1 表示尚未读取（数据库不可用），此时不分配 id
+    private static final ReentrantLock idLock = new ReentrantLock();
+    private static long lastId = -1;
+    // 已经写入 id_reservation 的上限：不超过它的 id 可以直接分配，重启后不会再被分配出去
+    private static long reservedId = -1;
+    private static long idBlock = 10000;
+    // 需要推进上限时置位，由写线程（或写线程停止后由调用者）执行；失败后隔一段时间再试
+    private static final AtomicBoolean reserveRequested = new AtomicBoolean();
+    private static volatile long reserveRetryAt;
+    private static final long RESERVE_RETRY_MS = 1000;
+    // 集群模式下本节点分配的 id 满足 id % idStride == idSlot；单节点时 stride 为 1
+    private static int idSlot = 0;
+    private static int idStride = 1;
+
+    // 背压统计
+    private static final AtomicLong enqueued = new AtomicLong(); // 成功入队的记录数
+    private static final AtomicLong blocked = new AtomicLong();  // 入队时因缓冲区满而等待过的次数
+    private static final AtomicLong dropped = new AtomicLong();  // 缓冲区满而被丢弃的记录数
+    private static final AtomicLong written = new AtomicLong();  // 成功写入数据库的记录数
+    private static final AtomicLong failed = new AtomicLong();   // 写入失败的记录数
+    private static final AtomicLong batches = new AtomicLong();  // 执行过的批次数
+    private static final AtomicLong maxDepth = new AtomicLong(); // 观察到的最大积压数
+    // 每批写入数据库的耗时
+    private static final LatencyHistogram insertTime = Metrics.histogram("chatlog.insert");
+    private static final Metrics.Meter insertedRows = Metrics.meter("chatlog.rows");
+    private static final Metrics.Meter inboxedRows = Metrics.meter("offline.stored");
+    private static final Metrics.Meter droppedRows = Metrics.meter("chatlog.dropped");
+
+    /**
+     * 读取 id 的起点并预留第一段 id，然后启动后台写线程。
+     *
+     * @param capacity        环形缓冲区容量
+     * @param batch           每批最多写入的记录数
+     * @param flushIntervalMs 一批记录最多等待的时间（毫秒）
+     * @param block           每次预留的 id 个数
+     * @throws Exception 无法读取 id 的起点（数据库不可用）；第一段 id 预留失败时不抛出，由写线程稍后重试
+     */
+    public static void start(int capacity, int batch, long flushIntervalMs, long block) throws Exception {
+        idBlock = Math.max(1, block);
+        long start = Math.max(maxId(), reservation());
+        idLock.lock();
+        try {
+            lastId = Math.max(lastId, start);
+        } finally {
+            idLock.unlock();
+        }
+        reserveIds();
+
+        queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        batchSize = Math.max(1, batch);
+        ChatLogDAO.flushIntervalMs = Math.max(1, flushIntervalMs);
+        running = true;
+
+        writer = new Thread(ChatLogDAO::writeLoop, "chatlog-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 集群模式下设置本节点的 id 段：只分配除以 stride 余 slot 的 id。在 start 之前调用。
+     *
+     * @param slot   本节点的编号，0 <= slot < stride，集群内唯一
+     * @param stride 集群最多容纳的节点数
+     */
+    public static void configureIds(int slot, int stride) {
+        if (stride < 1 || slot < 0 || slot >= stride) {
+            throw new IllegalArgumentException("cluster.node.slot 必须在 0 到 " + (stride - 1) + " 之间");
+        }
+        idLock.lock();
+        try {
+            idSlot = slot;
+            idStride = stride;
+        } finally {
+            idLock.unlock();
+        }
+    }
+
+    /**
+     * 停止后台写线程，并把缓冲区中剩余的记录全部写入数据库。
+     * 在服务器关闭钩子中、关闭连接池之前调用。
+     */
+    public static void shutdown() {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        try {
+            writer.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Server.logger.info("聊天记录写入线程已停止：" + stats());
+    }
+
+    /**
+     * 将一条聊天消息写入数据库（异步）。
      *
      * @param sender   发送者用户名（比如："张三"）
      * @param receiver 接收者用户名（如果是群发，则为 null）
      * @param message  消息内容（比如："你好！"）
      * @param log_level 日志级别（比如："user" 表示用户消息，"system" 表示系统通知）
+     * @return 分配给这条记录的 id；无法分配 id 或者写入缓冲区已满（记录未保存）时返回 -1
+     */
+    public static long logMessage(String sender, String receiver, String message, String log_level) {
+        return logMessage(sender, receiver, null, message, log_level);
+    }
+
+    /**
+     * 将一条房间内的聊天消息写入数据库（异步）。
+     *
+     * @param room 房间名；为 null 时为大厅（私信也为 null）
+     * @return 分配给这条记录的 id；无法分配 id 或者写入缓冲区已满（记录未保存）时返回 -1
+     */
+    public static long logMessage(String sender, String receiver, String room, String message, String log_level) {
+        return log(sender, receiver, room, message, log_level, Target.LOG);
+    }
+
+    /**
+     * 记录一条接收者不在线的私信，并放入接收者的离线收件箱。
+     *
+     * @return 记录和收件箱都写入数据库后以 true 完成；无法写入时以 false 完成
+     */
+    public static CompletableFuture<Boolean> logOfflineMessage(String sender, String receiver, String message) {
+        CompletableFuture<Boolean> stored = new CompletableFuture<>();
+        if (log(sender, receiver, null, message, "user", Target.LOG_AND_INBOX, stored) < 0) {
+            stored.complete(false);
+        }
+        return stored;
+    }
+
+    /**
+     * 把一条已经记录的私信放入接收者的离线收件箱，用于记录之后才发现接收者不在线的私信。
+     * 与记录本身经过同一个写入缓冲区，写入数据库的顺序不会早于记录本身。
+     *
+     * @return 写入数据库后以 true 完成；无法写入时以 false 完成
+     */
+    public static CompletableFuture<Boolean> addToInbox(String receiver, long id) {
+        CompletableFuture<Boolean> stored = new CompletableFuture<>();
+        if (id <= 0 || !enqueue(new LogEntry(id, LocalDateTime.now(), null, receiver, null, null, null,
+                Target.INBOX, stored))) {
+            stored.complete(false);
+        }
+        return stored;
+    }
+
+    private static long log(String sender, String receiver, String room, String message, String log_level,
+                            Target target) {
+        return log(sender, receiver, room, message, log_level, target, null);
+    }
+
+    private static long log(String sender, String receiver, String room, String message, String log_level,
+                            Target target, CompletableFuture<Boolean> stored) {
+        LocalDateTime now = LocalDateTime.now();
+        LogEntry entry;
+
+        // 分配 id 并更新缓存：两者在同一把锁内完成，保证缓存中的记录按 id 顺序排列；锁内不访问数据库
+        idLock.lock();
+        try {
+            long next = lastId + 1;
+            next += Math.floorMod(idSlot - next, idStride);
+            if (lastId < 0 || next > reservedId) {
+                entry = null;
+            } else {
+                lastId = next;
+                entry = new LogEntry(lastId, now, sender, receiver, room, message, log_level, target, stored);
+                ChatHistoryCache.record(entry.id(), now.format(TIME_FORMAT), sender, receiver, room, message, log_level);
+            }
+            checkReservation();
+        } finally {
+            idLock.unlock();
+        }
+        if (!running && reserveDue()) {
+            reserveIds(); // 写线程已经停止，调用者本来就在同步写入数据库
+        }
+        if (entry == null) {
+            // 数据库不可用时启动失败，或者后台预留 id 跟不上（通常也是数据库不可用）；日志只在 1、2、4、8…… 条时打印
+            long count = failed.incrementAndGet();
+            if ((count & (count - 1)) == 0) {
+                Server.logger.severe("没有可以分配的聊天记录 id，本条记录未保存（累计写入失败 " + count + " 条）");
+            }
+            return -1;
+        }
+        if (!enqueue(entry)) {
+            // 记录已经进入缓存但不会写入数据库：让缓存不再回答涉及这条记录的查询，由数据库给出一致的结果
+            ChatHistoryCache.invalidateBefore(entry.id() + 1);
+            return -1;
+        }
+        return entry.id();
+    }
+
+    /**
+     * 把记录放入写入缓冲区；后台写线程未启动（或已停止）时直接同步写入。
+     *
+     * @return 记录已经入队或同步写入成功时返回 true；缓冲区已满被丢弃、或同步写入失败时返回 false
+     */
+    private static boolean enqueue(LogEntry entry) {
+        ArrayBlockingQueue<LogEntry> q = queue;
+        if (q == null || !running) {
+            return writeBatch(List.of(entry));
+        }
+
+        if (!q.offer(entry)) {
+            // 缓冲区已满：短暂等待写线程腾出空间，仍然放不下就丢弃并计数
+            blocked.incrementAndGet();
+            boolean accepted = false;
+            try {
+                accepted = q.offer(entry, entry.stored() == null ? OFFER_TIMEOUT_MS : INBOX_OFFER_TIMEOUT_MS,
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!accepted) {
+                // 由调用者告知发送者（返回 -1）；日志只在 1、2、4、8…… 条时打印，避免刷屏
+                long count = dropped.incrementAndGet();
+                droppedRows.mark();
+                if ((count & (count - 1)) == 0) {
+                    Server.logger.warning("聊天记录写入缓冲区已满，累计丢弃 " + count + " 条记录");
+                }
+                return false;
+            }
+        }
+        enqueued.incrementAndGet();
+        maxDepth.accumulateAndGet(q.size(), Math::max);
+        return true;
+    }
+
+    /**
+     * 记录一条由集群中其他节点分配 id 并写入数据库的消息：只更新本节点的缓存，并把 id 计数推进到它之后。
+     */
+    public static void recordRemote(long id, String sender, String receiver, String room, String message,
+                                    String log_level) {
+        idLock.lock();
+        try {
+            observe(id);
+            ChatHistoryCache.record(id, LocalDateTime.now().format(TIME_FORMAT), sender, receiver, room, message,
+                    log_level);
+        } finally {
+            idLock.unlock();
+        }
+    }
+
+    /**
+     * 集群中其他节点报告了它分配过的最大 id，把本节点的 id 计数推进到它之后。
+     */
+    public static void observeId(long id) {
+        idLock.lock();
+        try {
+            observe(id);
+        } finally {
+            idLock.unlock();
+        }
+    }
+
+    // 调用者需持有 idLock
+    private static void observe(long id) {
+        lastId = Math.max(lastId, id);
+        checkReservation();
+    }
+
+    // 剩余的预留 id 不到半段时请求再预留一段；调用者需持有 idLock
+    private static void checkReservation() {
+        if (reservedId >= 0 && reservedId - lastId < idBlock / 2 + idStride) {
+            reserveRequested.set(true);
+        }
+    }
+
+    private static boolean reserveDue() {
+        return reserveRequested.get() && System.currentTimeMillis() >= reserveRetryAt;
+    }
+
+    /**
+     * 把 id_reservation 中的上限推进到当前已分配的最大 id 之后一段，成功后才允许分配到新的上限。
+     * 失败时保持请求，稍后再试。
+     */
+    private static void reserveIds() {
+        reserveRequested.set(false);
+        long target;
+        idLock.lock();
+        try {
+            target = Math.max(lastId, reservedId) + idBlock;
+        } finally {
+            idLock.unlock();
+        }
+        try (
+                Connection conn = DBUtil.getConnection();
+                PreparedStatement pstmt = conn.prepareStatement(RESERVE_SQL)
+        ) {
+            pstmt.setLong(1, target);
+            pstmt.executeUpdate();
+        } catch (Exception e) {
+            reserveRetryAt = System.currentTimeMillis() + RESERVE_RETRY_MS;
+            reserveRequested.set(true);
+            Server.logger.log(java.util.logging.Level.SEVERE, "预留聊天记录 id 失败", e);
+            return;
+        }
+        idLock.lock();
+        try {
+            reservedId = Math.max(reservedId, target);
+            checkReservation(); // 预留期间收到了其他节点的大 id
+        } finally {
+            idLock.unlock();
+        }
+    }
+
+    /**
+     * 本节点目前知道的最大记录 id（自己分配的或其他节点转发来的）；还没有读取过时返回 0。
+     */
+    public static long lastKnownId() {
+        idLock.lock();
+        try {
+            return Math.max(lastId, 0);
+        } finally {
+            idLock.unlock();
+        }
+    }
+
+    /**
+     * 读取 id_reservation 中保存的上限（之前分配过的 id 都不超过它）；还没有预留过时返回 0。
+     */
+    private static long reservation() throws Exception {
+        try (
+                Connection conn = DBUtil.getConnection();
+                Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery(RESERVATION_SQL)
+        ) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * 读取表中当前最大的记录 id。
+     */
+    private static long maxId() throws Exception {
+        try (
+                Connection conn = DBUtil.getConnection();
+                Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(id), 0) FROM chat_log")
+        ) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * 后台写线程：攒够一批或等待超时后批量写入，停止时写完剩余记录再退出。
      */
-    public static void logMessage(String sender, String receiver, String message, String log_level) {
-        // SQL 插入语句：将聊天记录插入到 chat_log 数据表中
-        String sql = "INSERT INTO chat_log(send_time, sender, receiver, message, log_level) VALUES (?, ?, ?, ?, ?)";
+    private static void writeLoop() {
+        List<LogEntry> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            if (reserveDue()) {
+                reserveIds();
+            }
+            try {
+                LogEntry first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // 继续收集，直到攒够一批或者超过等待时间
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long wait = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || wait <= 0 || !running) {
+                        break;
+                    }
+                    LogEntry next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                writeBatch(batch);
+                batches.incrementAndGet();
+            } catch (InterruptedException e) {
+                running = false;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 写入一批记录。整批在一个事务中，其中一条记录写不进去（例如超出列长度）会让整批回滚，
+     * 这时逐条重新写入，只丢弃写不进去的记录；离线收件箱的记录再间隔一段时间重试几次（数据库可能只是暂时不可用）。
+     * 离线收件箱的记录写入成功或最终失败后通知调用者。
+     *
+     * @return 全部记录都写入成功返回 true
+     */
+    private static boolean writeBatch(List<LogEntry> batch) {
+        if (insertBatch(batch, true)) {
+            written.addAndGet(batch.size());
+            for (LogEntry entry : batch) {
+                if (entry.stored() != null) {
+                    entry.stored().complete(true);
+                }
+            }
+            return true;
+        }
+        int lost = 0;
+        for (LogEntry entry : batch) {
+            boolean ok = batch.size() > 1 && insertBatch(List.of(entry), false);
+            for (int attempt = 1; !ok && entry.stored() != null && attempt < INBOX_ATTEMPTS; attempt++) {
+                try {
+                    Thread.sleep(INBOX_RETRY_MS * attempt);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                ok = insertBatch(List.of(entry), false);
+            }
+            if (ok) {
+                written.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+                lost++;
+            }
+            if (entry.stored() != null) {
+                entry.stored().complete(ok);
+            }
+        }
+        if (lost > 0 && batch.size() > 1) {
+            Server.logger.warning("逐条重试后仍有 " + lost + " 条聊天记录写入失败（共 " + batch.size() + " 条）");
+        }
+        return lost == 0;
+    }
 
+    /**
+     * 用一次 JDBC 批处理写入多条记录（MySQL 驱动开启 rewriteBatchedStatements 后会合并成一条多行 INSERT），
+     * 需要放入离线收件箱的记录在同一个事务中再用一次批处理写入 offline_message。
+     *
+     * @param logFailure 失败时是否打印异常（逐条重试时只打印汇总）
+     * @return 写入成功返回 true
+     */
+    private static boolean insertBatch(List<LogEntry> entries, boolean logFailure) {
+        long start = System.nanoTime();
         try (
                 // 获取数据库连接（DBUtil 是一个自定义的数据库工具类）
                 Connection conn = DBUtil.getConnection();
                 // 准备 SQL 语句，防止 SQL 注入攻击
-                PreparedStatement pstmt = conn.prepareStatement(sql)
+                PreparedStatement pstmt = conn.prepareStatement(INSERT_SQL);
+                PreparedStatement inbox = conn.prepareStatement(INBOX_SQL)
         ) {
-            // 获取当前时间并格式化成字符串（如 2025-06-12 02:30:45）
-            String time = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-
-            // 填充 SQL 中的占位符 ?
-            pstmt.setString(1, time);           // 第1个问号填发送时间
-            pstmt.setString(2, sender);         // 第2个问号填发送人
-            pstmt.setString(3, receiver);       // 第3个问号填接收人（群聊时为空）
-            pstmt.setString(4, message);        // 第4个问号填消息内容
-            pstmt.setString(5, log_level);      // 第5个问号填日志类型（用户消息或系统消息）
+            conn.setAutoCommit(false);
+            int rows = 0;
+            int inboxRows = 0;
+            for (LogEntry entry : entries) {
+                if (entry.target() != Target.LOG) {
+                    inbox.setString(1, entry.receiver());
+                    inbox.setLong(2, entry.id());
+                    inbox.addBatch();
+                    inboxRows++;
+                }
+                if (entry.target() == Target.INBOX) {
+                    continue;
+                }
+                rows++;
+                // 填充 SQL 中的占位符 ?
+                pstmt.setLong(1, entry.id());                          // 第1个问号填记录 id
+                pstmt.setString(2, entry.time().format(TIME_FORMAT)); // 第2个问号填发送时间
+                pstmt.setString(3, entry.sender());                    // 第3个问号填发送人
+                pstmt.setString(4, entry.receiver());                  // 第4个问号填接收人（群聊时为空）
+                pstmt.setString(5, entry.room());                      // 第5个问号填房间名（大厅和私信为空）
+                pstmt.setString(6, entry.message());                   // 第6个问号填消息内容
+                pstmt.setString(7, entry.logLevel());                  // 第7个问号填日志类型（用户消息或系统消息）
+                pstmt.addBatch();
+            }
 
-            // 执行插入操作，把这条消息存进数据库
-            pstmt.executeUpdate();
+            // 执行批量插入，把这批消息存进数据库
+            if (rows > 0) {
+                pstmt.executeBatch();
+            }
+            if (inboxRows > 0) {
+                inbox.executeBatch();
+            }
+            conn.commit();
+            insertTime.record(System.nanoTime() - start);
+            insertedRows.mark(rows);
+            inboxedRows.mark(inboxRows);
+            return true;
 
         } catch (Exception e) {
             // 如果插入失败，记录错误日志
-            Server.logger.log(java.util.logging.Level.SEVERE, "写入聊天记录失败", e);
+            if (logFailure) {
+                Server.logger.log(java.util.logging.Level.SEVERE, "写入聊天记录失败（" + entries.size() + " 条）", e);
+            } else {
+                Server.logger.fine("写入聊天记录失败，id=" + entries.get(0).id() + "：" + e.getMessage());
+            }
+            return false;
         }
     }
 
+    /**
+     * 写入缓冲区中等待写入数据库的记录数。
+     */
+    public static int queueDepth() {
+        ArrayBlockingQueue<LogEntry> q = queue;
+        return q == null ? 0 : q.size();
+    }
+
+    /**
+     * 返回写入队列的统计信息，用于观察数据库写入是否跟得上。
+     */
+    public static String stats() {
+        ArrayBlockingQueue<LogEntry> q = queue;
+        return "积压=" + (q == null ? 0 : q.size())
+                + " 最大积压=" + maxDepth.get()
+                + " 入队=" + enqueued.get()
+                + " 入队等待=" + blocked.get()
+                + " 丢弃=" + dropped.get()
+                + " 已写入=" + written.get()
+                + " 写入失败=" + failed.get()
+                + " 批次=" + batches.get();
+    }
+
     /**
      * 获取最近的聊天历史记录（包括群聊和与当前用户的私聊）。
      *
      * @param limit        要获取的消息条数（比如：20 条）
      * @param currentUser 当前登录的用户名（比如："李四"）
-     * @return 包含聊天记录的字符串列表，每条记录是一个格式化的字符串
+     * @return 一页历史记录，每条记录是一个格式化的字符串
      */
-    public static List<String> getRecentChatHistory(int limit, String currentUser) {
-        List<String> history = new ArrayList<>();  // 创建一个列表来保存聊天记录
+    public static HistoryPage getRecentChatHistory(int limit, String currentUser) {
+        // 先从内存缓存中取，缓存无法保证结果完整时再查询数据库
+        HistoryPage cached = ChatHistoryCache.recent(limit, currentUser, 0);
+        if (cached != null) {
+            return cached;
+        }
+        return queryHistory(0, Long.MAX_VALUE, limit, currentUser);
+    }
+
+    /**
+     * 恢复会话时补发错过的消息：获取 id 大于 after 的最近 limit 条历史记录。
+     * 错过的消息超过 limit 条时只返回最新的 limit 条，更早的可以继续向上翻页。
+     *
+     * @param after       客户端最后收到的消息 id
+     * @param limit       最多返回的条数
+     * @param currentUser 当前登录的用户名
+     * @return 一页历史记录
+     */
+    public static HistoryPage getChatHistoryAfter(long after, int limit, String currentUser) {
+        HistoryPage cached = ChatHistoryCache.recent(limit, currentUser, after);
+        if (cached != null) {
+            return cached;
+        }
+        return queryHistory(after, Long.MAX_VALUE, limit, currentUser);
+    }
+
+    /**
+     * 向上翻页：获取 id 小于 before 的最近 limit 条历史记录。
+     * 使用键集分页（id < ?）而不是 OFFSET，每一页的查询代价只和页大小有关，与翻到第几页无关。
+     *
+     * @param before      只返回 id 小于该值的记录
+     * @param limit       每页条数
+     * @param currentUser 当前登录的用户名
+     * @return 一页历史记录
+     */
+    public static HistoryPage getChatHistoryBefore(long before, int limit, String currentUser) {
+        return queryHistory(0, before, limit, currentUser);
+    }
 
-        // 查询语句说明：
-        // 查找所有群发消息（receiver 为 NULL），
-        // 或者是发给当前用户的私信（sender = 当前用户 或 receiver = 当前用户），
-        // 并且排除系统消息，
-        // 然后按消息 ID 倒序排列（最新的在前面），
-        // 最多取 limit 条记录。
-        String sql = "SELECT send_time, sender, receiver, message FROM chat_log " +
-                "WHERE (receiver IS NULL OR sender = ? OR receiver = ?) AND log_level != 'system' " +
-                "ORDER BY id DESC LIMIT ?";
+    /**
+     * 从某个用户的离线收件箱中取出一页私信（登录时调用，按返回的游标反复调用直到取完）。
+     *
+     * 取出和删除在同一个事务中：查询时锁住这一页的收件箱记录，只删除这些记录。
+     * 同一用户的两次登录同时取收件箱时，后一次要等前一次提交，不会重复发送；
+     * 取出之后才放入收件箱的私信（例如被丢弃的重传窗口中没有确认的私信）不会被删除，留到下一页或下一次登录。
+     *
+     * 登录时发送的历史记录已经包括了其中较新的私信，只返回 id 小于 below 的（不在那一页历史记录中的），其余的只删除。
+     *
+     * @param user  接收者
+     * @param below 只返回 id 小于该值的私信，0 表示都不返回（只清空收件箱）
+     * @param after 游标：只取 id 大于该值的私信，第一页为 0
+     * @param limit 一页最多取出的条数
+     * @return 一页私信；读取失败时返回空页，收件箱保持不变
+     */
+    public static OfflinePage takeOfflineMessages(String user, long below, long after, int limit) {
+        List<String> lines = new ArrayList<>();
+        List<Long> ids = new ArrayList<>();
+        try (
+                Connection conn = DBUtil.getConnection();
+                PreparedStatement select = conn.prepareStatement(OFFLINE_SQL);
+                PreparedStatement delete = conn.prepareStatement(OFFLINE_DELETE_SQL)
+        ) {
+            conn.setAutoCommit(false);
+            select.setString(1, user);
+            select.setLong(2, after);
+            select.setInt(3, limit);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    long id = rs.getLong("message_id");
+                    ids.add(id);
+                    String sender = rs.getString("sender");
+                    if (id < below && sender != null) {
+                        lines.add(formatHistory(rs.getString("send_time"), sender, rs.getString("receiver"),
+                                rs.getString("message")));
+                    }
+                }
+            }
+            for (long id : ids) {
+                delete.setString(1, user);
+                delete.setLong(2, id);
+                delete.addBatch();
+            }
+            if (!ids.isEmpty()) {
+                delete.executeBatch();
+            }
+            conn.commit();
+        } catch (Exception e) {
+            Server.logger.log(java.util.logging.Level.SEVERE, "读取 " + user + " 的离线私信失败", e);
+            return new OfflinePage(List.of(), null);
+        }
+        return new OfflinePage(lines, ids.size() < limit ? null : ids.get(ids.size() - 1));
+    }
+
+    /**
+     * 获取某个房间最近的聊天记录（加入房间时发送）。
+     *
+     * @param room  房间名
+     * @param limit 要获取的消息条数
+     * @return 一页历史记录
+     */
+    public static HistoryPage getRecentRoomHistory(String room, int limit) {
+        return getRoomHistoryAfter(room, 0, limit);
+    }
+
+    /**
+     * 恢复会话时补发某个房间中错过的消息：获取 id 大于 after 的最近 limit 条记录。
+     */
+    public static HistoryPage getRoomHistoryAfter(String room, long after, int limit) {
+        HistoryPage cached = ChatHistoryCache.recentInRoom(room, limit, after);
+        if (cached != null) {
+            return cached;
+        }
+        return queryRoomHistory(room, after, Long.MAX_VALUE, limit);
+    }
+
+    /**
+     * 在某个房间中向上翻页：获取 id 小于 before 的最近 limit 条记录。
+     */
+    public static HistoryPage getRoomHistoryBefore(String room, long before, int limit) {
+        return queryRoomHistory(room, 0, before, limit);
+    }
 
+    /**
+     * 查询 id 在 (after, before) 范围内的最近 limit 条历史记录。记录的 id 从 1 开始，after 为 0 表示不限制。
+     */
+    private static HistoryPage queryHistory(long after, long before, int limit, String currentUser) {
+        // 查询语句说明（见 HISTORY_SQL）：
+        // 分别查找大厅的群发消息（room 和 receiver 为 NULL）、发给当前用户的私信、当前用户发出的私信，
+        // 每一段都能用 (room, receiver, id)、(receiver, id) 或 (sender, id) 索引按 id 倒序扫描，最多各取 limit 条，
+        // 合并后再取最新的 limit 条，并且排除系统消息。
         try (
                 // 获取数据库连接
                 Connection conn = DBUtil.getConnection();
                 // 准备 SQL 查询语句
-                PreparedStatement pstmt = conn.prepareStatement(sql)
+                PreparedStatement pstmt = conn.prepareStatement(HISTORY_SQL)
         ) {
             // 填充查询参数
-            pstmt.setString(1, currentUser);  // 当前用户作为发送者
-            pstmt.setString(2, currentUser);  // 当前用户作为接收者
-            pstmt.setInt(3, limit);           // 最多取多少条记录
+            pstmt.setLong(1, after);          // 群聊
+            pstmt.setLong(2, before);
+            pstmt.setInt(3, limit);
+            pstmt.setString(4, currentUser);  // 当前用户作为接收者
+            pstmt.setLong(5, after);
+            pstmt.setLong(6, before);
+            pstmt.setInt(7, limit);
+            pstmt.setString(8, currentUser);  // 当前用户作为发送者
+            pstmt.setString(9, currentUser);
+            pstmt.setLong(10, after);
+            pstmt.setLong(11, before);
+            pstmt.setInt(12, limit);
+            pstmt.setInt(13, limit);          // 最多取多少条记录
+            return readPage(pstmt, limit);
+
+        } catch (Exception e) {
+            // 如果查询失败，记录错误日志
+            Server.logger.log(java.util.logging.Level.SEVERE, "获取聊天记录失败", e);
+            return new HistoryPage(List.of(), null, null);
+        }
+    }
 
-            ResultSet rs = pstmt.executeQuery();  // 执行查询，得到结果集
+    /**
+     * 查询某个房间中 id 在 (after, before) 范围内的最近 limit 条记录。
+     */
+    private static HistoryPage queryRoomHistory(String room, long after, long before, int limit) {
+        try (
+                Connection conn = DBUtil.getConnection();
+                PreparedStatement pstmt = conn.prepareStatement(ROOM_HISTORY_SQL)
+        ) {
+            pstmt.setString(1, room);
+            pstmt.setLong(2, after);
+            pstmt.setLong(3, before);
+            pstmt.setInt(4, limit);
+            return readPage(pstmt, limit);
+        } catch (Exception e) {
+            Server.logger.log(java.util.logging.Level.SEVERE, "获取房间 " + room + " 的聊天记录失败", e);
+            return new HistoryPage(List.of(), null, null);
+        }
+    }
 
+    /**
+     * 执行按 id 倒序的历史记录查询，整理成一页记录。
+     */
+    private static HistoryPage readPage(PreparedStatement pstmt, int limit) throws SQLException {
+        List<String> history = new ArrayList<>();  // 创建一个列表来保存聊天记录
+        long oldest = 0;
+        Long newest = null;
+        try (ResultSet rs = pstmt.executeQuery()) {  // 执行查询，得到结果集
             // 遍历结果集中的每一行数据
             while (rs.next()) {
+                oldest = rs.getLong("id");                    // 记下翻页位置
+                if (newest == null) {
+                    newest = oldest;                          // 第一行是最新的一条
+                }
                 String time = rs.getString("send_time");     // 取出发送时间
                 String sender = rs.getString("sender");       // 取出发送者
                 String receiver = rs.getString("receiver");   // 取出接收者
                 String message = rs.getString("message");     // 取出消息内容
 
-                // 如果是有接收人的消息，说明是私信
-                if (receiver != null && !receiver.isEmpty()) {
-                    message = "[私信] " + message;  // 在消息前加上“[私信]”标识
-                }
-
-                // 把这条消息格式化成带用户名、时间和内容的字符串
-                history.add("[" + sender + "] [" + time + "]：" + message);
+                history.add(formatHistory(time, sender, receiver, message));
             }
-
-        } catch (Exception e) {
-            // 如果查询失败，记录错误日志
-            Server.logger.log(java.util.logging.Level.SEVERE, "获取聊天记录失败", e);
         }
 
         // 因为我们是从最新的开始查出来的（倒序），所以要反转一下顺序，
         // 让最老的消息排在最前面，最新的消息排在最后面，这样更符合阅读习惯
         Collections.reverse(history);
 
-        return history;
+        // 取满一页时才可能还有更早的记录
+        return new HistoryPage(history, history.size() == limit ? oldest : null, newest);
+    }
+
+    /**
+     * 把一条聊天记录格式化成带用户名、时间和内容的字符串，私信会加上“[私信]”标识。
+     */
+    static String formatHistory(String time, String sender, String receiver, String message) {
+        // 如果是有接收人的消息，说明是私信
+        if (receiver != null && !receiver.isEmpty()) {
+            message = "[私信] " + message;
+        }
+        return "[" + sender + "] [" + time + "]：" + message;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,74 @@
+// ClusterBus.java 位于 server 包中
+package server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ClusterBus 是集群节点之间的消息总线。
+ *
+ * 每个节点只持有自己的连接和会话，节点之间通过总线互相通知上线、下线、房间成员变化，
+ * 并转发群聊消息和私信。实现需要保证：
+ * - 同一个节点发给另一个节点的事件按发送顺序到达
+ * - 与一个节点的连接建立后，首先把 Listener.snapshot() 返回的事件发给对方，然后才是之后发布的事件
+ * - 与一个节点的连接断开时调用 Listener.onPeerDown，对方重新连上后会再次收到快照
+ *
+ * 有两种实现：LoopbackBus（同一个进程内的多个总线互相连接，用于测试）和 TcpClusterBus（节点之间的 TCP 连接）。
+ */
+public interface ClusterBus {
+
+    /**
+     * 接收总线上的事件。事件在总线自己的线程上回调，同一个节点发来的事件依次回调。
+     */
+    interface Listener {
+        /**
+         * 本节点当前状态的完整快照，与另一个节点的连接建立后首先发给对方。
+         */
+        List<ClusterEvent> snapshot();
+
+        /**
+         * 收到另一个节点发来的事件。
+         *
+         * @param node 发送事件的节点
+         */
+        void onEvent(String node, ClusterEvent event);
+
+        /**
+         * 与另一个节点的连接断开，它的在线用户和房间成员都不再可知。
+         */
+        void onPeerDown(String node);
+    }
+
+    /**
+     * 本节点的标识，集群内唯一。
+     */
+    String nodeId();
+
+    /**
+     * 开始连接其他节点并接收事件。
+     */
+    void start(Listener listener) throws IOException;
+
+    /**
+     * 把事件发给所有已连接的节点。不会阻塞：发送队列已满的连接会被断开，对方重连后重新同步。
+     */
+    void publish(ClusterEvent event);
+
+    /**
+     * 把事件发给指定的节点。
+     *
+     * @return 该节点当前已连接返回 true
+     */
+    boolean send(String node, ClusterEvent event);
+
+    /**
+     * 当前已连接的节点。
+     */
+    Set<String> peers();
+
+    /**
+     * 断开所有连接并停止接收事件。
+     */
+    void close();
+}
@@ -0,0 +1,237 @@
+// ClusterDirectory.java 位于 server 包中
+package server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * ClusterDirectory 记录集群中其他节点上的在线用户和房间成员（本节点自己的会话不在其中）。
+ *
+ * 内容完全由 ClusterBus 上的事件维护：连接建立时对方发来的快照整体替换该节点的记录，
+ * 之后按上线、下线、加入、离开事件逐条更新；连接断开时删除该节点的全部记录。
+ *
+ * 分片模式（cluster.presence=sharded）下每个节点只记录归属于自己（见 ConsistentHashRing）的用户，
+ * 房间成员仍然记录全部节点的。
+ *
+ * 同一个用户可能短时间内同时出现在两个节点上（例如从一个节点恢复会话到另一个节点，旧节点的下线事件还没有到），
+ * 所以每个用户记录的是节点列表，最后上线的节点排在最后，只有列表为空时才算下线。
+ */
+public class ClusterDirectory {
+
+    /**
+     * 一次整体替换后的变化。
+     *
+     * @param joined 新上线的用户
+     * @param left   已下线的用户
+     */
+    public record Changes(List<String> joined, List<String> left) {}
+
+    /**
+     * 一个房间成员。
+     */
+    public record Membership(String room, String user) {}
+
+    // 用户名 -> 用户所在的节点（不可变列表，最后一个是最近上线的节点）
+    private final ConcurrentHashMap<String, List<String>> users = new ConcurrentHashMap<>();
+    // 房间名 -> (用户名 -> 节点)
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, String>> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * 用户在某个节点上线。
+     *
+     * @return 用户之前不在任何其他节点上时返回 true
+     */
+    public boolean online(String node, String user) {
+        boolean[] added = new boolean[1];
+        users.compute(user, (name, nodes) -> {
+            added[0] = nodes == null;
+            List<String> updated = new ArrayList<>(nodes == null ? List.of() : nodes);
+            updated.remove(node);
+            updated.add(node);
+            return List.copyOf(updated);
+        });
+        return added[0];
+    }
+
+    /**
+     * 用户从某个节点下线。
+     *
+     * @return 用户因此不在任何其他节点上时返回 true
+     */
+    public boolean offline(String node, String user) {
+        boolean[] removed = new boolean[1];
+        users.computeIfPresent(user, (name, nodes) -> {
+            if (!nodes.contains(node)) {
+                return nodes;
+            }
+            List<String> updated = new ArrayList<>(nodes);
+            updated.remove(node);
+            removed[0] = updated.isEmpty();
+            return updated.isEmpty() ? null : List.copyOf(updated);
+        });
+        return removed[0];
+    }
+
+    /**
+     * 用某个节点发来的完整在线用户列表替换该节点原来的记录。
+     */
+    public Changes replaceNode(String node, Collection<String> online) {
+        Set<String> current = new HashSet<>(online);
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (String user : usersOf(node)) {
+            if (!current.contains(user) && offline(node, user)) {
+                left.add(user);
+            }
+        }
+        for (String user : current) {
+            if (online(node, user)) {
+                joined.add(user);
+            }
+        }
+        return new Changes(joined, left);
+    }
+
+    /**
+     * 删除某个节点的全部在线用户记录。
+     *
+     * @return 因此下线的用户
+     */
+    public List<String> removeNode(String node) {
+        List<String> left = new ArrayList<>();
+        for (String user : usersOf(node)) {
+            if (offline(node, user)) {
+                left.add(user);
+            }
+        }
+        return left;
+    }
+
+    /**
+     * 只保留满足条件的用户（归属节点变化后，删除不再由本节点负责的用户）。
+     *
+     * @return 被删除的用户
+     */
+    public List<String> retainUsers(Predicate<String> keep) {
+        List<String> removed = new ArrayList<>();
+        for (String user : users.keySet()) {
+            if (!keep.test(user) && users.remove(user) != null) {
+                removed.add(user);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * 用户最近上线的节点；不在其他节点上时返回 null。
+     */
+    public String nodeOf(String user) {
+        List<String> nodes = user == null ? null : users.get(user);
+        return nodes == null ? null : nodes.get(nodes.size() - 1);
+    }
+
+    /**
+     * 其他节点上的全部在线用户。
+     */
+    public Set<String> users() {
+        return users.keySet();
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     * 用户在某个节点上加入房间。
+     *
+     * @return 之前不在这个房间中时返回 true
+     */
+    public boolean joinRoom(String node, String room, String user) {
+        ConcurrentHashMap<String, String> members = rooms.computeIfAbsent(room, r -> new ConcurrentHashMap<>());
+        return members.put(user, node) == null;
+    }
+
+    /**
+     * 用户在某个节点上离开房间（用户已经从其他节点重新加入时不处理）。
+     *
+     * @return 移除成功返回 true
+     */
+    public boolean leaveRoom(String node, String room, String user) {
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room, (name, members) -> {
+            removed[0] = members.remove(user, node);
+            return members.isEmpty() ? null : members;
+        });
+        return removed[0];
+    }
+
+    /**
+     * 用某个节点发来的完整成员列表替换该节点在这个房间中的记录。
+     */
+    public Changes replaceRoom(String node, String room, Collection<String> names) {
+        Set<String> current = new HashSet<>(names);
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (Map.Entry<String, String> member : rooms.getOrDefault(room, new ConcurrentHashMap<>()).entrySet()) {
+            if (member.getValue().equals(node) && !current.contains(member.getKey())
+                    && leaveRoom(node, room, member.getKey())) {
+                left.add(member.getKey());
+            }
+        }
+        for (String user : current) {
+            if (joinRoom(node, room, user)) {
+                joined.add(user);
+            }
+        }
+        return new Changes(joined, left);
+    }
+
+    /**
+     * 删除某个节点在所有房间中的成员记录。
+     *
+     * @return 被删除的成员
+     */
+    public List<Membership> removeRooms(String node) {
+        List<Membership> removed = new ArrayList<>();
+        for (Map.Entry<String, ConcurrentHashMap<String, String>> room : rooms.entrySet()) {
+            for (Map.Entry<String, String> member : room.getValue().entrySet()) {
+                if (member.getValue().equals(node) && leaveRoom(node, room.getKey(), member.getKey())) {
+                    removed.add(new Membership(room.getKey(), member.getKey()));
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * 某个节点在记录中的全部房间（用于收到该节点的快照时找出它已经不在的房间）。
+     */
+    public Set<String> roomsOf(String node) {
+        Set<String> result = new HashSet<>();
+        for (Map.Entry<String, ConcurrentHashMap<String, String>> room : rooms.entrySet()) {
+            if (room.getValue().containsValue(node)) {
+                result.add(room.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 其他节点上某个房间的成员。
+     */
+    public Set<String> roomMembers(String room) {
+        ConcurrentHashMap<String, String> members = room == null ? null : rooms.get(room);
+        return members == null ? Set.of() : members.keySet();
+    }
+
+    private List<String> usersOf(String node) {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, List<String>> user : users.entrySet()) {
+            if (user.getValue().contains(node)) {
+                result.add(user.getKey());
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,197 @@
+// ClusterEvent.java 位于 server 包中
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ClusterEvent 是集群节点之间通过 ClusterBus 传递的一个事件。
+ *
+ * 节点间的事件与客户端协议无关，使用单独的简单二进制格式：
+ * 类型（1 字节）+ 各字段（字符串为 1 字节是否为 null + 4 字节长度 + UTF-8 字节，id 为 8 字节，列表为 4 字节个数 + 各字符串）。
+ * 每种类型只用到其中几个字段，未用到的字段为 null（id 为 0）。
+ * 新连接建立后的快照依次为：USERS、每个房间一个 ROOM_MEMBERS、SYNCED。
+ *
+ * @param type    事件类型
+ * @param user    相关的用户名（发送者、上线或下线的用户）
+ * @param target  私信的接收者
+ * @param room    房间名；大厅为 null
+ * @param content 消息内容
+ * @param id      消息在 chat_log 中的 id；USERS 事件中为发送节点已分配的最大 id；ONLINE 事件中为令牌的代（没有时为 0）
+ * @param names   用户名列表（USERS、ROOM_MEMBERS）
+ */
+public record ClusterEvent(Type type, String user, String target, String room, String content,
+                           long id, List<String> names) {
+
+    public enum Type {
+        USERS,        // 发送节点上的全部在线用户（新连接建立后首先发送），names + id
+        ONLINE,       // 用户在某个节点上登录（content 为 "resume" 时表示接管其他节点上的会话：恢复会话或重新登录），user；
+                      // 归属节点转发时 target 为用户实际登录的节点；密码登录时 id 为新的令牌代（见 ResumeTokens）
+        OFFLINE,      // 用户从发送节点下线，user
+        CHAT,         // 大厅或房间的群聊消息，id + user + room + content
+        PRIVATE,      // 私信，直接发给接收者所在的节点，id + user + target + content；
+                      // 由归属节点转交时 room 为发送者所在的节点
+        FORWARD_PRIVATE, // 私信，发给接收者的归属节点，由它转交给接收者所在的节点（字段同 PRIVATE，room 为发送者所在的节点）
+        UNDELIVERED,  // 私信的接收者已经不在线，通知发送者所在的节点放入离线收件箱，id + user + target
+        ROOM_MEMBERS, // 发送节点上某个房间的全部成员（新连接建立后发送），room + names
+        ROOM_JOIN,    // 用户在发送节点上加入房间，room + user
+        ROOM_LEAVE,   // 用户在发送节点上离开房间，room + user
+        SYNCED        // 快照结束：之前没有在快照中出现的房间，发送节点上已经没有成员
+    }
+
+    // 单个事件允许的最大长度，与客户端帧的上限相同
+    static final int MAX_LENGTH = 1024 * 1024;
+    private static final Type[] TYPES = Type.values();
+
+    public static ClusterEvent users(List<String> names, long lastId) {
+        return new ClusterEvent(Type.USERS, null, null, null, null, lastId, names);
+    }
+
+    public static ClusterEvent online(String user, boolean resumed) {
+        return new ClusterEvent(Type.ONLINE, user, null, null, resumed ? "resume" : null, 0, null);
+    }
+
+    /**
+     * 用户用密码重新登录：接管其他节点上的会话，并且之前签发的会话恢复令牌全部失效。
+     *
+     * @param generation 这次登录的令牌代
+     */
+    public static ClusterEvent login(String user, long generation) {
+        return new ClusterEvent(Type.ONLINE, user, null, null, "resume", generation, null);
+    }
+
+    /**
+     * 归属节点把另一个节点上的登录转告给用户原来所在的节点。
+     *
+     * @param origin     用户实际登录的节点
+     * @param generation 密码登录时的令牌代；没有时为 0
+     */
+    public static ClusterEvent online(String user, boolean resumed, String origin, long generation) {
+        return new ClusterEvent(Type.ONLINE, user, origin, null, resumed ? "resume" : null, generation, null);
+    }
+
+    public static ClusterEvent offline(String user) {
+        return new ClusterEvent(Type.OFFLINE, user, null, null, null, 0, null);
+    }
+
+    public static ClusterEvent chat(long id, String sender, String room, String content) {
+        return new ClusterEvent(Type.CHAT, sender, null, room, content, id, null);
+    }
+
+    public static ClusterEvent privateMsg(long id, String sender, String target, String content) {
+        return new ClusterEvent(Type.PRIVATE, sender, target, null, content, id, null);
+    }
+
+    /**
+     * 归属节点把私信转交给接收者所在的节点。
+     *
+     * @param origin 发送者所在的节点
+     */
+    public static ClusterEvent privateMsg(long id, String sender, String target, String content, String origin) {
+        return new ClusterEvent(Type.PRIVATE, sender, target, origin, content, id, null);
+    }
+
+    public static ClusterEvent forwardPrivate(long id, String sender, String target, String content, String origin) {
+        return new ClusterEvent(Type.FORWARD_PRIVATE, sender, target, origin, content, id, null);
+    }
+
+    public static ClusterEvent undelivered(long id, String sender, String target) {
+        return new ClusterEvent(Type.UNDELIVERED, sender, target, null, null, id, null);
+    }
+
+    public static ClusterEvent roomMembers(String room, List<String> names) {
+        return new ClusterEvent(Type.ROOM_MEMBERS, null, null, room, null, 0, names);
+    }
+
+    public static ClusterEvent roomJoin(String room, String user) {
+        return new ClusterEvent(Type.ROOM_JOIN, user, null, room, null, 0, null);
+    }
+
+    public static ClusterEvent roomLeave(String room, String user) {
+        return new ClusterEvent(Type.ROOM_LEAVE, user, null, room, null, 0, null);
+    }
+
+    public static ClusterEvent synced() {
+        return new ClusterEvent(Type.SYNCED, null, null, null, null, 0, null);
+    }
+
+    /**
+     * ONLINE 事件是否要接管用户原来的会话（恢复会话或重新登录，用户原来所在的节点无条件让出）。
+     */
+    public boolean resumed() {
+        return "resume".equals(content);
+    }
+
+    /**
+     * 编码成一个事件体（不含长度前缀）。
+     */
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type.ordinal());
+        writeString(out, user);
+        writeString(out, target);
+        writeString(out, room);
+        writeString(out, content);
+        out.writeLong(id);
+        out.writeInt(names == null ? -1 : names.size());
+        if (names != null) {
+            for (String name : names) {
+                writeString(out, name);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 解码一个事件体。
+     */
+    public static ClusterEvent decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= TYPES.length) {
+            throw new StreamCorruptedException("未知的集群事件类型: " + ordinal);
+        }
+        String user = readString(in);
+        String target = readString(in);
+        String room = readString(in);
+        String content = readString(in);
+        long id = in.readLong();
+        int count = in.readInt();
+        List<String> names = null;
+        if (count >= 0) {
+            if (count > body.length) {
+                throw new StreamCorruptedException("集群事件的列表长度错误");
+            }
+            names = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                names.add(readString(in));
+            }
+        }
+        return new ClusterEvent(TYPES[ordinal], user, target, room, content, id, names);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeBoolean(false);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeBoolean(true);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new StreamCorruptedException("集群事件的字符串长度错误");
+        }
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,423 @@
+// ClusterHarness.java 位于 server 包中
+package server;
+
+import client.SecurityUtil;
+import shared.FramedChannel;
+import shared.Message;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * ClusterHarness 在本机启动一个多节点集群，用真实的客户端连接检查节点之间的转发是否正确。
+ *
+ * 每个节点是一个独立的 Server 进程，运行在各自的临时目录中：server.properties 由当前目录下的配置复制而来
+ * （数据库、证书密码等），再改成各自的客户端端口、集群端口和指标端口，所有节点共用随机生成的集群密钥；
+ * 当前目录下有 keystore.p12 时一并复制，客户端只信任这张证书。
+ *
+ * 依次检查：
+ * - 各节点互相连通（指标接口的 cluster.peers 等于节点数 - 1）
+ * - 每个节点登录一个用户，大厅消息到达所有节点上的用户
+ * - 跨节点私信只到达接收者
+ * - 停掉最后一个节点后，发给它上面用户的私信收到“不在线”的回复
+ * - 重新启动这个节点，用户重新登录后收到离线期间的私信，跨节点私信恢复
+ * 各节点的日志在临时目录的 server.log 中，失败时保留临时目录以便查看。
+ *
+ * 集群会向 db.url 指向的数据库注册 harness0、harness1 …… 这些用户并写入聊天记录，请使用测试库。
+ *
+ * 用法：java -cp <与服务器相同的类路径> server.ClusterHarness [节点数] [--sharded] [--base-port=端口]
+ */
+public class ClusterHarness {
+
+    private static final String PASSWORD = "harness-password";
+    private static final long WAIT_MS = 15000;
+
+    private static final List<String> failures = new ArrayList<>();
+    private static int checks;
+
+    /**
+     * 一个节点进程。
+     */
+    private static class Node {
+        final int index;
+        final Path dir;
+        final int port;
+        final int metricsPort;
+        Process process;
+
+        Node(int index, Path dir, int port, int metricsPort) {
+            this.index = index;
+            this.dir = dir;
+            this.port = port;
+            this.metricsPort = metricsPort;
+        }
+
+        String id() {
+            return "node" + index;
+        }
+    }
+
+    /**
+     * 一个登录到某个节点的客户端，后台线程把收到的消息放入队列。
+     */
+    private static class Session implements Closeable {
+        final String user;
+        final Socket socket;
+        final FramedChannel channel;
+        final BlockingQueue<Object> inbox = new LinkedBlockingQueue<>();
+
+        Session(String user, Socket socket, FramedChannel channel) {
+            this.user = user;
+            this.socket = socket;
+            this.channel = channel;
+        }
+
+        void startReading() {
+            Thread reader = new Thread(() -> {
+                try {
+                    while (true) {
+                        inbox.add(channel.receive());
+                    }
+                } catch (Exception ignored) {}
+            }, "harness-reader-" + user);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * 等待一条满足条件的消息（之前收到的其他消息被丢弃）。
+         */
+        boolean expect(Predicate<Object> condition) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + WAIT_MS;
+            long left;
+            while ((left = deadline - System.currentTimeMillis()) > 0) {
+                Object received = inbox.poll(left, TimeUnit.MILLISECONDS);
+                if (received != null && condition.test(received)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = 3;
+        boolean sharded = false;
+        int basePort = 18000;
+        for (String arg : args) {
+            if (arg.equals("--sharded")) {
+                sharded = true;
+            } else if (arg.startsWith("--base-port=")) {
+                basePort = Integer.parseInt(arg.substring("--base-port=".length()));
+            } else {
+                count = Integer.parseInt(arg);
+            }
+        }
+        if (count < 2) {
+            System.out.println("用法：java -cp <类路径> server.ClusterHarness [节点数（至少 2）] [--sharded] [--base-port=端口]");
+            return;
+        }
+
+        Properties base = new Properties();
+        try (InputStream in = new FileInputStream("server.properties")) {
+            base.load(in);
+        }
+        String keyPassword = base.getProperty("ssl.keypassword", "");
+        SSLContext tls = keyPassword.isEmpty() ? null : clientContext(keyPassword);
+        String secret = randomHex();
+        String tokenSecret = randomHex();
+
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            nodes.add(new Node(i, Files.createTempDirectory("cluster-harness-node" + i),
+                    basePort + i, basePort + 200 + i));
+        }
+        List<Session> sessions = new ArrayList<>();
+        try {
+            for (Node node : nodes) {
+                writeConfig(node, nodes, base, basePort, secret, tokenSecret, sharded);
+                start(node);
+            }
+            check("所有节点互相连通", waitForPeers(nodes, count - 1));
+
+            for (Node node : nodes) {
+                sessions.add(login(tls, node, "harness" + node.index));
+            }
+            Session first = sessions.get(0);
+            Session last = sessions.get(count - 1);
+
+            String lobby = "大厅-" + randomHex();
+            first.channel.send(Message.chat(first.user, lobby));
+            for (Session session : sessions.subList(1, count)) {
+                check("大厅消息到达 " + session.user, session.expect(contains(lobby)));
+            }
+
+            String direct = "私信-" + randomHex();
+            first.channel.send(Message.privateMsg(first.user, last.user, direct));
+            check("跨节点私信到达 " + last.user, last.expect(contains(direct)));
+
+            // 停掉最后一个节点：其他节点应把它上面的用户视为下线
+            Node stopped = nodes.get(count - 1);
+            last.close();
+            stop(stopped);
+            check("其他节点发现 " + stopped.id() + " 断开", waitForPeers(nodes.subList(0, count - 1), count - 2));
+            String offline = "离线私信-" + randomHex();
+            first.channel.send(Message.privateMsg(first.user, last.user, offline));
+            check("发给已下线用户的私信收到回复", first.expect(contains("不在线")));
+
+            // 重新启动：用户重新登录后私信恢复
+            start(stopped);
+            check(stopped.id() + " 重新加入集群", waitForPeers(nodes, count - 1));
+            last = login(tls, stopped, last.user);
+            sessions.set(count - 1, last);
+            check(last.user + " 登录后收到离线期间的私信", last.expect(contains(offline)));
+            String again = "私信-" + randomHex();
+            first.channel.send(Message.privateMsg(first.user, last.user, again));
+            check("节点重启后跨节点私信到达 " + last.user, last.expect(contains(again)));
+        } catch (Exception e) {
+            failures.add("运行中断：" + e);
+        } finally {
+            for (Session session : sessions) {
+                try {
+                    session.close();
+                } catch (IOException ignored) {}
+            }
+            for (Node node : nodes) {
+                stop(node);
+            }
+        }
+
+        System.out.printf("%d 个节点（%s 模式）：%d 项检查，%d 项失败%n",
+                count, sharded ? "sharded" : "broadcast", checks, failures.size());
+        if (!failures.isEmpty()) {
+            for (String failure : failures) {
+                System.out.println("  失败：" + failure);
+            }
+            for (Node node : nodes) {
+                System.out.println("  " + node.id() + " 的日志：" + node.dir.resolve("server.log"));
+            }
+            System.exit(1);
+        }
+        for (Node node : nodes) {
+            deleteDir(node.dir);
+        }
+    }
+
+    private static void check(String name, boolean passed) {
+        checks++;
+        System.out.println((passed ? "通过：" : "失败：") + name);
+        if (!passed) {
+            failures.add(name);
+        }
+    }
+
+    private static Predicate<Object> contains(String text) {
+        return received -> received instanceof Message message
+                ? String.valueOf(message.data).contains(text)
+                : String.valueOf(received).contains(text);
+    }
+
+    /**
+     * 在节点的临时目录中写入配置，并复制证书。
+     */
+    private static void writeConfig(Node node, List<Node> nodes, Properties base, int basePort,
+                                    String secret, String tokenSecret, boolean sharded) throws IOException {
+        Properties prop = new Properties();
+        prop.putAll(base);
+        StringBuilder peers = new StringBuilder();
+        for (Node other : nodes) {
+            if (other != node) {
+                peers.append(peers.isEmpty() ? "" : ",")
+                        .append(other.id()).append("@127.0.0.1:").append(basePort + 100 + other.index);
+            }
+        }
+        prop.setProperty("port", String.valueOf(node.port));
+        prop.setProperty("metrics.bind", "127.0.0.1");
+        prop.setProperty("metrics.port", String.valueOf(node.metricsPort));
+        prop.setProperty("session.token.secret", tokenSecret);
+        prop.setProperty("cluster.node.id", node.id());
+        prop.setProperty("cluster.node.slot", String.valueOf(node.index));
+        prop.setProperty("cluster.bind", "127.0.0.1");
+        prop.setProperty("cluster.port", String.valueOf(basePort + 100 + node.index));
+        prop.setProperty("cluster.peers", peers.toString());
+        prop.setProperty("cluster.secret", secret);
+        prop.setProperty("cluster.presence", sharded ? "sharded" : "broadcast");
+        try (OutputStream out = new FileOutputStream(node.dir.resolve("server.properties").toFile())) {
+            prop.store(out, "ClusterHarness " + node.id());
+        }
+        File keyStore = new File("keystore.p12");
+        if (keyStore.exists()) {
+            Files.copy(keyStore.toPath(), node.dir.resolve("keystore.p12"), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 用与当前进程相同的 JVM 和类路径启动节点，等待客户端端口可以连接。
+     */
+    private static void start(Node node) throws Exception {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        node.process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "server.Server")
+                .directory(node.dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(node.dir.resolve("server.log").toFile()))
+                .start();
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            if (!node.process.isAlive()) {
+                throw new IOException(node.id() + " 启动失败，见 " + node.dir.resolve("server.log"));
+            }
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("127.0.0.1", node.port), 500);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(200);
+            }
+        }
+        throw new IOException(node.id() + " 没有在 " + WAIT_MS + " ms 内开始监听");
+    }
+
+    private static void stop(Node node) {
+        if (node.process != null && node.process.isAlive()) {
+            node.process.destroy();
+            try {
+                if (!node.process.waitFor(5, TimeUnit.SECONDS)) {
+                    node.process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                node.process.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * 等待每个节点的 cluster.peers 指标都等于 expected。
+     */
+    private static boolean waitForPeers(List<Node> nodes, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2 * WAIT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            boolean all = true;
+            for (Node node : nodes) {
+                all &= peers(node) == expected;
+            }
+            if (all) {
+                return true;
+            }
+            Thread.sleep(250);
+        }
+        return false;
+    }
+
+    private static int peers(Node node) {
+        try {
+            HttpURLConnection http = (HttpURLConnection) URI.create(
+                    "http://127.0.0.1:" + node.metricsPort + "/stats").toURL().openConnection();
+            http.setConnectTimeout(500);
+            http.setReadTimeout(2000);
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(http.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("cluster.peers ")) {
+                        return Integer.parseInt(line.substring("cluster.peers ".length()).trim());
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {}
+        return -1;
+    }
+
+    /**
+     * 连接到节点并登录（用户不存在时先注册），与图形客户端的流程相同：getsalt -> login。
+     */
+    private static Session login(SSLContext tls, Node node, String user) throws Exception {
+        register(tls, node, user);
+        Socket socket = connect(tls, node);
+        FramedChannel channel = FramedChannel.connect(socket.getInputStream(), socket.getOutputStream());
+        channel.send(Message.getSalt(user));
+        Object salt = channel.receive();
+        if (!(salt instanceof Message reply) || !(reply.data.get("salt") instanceof byte[] bytes)) {
+            socket.close();
+            throw new IOException(user + " 获取 salt 失败：" + salt);
+        }
+        channel.send(Message.login(user, SecurityUtil.hashPasswordWithSalt(PASSWORD, bytes)));
+        Object result = channel.receive();
+        if (!"success".equals(result)) {
+            socket.close();
+            throw new IOException(user + " 在 " + node.id() + " 登录失败：" + result);
+        }
+        Session session = new Session(user, socket, channel);
+        session.startReading();
+        return session;
+    }
+
+    private static void register(SSLContext tls, Node node, String user) throws Exception {
+        try (Socket socket = connect(tls, node)) {
+            FramedChannel channel = FramedChannel.connect(socket.getInputStream(), socket.getOutputStream());
+            byte[] salt = SecurityUtil.generateSalt();
+            channel.send(Message.register(user, SecurityUtil.hashPasswordWithSalt(PASSWORD, salt), salt));
+            channel.receive(); // 用户已存在时注册失败，直接登录即可
+        }
+    }
+
+    private static Socket connect(SSLContext tls, Node node) throws IOException {
+        Socket socket = tls == null
+                ? new Socket()
+                : tls.getSocketFactory().createSocket();
+        socket.connect(new InetSocketAddress("127.0.0.1", node.port), 2000);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    /**
+     * 只信任当前目录下 keystore.p12 中的证书。
+     */
+    private static SSLContext clientContext(String password) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream("keystore.p12")) {
+            keyStore.load(in, password.toCharArray());
+        }
+        KeyStore trustStore = KeyStore.getInstance("PKCS12");
+        trustStore.load(null, null);
+        for (String alias : Collections.list(keyStore.aliases())) {
+            trustStore.setCertificateEntry(alias, keyStore.getCertificate(alias));
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    private static String randomHex() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    private static void deleteDir(Path dir) {
+        try (var paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException ignored) {}
+    }
+}
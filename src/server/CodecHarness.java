@@ -0,0 +1,279 @@
+// CodecHarness.java 位于 server 包中
+package server;
+
+import shared.FrameCodec;
+import shared.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.util.*;
+
+/**
+ * CodecHarness 检查分帧协议各版本编解码的正确性，并比较二进制编码与 Java 序列化的大小和速度。
+ *
+ * 依次进行：
+ * - 往返检查：每种消息类型（以及只能用 Java 序列化兜底的消息）分别用第 1 版、第 2 版和当前版本编码再解码，
+ *   解码结果必须与原消息相同；低于第 3 版时 history_batch 按逐条的 history 帧比较
+ * - 白名单检查：帧中的 Java 序列化数据含有白名单以外的类时，解码必须失败
+ * - 大小比较：几种常见消息在当前版本和第 1 版下的帧长度
+ * - 速度比较：同样几种消息每秒能编码、解码多少条（更细的耗时统计见 ChatBenchmark 的 codec.* 基准）
+ *
+ * 有检查失败时进程以退出码 1 结束。
+ *
+ * 用法：java -cp . server.CodecHarness
+ */
+public class CodecHarness {
+
+    // 速度比较中每种消息的测量时长（毫秒），之前先用同样的时长预热
+    private static final long MEASURE_MS = 1000;
+    private static final int[] VERSIONS = {FrameCodec.VERSION_SERIALIZED, FrameCodec.VERSION_BINARY, FrameCodec.VERSION};
+
+    /**
+     * 一次被测操作，返回值会被累加，避免被优化掉。
+     */
+    private interface Op {
+        long run() throws Exception;
+    }
+
+    private static final List<String> failures = new ArrayList<>();
+    private static int checks;
+    private static long sink; // 防止 JIT 消除编解码结果
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Object> samples = samples();
+        for (int version : VERSIONS) {
+            for (Map.Entry<String, Object> e : samples.entrySet()) {
+                check("第 " + version + " 版往返：" + e.getKey(), roundTrip(e.getValue(), version));
+            }
+        }
+        check("拒绝白名单以外的类（SERIALIZED 帧）", rejected(FrameCodec.VERSION));
+        check("拒绝白名单以外的类（第 1 版帧）", rejected(FrameCodec.VERSION_SERIALIZED));
+
+        Map<String, Message> typical = typical();
+        System.out.println();
+        System.out.printf("%-20s %10s %10s %8s%n", "消息", "二进制", "Java 序列化", "比例");
+        for (Map.Entry<String, Message> e : typical.entrySet()) {
+            int binary = FrameCodec.encode(e.getValue(), FrameCodec.VERSION).length;
+            int serialized = FrameCodec.encode(e.getValue(), FrameCodec.VERSION_SERIALIZED).length;
+            System.out.printf(Locale.ROOT, "%-20s %10d %10d %7.1f%%%n",
+                    e.getKey(), binary, serialized, binary * 100.0 / serialized);
+        }
+
+        System.out.println();
+        System.out.printf("%-20s %-12s %14s %14s%n", "消息", "格式", "编码 条/秒", "解码 条/秒");
+        for (Map.Entry<String, Message> e : typical.entrySet()) {
+            for (int version : new int[]{FrameCodec.VERSION, FrameCodec.VERSION_SERIALIZED}) {
+                Message message = e.getValue();
+                byte[] frame = FrameCodec.encode(message, version);
+                throughput(() -> FrameCodec.encode(message, version).length);
+                throughput(() -> FrameCodec.decode(frame, 4, frame.length - 4, version).hashCode());
+                double encode = throughput(() -> FrameCodec.encode(message, version).length);
+                double decode = throughput(() -> FrameCodec.decode(frame, 4, frame.length - 4, version).hashCode());
+                System.out.printf(Locale.ROOT, "%-20s %-12s %14.0f %14.0f%n", e.getKey(),
+                        version == FrameCodec.VERSION ? "binary" : "serialized", encode, decode);
+            }
+        }
+
+        System.out.printf("%n%d 项检查，%d 项失败（sink=%d）%n", checks, failures.size(), sink);
+        for (String failure : failures) {
+            System.out.println("  失败：" + failure);
+        }
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 每种消息类型一条，另外加上只能用 Java 序列化兜底的消息和纯文本回复。
+     */
+    private static Map<String, Object> samples() {
+        Map<String, Object> users = users(3);
+        List<String> lines = lines(5);
+        Map<String, Object> samples = new LinkedHashMap<>();
+        samples.put("text", "success");
+        samples.put("chat", withId(Message.chat("张三", "大家好"), 42L));
+        samples.put("chat.room", withId(Message.chat("张三", "房间里的消息", "room1"), 43L));
+        samples.put("chat.no_id", Message.chat("张三", "没有 id 的消息"));
+        samples.put("private", withId(Message.privateMsg("张三", "李四", "私信"), 44L));
+        samples.put("user_list", Message.userList(users));
+        samples.put("history", Message.history("[2025-06-12 02:30:45] [张三]：一条历史消息"));
+        samples.put("system", Message.system("系统消息"));
+        samples.put("login", Message.login("张三", "hash"));
+        samples.put("register", Message.register("张三", "hash", new byte[]{1, 2, 3}));
+        samples.put("getsalt", Message.getSalt("张三"));
+        samples.put("returnsalt", Message.returnSalt(new byte[16]));
+        samples.put("load_older", Message.loadOlder("100", "room1"));
+        samples.put("history_page", Message.historyPage(lines, "100", "room1"));
+        samples.put("history_batch", Message.historyBatch(lines, 99L, "90", null));
+        samples.put("history_batch.packed", Message.historyBatch(lines(200), 99L, "90", "room1"));
+        samples.put("offline_batch", Message.offlineBatch(lines));
+        samples.put("presence_snapshot", Message.presenceSnapshot(users, 7));
+        samples.put("presence_join", Message.presenceJoin("张三", 8));
+        samples.put("presence_leave", Message.presenceLeave("张三", 9));
+        samples.put("presence_batch", Message.presenceBatch(List.of("a", "b"), List.of("c"), 10));
+        samples.put("presence_sync", Message.presenceSync());
+        samples.put("session_token", Message.sessionToken("token"));
+        samples.put("resume", Message.resume("token", 42L));
+        samples.put("ack", Message.ack(42L));
+        samples.put("busy", Message.busy(1500));
+        samples.put("session_replaced", Message.sessionReplaced());
+        samples.put("join_room", Message.joinRoom("room1"));
+        samples.put("leave_room", Message.leaveRoom("room1"));
+        samples.put("room_snapshot", Message.roomSnapshot("room1", users));
+        samples.put("room_join", Message.roomJoin("room1", "张三"));
+        samples.put("room_leave", Message.roomLeave("room1", "张三"));
+
+        // 字段与布局不一致，只能用 Java 序列化兜底
+        Message extra = Message.chat("张三", "带有额外字段");
+        extra.data.put("color", "red");
+        extra.data.put("size", 12);
+        samples.put("serialized.extra_field", extra);
+        Message binary = Message.system("带有二进制数据");
+        binary.binaryData.put("file", new byte[]{4, 5, 6});
+        samples.put("serialized.binary_data", binary);
+        Message unknown = new Message();
+        unknown.type = "unknown_type";
+        unknown.data.put("list", new ArrayList<>(List.of("x", "y")));
+        unknown.data.put("flag", true);
+        samples.put("serialized.unknown_type", unknown);
+        return samples;
+    }
+
+    /**
+     * 大小和速度比较使用的几种常见消息。
+     */
+    private static Map<String, Message> typical() {
+        Map<String, Message> typical = new LinkedHashMap<>();
+        typical.put("chat", withId(Message.chat("张三", "大家好，今天下午三点在会议室开会，请准时参加。"), 123456789L));
+        typical.put("private", withId(Message.privateMsg("张三", "李四", "会议材料已经发到你的邮箱了"), 123456790L));
+        typical.put("presence_snapshot", Message.presenceSnapshot(users(200), 12345));
+        typical.put("history_batch", Message.historyBatch(lines(50), 123456789L, "123456700"));
+        return typical;
+    }
+
+    /**
+     * 编码后逐帧解码，与原消息比较。
+     */
+    private static boolean roundTrip(Object original, int version) throws IOException, ClassNotFoundException {
+        byte[] bytes = FrameCodec.encode(original, version);
+        List<Object> decoded = new ArrayList<>();
+        int offset = 0;
+        while (offset < bytes.length) {
+            int length = ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                    | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+            decoded.add(FrameCodec.decode(bytes, offset + 4, length, version));
+            offset += 4 + length;
+        }
+
+        List<Object> expected = version < FrameCodec.VERSION_BATCH && Message.isHistoryBatch(original)
+                ? new ArrayList<>(Message.splitHistoryBatch((Message) original))
+                : List.of(original);
+        if (decoded.size() != expected.size()) {
+            return false;
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            if (!same(expected.get(i), decoded.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 比较两条消息。二进制编码会把缺少的可选字段解码为 null，所以不存在的字段与值为 null 的字段视为相同。
+     */
+    private static boolean same(Object a, Object b) {
+        if (!(a instanceof Message x) || !(b instanceof Message y)) {
+            return Objects.equals(a, b);
+        }
+        if (!Objects.equals(x.type, y.type) || !sameFields(x.data, y.data)) {
+            return false;
+        }
+        return sameFields(new HashMap<>(x.binaryData), new HashMap<>(y.binaryData));
+    }
+
+    private static boolean sameFields(Map<String, ?> a, Map<String, ?> b) {
+        Set<String> keys = new HashSet<>(a.keySet());
+        keys.addAll(b.keySet());
+        for (String key : keys) {
+            if (!Objects.deepEquals(a.get(key), b.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 构造一个含有白名单以外的类（java.util.Date）的帧，解码时应当被拒绝。
+     */
+    private static boolean rejected(int version) throws IOException {
+        Message message = Message.system("带有不允许的类");
+        message.data.put("when", new Date());
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (version >= FrameCodec.VERSION_BINARY) {
+            body.write(127); // BinaryCodec 的 SERIALIZED 类型
+        }
+        try (ObjectOutputStream oos = new ObjectOutputStream(body)) {
+            oos.writeObject(message);
+        }
+        byte[] bytes = body.toByteArray();
+        try {
+            FrameCodec.decode(bytes, 0, bytes.length, version);
+            return false;
+        } catch (InvalidClassException e) {
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 重复执行 MEASURE_MS 毫秒，返回每秒执行的次数。
+     */
+    private static double throughput(Op op) throws Exception {
+        long start = System.nanoTime();
+        long deadline = start + MEASURE_MS * 1_000_000;
+        long count = 0;
+        long now;
+        do {
+            for (int i = 0; i < 100; i++) {
+                sink += op.run();
+            }
+            count += 100;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return count * 1e9 / (now - start);
+    }
+
+    private static void check(String name, boolean passed) {
+        checks++;
+        System.out.println((passed ? "通过：" : "失败：") + name);
+        if (!passed) {
+            failures.add(name);
+        }
+    }
+
+    private static Message withId(Message message, long id) {
+        message.data.put("id", id);
+        return message;
+    }
+
+    private static Map<String, Object> users(int count) {
+        Map<String, Object> users = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            users.put("user" + i, true);
+        }
+        return users;
+    }
+
+    private static List<String> lines(int count) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            lines.add("[2025-06-12 02:30:45] [user" + i + "]：第 " + i + " 条历史消息，内容长度和普通聊天差不多");
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,225 @@
+// ConnectionBenchmark.java 位于 server 包中
+package server;
+
+import shared.FramedChannel;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConnectionBenchmark 比较三种运行模式（thread / virtual / nio）下每个空闲连接占用的内存和操作系统线程数。
+ *
+ * 每种模式启动一个独立的 Server 进程（与 ClusterHarness 相同：在临时目录中运行，server.properties 由当前目录下的配置复制而来，
+ * 只改成指定的端口和运行模式，当前目录下有 keystore.p12 时一并复制），然后：
+ * - 等服务器启动完成，触发一次 GC（jcmd GC.run），记录进程的常驻内存（/proc/<pid>/status 的 VmRSS）和线程数
+ * - 建立 N 个连接（TLS 握手 + 分帧协议握手头，不登录），之后保持空闲
+ * - 再次触发 GC，记录常驻内存和线程数；两次的差除以 N 就是每个连接的开销
+ * 所有连接必须在服务器的读超时（60 秒）之内建立并测量完，连接数很大时请分多次运行。
+ *
+ * 需要 Linux（读取 /proc）；找不到 jcmd 时不触发 GC，结果会偏大。
+ *
+ * 用法：java -cp <与服务器相同的类路径> server.ConnectionBenchmark [连接数] [thread|virtual|nio ...] [--port=端口]
+ */
+public class ConnectionBenchmark {
+
+    private static final long WAIT_MS = 15000;
+    // 建立连接之后、测量之前等待服务器线程稳定的时间（毫秒）
+    private static final long SETTLE_MS = 2000;
+
+    /**
+     * 一次测量：常驻内存（KB）和线程数。
+     */
+    private record Sample(long rssKb, long threads) {}
+
+    public static void main(String[] args) throws Exception {
+        int count = 1000;
+        int port = 18500;
+        List<String> modes = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.equals("thread") || arg.equals("virtual") || arg.equals("nio")) {
+                modes.add(arg);
+            } else {
+                count = Integer.parseInt(arg);
+            }
+        }
+        if (modes.isEmpty()) {
+            modes = List.of("thread", "virtual", "nio");
+        }
+        if (!new File("/proc/self/status").exists()) {
+            System.out.println("需要 Linux 的 /proc 文件系统");
+            return;
+        }
+
+        Properties base = new Properties();
+        try (InputStream in = new FileInputStream("server.properties")) {
+            base.load(in);
+        }
+        String keyPassword = base.getProperty("ssl.keypassword", "");
+        SSLContext tls = keyPassword.isEmpty() ? null : clientContext(keyPassword);
+
+        Map<String, Sample[]> results = new LinkedHashMap<>();
+        for (String mode : modes) {
+            Path dir = Files.createTempDirectory("connection-benchmark-" + mode);
+            writeConfig(dir, base, port, mode);
+            Process process = start(dir, port);
+            List<Socket> sockets = new ArrayList<>();
+            try {
+                Thread.sleep(SETTLE_MS);
+                Sample before = sample(process);
+                for (int i = 0; i < count; i++) {
+                    Socket socket = connect(tls, port);
+                    sockets.add(socket);
+                    FramedChannel.connect(socket.getInputStream(), socket.getOutputStream());
+                }
+                Thread.sleep(SETTLE_MS);
+                Sample after = sample(process);
+                results.put(mode, new Sample[]{before, after});
+                System.out.printf("%s：%d 个连接，常驻内存 %d KB -> %d KB，线程 %d -> %d%n",
+                        mode, count, before.rssKb, after.rssKb, before.threads, after.threads);
+            } finally {
+                for (Socket socket : sockets) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {}
+                }
+                stop(process);
+            }
+            deleteDir(dir);
+        }
+
+        System.out.println();
+        System.out.printf("%-8s %14s %12s%n", "模式", "每连接内存", "线程数");
+        for (Map.Entry<String, Sample[]> e : results.entrySet()) {
+            Sample before = e.getValue()[0];
+            Sample after = e.getValue()[1];
+            System.out.printf(Locale.ROOT, "%-8s %11.1f KB %12d%n",
+                    e.getKey(), (double) (after.rssKb - before.rssKb) / count, after.threads);
+        }
+    }
+
+    /**
+     * 在临时目录中写入配置，并复制证书。
+     */
+    private static void writeConfig(Path dir, Properties base, int port, String mode) throws IOException {
+        Properties prop = new Properties();
+        prop.putAll(base);
+        prop.setProperty("port", String.valueOf(port));
+        prop.setProperty("server.mode", mode);
+        prop.setProperty("metrics.port", "0");
+        prop.remove("cluster.node.id");
+        try (OutputStream out = new FileOutputStream(dir.resolve("server.properties").toFile())) {
+            prop.store(out, "ConnectionBenchmark " + mode);
+        }
+        File keyStore = new File("keystore.p12");
+        if (keyStore.exists()) {
+            Files.copy(keyStore.toPath(), dir.resolve("keystore.p12"), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 用与当前进程相同的 JVM 和类路径启动服务器，等待客户端端口可以连接。
+     */
+    private static Process start(Path dir, int port) throws Exception {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "server.Server")
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(dir.resolve("server.log").toFile()))
+                .start();
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            if (!process.isAlive()) {
+                throw new IOException("服务器启动失败，见 " + dir.resolve("server.log"));
+            }
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("127.0.0.1", port), 500);
+                return process;
+            } catch (IOException e) {
+                Thread.sleep(200);
+            }
+        }
+        stop(process);
+        throw new IOException("服务器没有在 " + WAIT_MS + " ms 内开始监听");
+    }
+
+    private static void stop(Process process) {
+        process.destroy();
+        try {
+            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * 触发一次 GC，然后读取进程的常驻内存和线程数。
+     */
+    private static Sample sample(Process process) throws Exception {
+        Path jcmd = Path.of(System.getProperty("java.home"), "bin", "jcmd");
+        if (Files.exists(jcmd)) {
+            new ProcessBuilder(jcmd.toString(), String.valueOf(process.pid()), "GC.run")
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start()
+                    .waitFor(30, TimeUnit.SECONDS);
+        }
+        long rss = 0;
+        long threads = 0;
+        for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(process.pid()), "status"))) {
+            if (line.startsWith("VmRSS:")) {
+                rss = Long.parseLong(line.replaceAll("\\D", ""));
+            } else if (line.startsWith("Threads:")) {
+                threads = Long.parseLong(line.replaceAll("\\D", ""));
+            }
+        }
+        return new Sample(rss, threads);
+    }
+
+    private static Socket connect(SSLContext tls, int port) throws IOException {
+        Socket socket = tls == null
+                ? new Socket()
+                : tls.getSocketFactory().createSocket();
+        socket.connect(new InetSocketAddress("127.0.0.1", port), 2000);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    /**
+     * 只信任当前目录下 keystore.p12 中的证书。
+     */
+    private static SSLContext clientContext(String password) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream("keystore.p12")) {
+            keyStore.load(in, password.toCharArray());
+        }
+        KeyStore trustStore = KeyStore.getInstance("PKCS12");
+        trustStore.load(null, null);
+        for (String alias : Collections.list(keyStore.aliases())) {
+            trustStore.setCertificateEntry(alias, keyStore.getCertificate(alias));
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    private static void deleteDir(Path dir) {
+        try (var paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException ignored) {}
+    }
+}
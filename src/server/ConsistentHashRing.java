@@ -0,0 +1,79 @@
+// ConsistentHashRing.java 位于 server 包中
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * ConsistentHashRing 是带虚拟节点的一致性哈希环，把用户名映射到集群中的一个节点（该用户的“归属节点”）。
+ *
+ * 每个节点在环上放置 virtualNodes 个点，用户名哈希后顺时针找到的第一个点所属的节点就是归属节点。
+ * 节点加入或离开时只有大约 1/N 的用户名改变归属，其余用户名的归属节点不变；
+ * 虚拟节点让各节点分到的用户数接近均匀（每个节点 128 个虚拟节点时偏差通常在 10% 以内）。
+ *
+ * 环是不可变的：节点变化时创建新的环，查找时不需要加锁。
+ */
+public class ConsistentHashRing {
+    private final long[] points;   // 环上的点，从小到大排列
+    private final String[] owners; // 每个点所属的节点
+    private final Set<String> nodes;
+
+    /**
+     * @param nodes        环上的节点
+     * @param virtualNodes 每个节点放置的点数
+     */
+    public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        int perNode = Math.max(1, virtualNodes);
+        this.nodes = Set.copyOf(nodes);
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String node : new TreeSet<>(this.nodes)) {
+            for (int i = 0; i < perNode; i++) {
+                // 极少数哈希冲突时保留标识较小的节点，各节点建出的环完全相同
+                ring.putIfAbsent(hash(node + "#" + i), node);
+            }
+        }
+        points = new long[ring.size()];
+        owners = new String[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, String> point : ring.entrySet()) {
+            points[i] = point.getKey();
+            owners[i] = point.getValue();
+            i++;
+        }
+    }
+
+    /**
+     * 用户名的归属节点；环上没有节点时返回 null。
+     */
+    public String owner(String key) {
+        if (points.length == 0) {
+            return null;
+        }
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    public Set<String> nodes() {
+        return nodes;
+    }
+
+    /**
+     * 64 位 FNV-1a 哈希，再用 MurmurHash3 的 fmix64 打散低位的规律。
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
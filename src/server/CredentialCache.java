@@ -0,0 +1,117 @@
+// CredentialCache.java 位于 server 包中
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * CredentialCache 是用户凭据记录（盐值、密码哈希、是否启用）的内存缓存，位于 UserManager 的数据库查询之前。
+ *
+ * - 容量有限，超出时淘汰最久未使用的记录
+ * - 每条记录在写入缓存一段时间（TTL）后过期，之后重新查询数据库
+ * - 按小写后的用户名查找：users.username 不区分大小写，"Alice" 和 "alice" 共用一条记录；
+ *   小写之后仍然不同、但数据库认为相同的写法（例如全角字符）各占一条，失效时按记录中表里的用户名全部清除
+ *
+ * 一次登录（getsalt + login）只在第一次查询数据库，之后直接命中缓存；
+ * 大量用户同时重连时，已经缓存的用户不会再给数据库带来压力。
+ */
+public class CredentialCache {
+
+    /**
+     * 缓存的一条记录。
+     *
+     * @param credentials 用户凭据
+     * @param expiresAt   过期时间（System.nanoTime）
+     */
+    private record Entry(UserManager.Credentials credentials, long expiresAt) {}
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Entry> entries;
+    private final long ttlNanos;
+
+    // 命中统计
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity 最多缓存的用户数
+     * @param ttlMs    每条记录的有效时间（毫秒）
+     */
+    public CredentialCache(int capacity, long ttlMs) {
+        int max = Math.max(1, capacity);
+        this.ttlNanos = Math.max(1, ttlMs) * 1_000_000L;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    /**
+     * 取出未过期的记录。
+     *
+     * @return 没有缓存或已过期时返回 null
+     */
+    public UserManager.Credentials get(String username) {
+        lock.lock();
+        try {
+            String key = key(username);
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+                hits.incrementAndGet();
+                return entry.credentials;
+            }
+            if (entry != null) {
+                entries.remove(key);
+            }
+            misses.incrementAndGet();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 缓存一条查询结果。
+     *
+     * @param username    查询时使用的用户名
+     * @param credentials 查到的凭据，其中是表中实际保存的用户名
+     */
+    public void put(String username, UserManager.Credentials credentials) {
+        lock.lock();
+        try {
+            entries.put(key(username), new Entry(credentials, System.nanoTime() + ttlNanos));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 使某个用户的缓存记录失效，下次查询会重新读取数据库。
+     * 除了这个写法本身，记录中表里的用户名与它相同（不区分大小写）的记录也一并清除。
+     */
+    public void invalidate(String username) {
+        lock.lock();
+        try {
+            entries.remove(key(username));
+            entries.values().removeIf(entry -> entry.credentials.username().equalsIgnoreCase(username));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 返回缓存命中统计。
+     */
+    public String stats() {
+        return "命中=" + hits.get() + " 未命中=" + misses.get();
+    }
+}
@@ -5,6 +5,11 @@ package server;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 /**
  * DBUtil 是一个数据库工具类，专门用来管理数据库连接。
  *
@@ -12,10 +17,19 @@ import com.zaxxer.hikari.HikariDataSource;
  * - 初始化数据库连接池（使用高性能的 HikariCP）
  * - 提供数据库连接给其他类使用（如 ChatLogDAO）
  * - 在服务器关闭时释放所有数据库资源
+ *
+ * 连接池的大小、超时和语句缓存都从 server.properties 的 db.pool.* / db.stmt.cache.* 读取，
+ * 连接池的指标（活跃、空闲、等待中的连接数，借用等待时间和占用时间的分布）由 PoolMetrics 收集。
  */
 public class DBUtil {
     // 数据源对象：HikariCP 的核心组件，用来管理数据库连接池
     private static HikariDataSource dataSource;
+    // 连接池的最大连接数；登录线程池的大小与它相同
+    private static int maxPoolSize = 10;
+    // 连接池指标
+    private static final PoolMetrics metrics = new PoolMetrics();
+    // 定期输出连接池指标的线程
+    private static ScheduledExecutorService reporter;
 
     /**
      * 初始化数据库连接池。
@@ -24,8 +38,9 @@ public class DBUtil {
      * @param dbUrl      数据库地址，例如 jdbc:mysql://localhost:3306/chatdb
      * @param dbUser     数据库用户名，比如 root
      * @param dbPassword 数据库密码
+     * @param prop       server.properties 中的其他配置，连接池参数未配置时使用默认值
      */
-    public static void init(String dbUrl, String dbUser, String dbPassword) {
+    public static void init(String dbUrl, String dbUser, String dbPassword, Properties prop) {
         // 创建 HikariCP 的配置对象，用于设置连接池参数
         HikariConfig config = new HikariConfig();
 
@@ -37,25 +52,76 @@ public class DBUtil {
         // 以下是一些优化数据库连接性能的高级配置：
 
         // 启用预编译语句缓存，提高执行效率
-        config.addDataSourceProperty("cachePrepStmts", "true");
+        config.addDataSourceProperty("cachePrepStmts", prop.getProperty("db.stmt.cache.enabled", "true"));
+        // 服务器端预编译语句（MySQL 驱动默认在客户端拼接 SQL）
+        config.addDataSourceProperty("useServerPrepStmts", prop.getProperty("db.stmt.server", "false"));
         // 预编译语句缓存的最大数量
-        config.addDataSourceProperty("prepStmtCacheSize", "250");
+        config.addDataSourceProperty("prepStmtCacheSize", prop.getProperty("db.stmt.cache.size", "250"));
         // 单条 SQL 语句最大长度限制
-        config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        config.addDataSourceProperty("prepStmtCacheSqlLimit", prop.getProperty("db.stmt.cache.sql.limit", "2048"));
+        // 把 JDBC 批处理改写成一条多行 INSERT（聊天记录批量写入使用）
+        config.addDataSourceProperty("rewriteBatchedStatements", "true");
 
         // 设置连接池大小
-        config.setMaximumPoolSize(10);         // 最多同时有10个连接
-        config.setMinimumIdle(2);              // 至少保留2个空闲连接
-        config.setIdleTimeout(30000);          // 空闲连接最多保持30秒
-        config.setMaxLifetime(1800000);        // 每个连接最多存活30分钟
+        maxPoolSize = Integer.parseInt(prop.getProperty("db.pool.max.size", "10"));
+        config.setPoolName("chatdb");
+        config.setMaximumPoolSize(maxPoolSize); // 最多同时有 maxPoolSize 个连接（默认 10 个）
+        config.setMinimumIdle(Integer.parseInt(prop.getProperty("db.pool.min.idle", "2"))); // 至少保留的空闲连接数
+        config.setIdleTimeout(Long.parseLong(prop.getProperty("db.pool.idle.timeout.ms", "30000")));    // 空闲连接最多保持30秒
+        config.setMaxLifetime(Long.parseLong(prop.getProperty("db.pool.max.lifetime.ms", "1800000"))); // 每个连接最多存活30分钟
+        // 借用连接最多等待的时间，超时后 getConnection 抛出异常
+        config.setConnectionTimeout(Long.parseLong(prop.getProperty("db.pool.connection.timeout.ms", "30000")));
+        // 定期检测空闲连接，防止被数据库或防火墙断开（0 表示不检测）
+        config.setKeepaliveTime(Long.parseLong(prop.getProperty("db.pool.keepalive.ms", "0")));
 
         // 设置连接测试相关参数
-        config.setConnectionTestQuery("SELECT 1"); // 用这个 SQL 测试连接是否有效
-        config.setValidationTimeout(3000);     // 验证连接是否有效的超时时间：3秒
-        config.setLeakDetectionThreshold(5000); // 如果连接长时间未归还，提示泄露警告（5秒）
+        // 默认不设置测试语句：JDBC4 驱动使用 Connection.isValid 检测连接，不需要每次借出时多一次 SELECT 1 往返
+        String testQuery = prop.getProperty("db.pool.test.query", "").trim();
+        if (!testQuery.isEmpty()) {
+            config.setConnectionTestQuery(testQuery); // 只有不支持 JDBC4 的旧驱动才需要
+        }
+        config.setValidationTimeout(Long.parseLong(prop.getProperty("db.pool.validation.timeout.ms", "3000"))); // 验证连接是否有效的超时时间：3秒
+        config.setLeakDetectionThreshold(Long.parseLong(prop.getProperty("db.pool.leak.detection.ms", "5000"))); // 如果连接长时间未归还，提示泄露警告（5秒）
+
+        // 收集连接池指标
+        config.setMetricsTrackerFactory(metrics);
 
         // 根据上面的配置创建连接池对象
         dataSource = new HikariDataSource(config);
+
+        // 把连接池指标登记到服务器的指标注册表
+        Metrics.register("db.pool.acquire", metrics.acquireTime());
+        Metrics.register("db.pool.usage", metrics.usageTime());
+        Metrics.gauge("db.pool.active", () -> metrics.connections()[0]);
+        Metrics.gauge("db.pool.idle", () -> metrics.connections()[1]);
+        Metrics.gauge("db.pool.pending", () -> metrics.connections()[2]);
+        Metrics.gauge("db.pool.timeouts", metrics::timeouts);
+
+        // 定期把连接池指标写入日志（0 表示不输出）
+        long interval = Long.parseLong(prop.getProperty("db.pool.metrics.log.s", "60"));
+        if (interval > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "db-pool-metrics");
+                t.setDaemon(true);
+                return t;
+            });
+            reporter.scheduleAtFixedRate(() -> Server.logger.info("数据库连接池：" + metrics.stats()),
+                    interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 返回连接池的指标。
+     */
+    public static PoolMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * 返回连接池的最大连接数。
+     */
+    public static int getMaxPoolSize() {
+        return maxPoolSize;
     }
 
     /**
@@ -76,6 +142,9 @@ public class DBUtil {
      * 通常在服务器关闭时调用这个方法。
      */
     public static void close() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
         if (dataSource != null && !dataSource.isClosed()) {
             dataSource.close(); // 关闭连接池，释放所有连接资源
         }
@@ -0,0 +1,131 @@
+// HandshakeBenchmark.java 位于 server 包中
+package server;
+
+import javax.net.ssl.*;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HandshakeBenchmark 比较完整 TLS 握手和会话复用握手的耗时。
+ *
+ * 在本机启动一个使用服务器证书的 TLS 监听端口，分别进行两组连接：
+ * - 完整握手：每次连接都使用新的客户端 SSLContext，没有可以复用的会话
+ * - 复用握手：所有连接共享同一个客户端 SSLContext，第一次之后都带着会话票据握手
+ * 每组输出客户端看到的平均握手延迟，以及服务器线程平均花费的 CPU 时间。
+ *
+ * 用法：java -cp . server.HandshakeBenchmark keystore.p12 证书密码 [连接次数] [TLS 版本]
+ */
+public class HandshakeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("用法：java -cp . server.HandshakeBenchmark keystore.p12 证书密码 [连接次数] [TLSv1.3|TLSv1.2]");
+            return;
+        }
+        char[] password = args[1].toCharArray();
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        String protocol = args.length > 3 ? args[3] : "TLSv1.3";
+
+        // 服务器端配置与 Server 相同
+        TlsSessions.enableTickets(true);
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(args[0])) {
+            keyStore.load(in, password);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, password);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+        TlsSessions.configure(serverContext, 20480, 3600);
+
+        // 客户端只信任这张服务器证书
+        KeyStore trustStore = KeyStore.getInstance("PKCS12");
+        trustStore.load(null, null);
+        for (String alias : Collections.list(keyStore.aliases())) {
+            trustStore.setCertificateEntry(alias, keyStore.getCertificate(alias));
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+
+        AtomicLong serverCpu = new AtomicLong();
+        try (SSLServerSocket serverSocket = (SSLServerSocket) serverContext.getServerSocketFactory().createServerSocket(0)) {
+            serverSocket.setEnabledProtocols(new String[]{protocol});
+            Thread acceptor = new Thread(() -> serve(serverSocket, serverCpu), "handshake-server");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            int port = serverSocket.getLocalPort();
+
+            // 预热 JIT
+            run(port, protocol, tmf, count, false, serverCpu);
+            run(port, protocol, tmf, count, true, serverCpu);
+
+            report("完整握手", run(port, protocol, tmf, count, false, serverCpu), count);
+            report("复用握手", run(port, protocol, tmf, count, true, serverCpu), count);
+        }
+    }
+
+    /**
+     * 进行 count 次连接。
+     *
+     * @return {客户端握手总耗时, 服务器 CPU 总耗时, 复用成功的次数}（纳秒）
+     */
+    private static long[] run(int port, String protocol, TrustManagerFactory tmf, int count, boolean resume,
+                              AtomicLong serverCpu) throws Exception {
+        SSLContext shared = newClientContext(tmf);
+        long resumed = 0;
+        long cpuBefore = serverCpu.get();
+        long elapsed = 0;
+        for (int i = 0; i < count; i++) {
+            SSLContext context = resume ? shared : newClientContext(tmf);
+            try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port)) {
+                socket.setEnabledProtocols(new String[]{protocol});
+                socket.setTcpNoDelay(true);
+                long connectedAt = System.currentTimeMillis();
+                long start = System.nanoTime();
+                socket.startHandshake();
+                // 读取服务器发来的一个字节，保证 TLS 1.3 的会话票据已经被客户端处理
+                socket.getInputStream().read();
+                elapsed += System.nanoTime() - start;
+
+                // 复用的会话是在之前的连接中创建的
+                if (socket.getSession().getCreationTime() < connectedAt) {
+                    resumed++;
+                }
+            }
+        }
+        return new long[]{elapsed, serverCpu.get() - cpuBefore, resumed};
+    }
+
+    private static SSLContext newClientContext(TrustManagerFactory tmf) throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    /**
+     * 服务器线程：完成握手后发送一个字节并关闭连接，累计握手花费的 CPU 时间。
+     */
+    private static void serve(SSLServerSocket serverSocket, AtomicLong serverCpu) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        while (!serverSocket.isClosed()) {
+            try (SSLSocket socket = (SSLSocket) serverSocket.accept()) {
+                socket.setTcpNoDelay(true);
+                long start = threads.getCurrentThreadCpuTime();
+                socket.startHandshake();
+                socket.getOutputStream().write(1);
+                socket.getOutputStream().flush();
+                serverCpu.addAndGet(threads.getCurrentThreadCpuTime() - start);
+            } catch (Exception ignored) {}
+        }
+    }
+
+    private static void report(String name, long[] result, int count) {
+        System.out.printf("%s：%d 次，平均延迟 %.3f ms，服务器平均 CPU %.3f ms，会话复用 %d 次%n",
+                name, count, result[0] / 1e6 / count, result[1] / 1e6 / count, result[2]);
+    }
+}
@@ -0,0 +1,104 @@
+// LatencyHistogram.java 位于 server 包中
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram 是一个无锁、记录时不分配内存的耗时直方图（类似 HdrHistogram 的对数-线性分桶）。
+ *
+ * 每个 2 的幂区间再平均分成 2^SUB_BITS 个桶，任何数值的相对误差不超过 1/2^SUB_BITS（约 12.5%），
+ * 覆盖 0 到 Long.MAX_VALUE 纳秒只需要固定的 (64 - SUB_BITS) × 2^SUB_BITS 个计数器。
+ * 记录一次耗时只是几次原子自增，可以放在热点路径上；百分位数在读取统计时按桶计算。
+ */
+public class LatencyHistogram {
+    // 每个 2 的幂区间内的桶数 = 2^SUB_BITS
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一次耗时（纳秒），负数按 0 记录。
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * 平均耗时（纳秒）。
+     */
+    public double mean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * 估算百分位数（纳秒），返回所在桶的上界，不会低估。
+     *
+     * @param percentile 0 到 100 之间
+     */
+    public long percentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(n * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * 返回一行摘要（毫秒），例如“次数=120 平均=1.25ms p50=1.00ms p99=4.50ms 最大=6.10ms”。
+     */
+    public String summary() {
+        return String.format("次数=%d 平均=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms 最大=%.2fms",
+                count(), mean() / 1e6, percentile(50) / 1e6, percentile(90) / 1e6, percentile(99) / 1e6, max() / 1e6);
+    }
+
+    // 小于 SUB_COUNT 的数值每个值一个桶；之后每个 2 的幂区间分成 SUB_COUNT 个桶
+    private static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // value 位于 [2^exponent, 2^(exponent+1))
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    // 桶内的最大值
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        int sub = bucket % SUB_COUNT;
+        long lower = (1L << exponent) + ((long) sub << (exponent - SUB_BITS));
+        long width = 1L << (exponent - SUB_BITS);
+        return lower + width - 1 < 0 ? Long.MAX_VALUE : lower + width - 1;
+    }
+}
@@ -0,0 +1,144 @@
+// LoopbackBus.java 位于 server 包中
+package server;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+/**
+ * LoopbackBus 是进程内的 ClusterBus 实现：连接到同一个 Hub 的总线互相收发事件，用于测试集群逻辑。
+ *
+ * 事件同样经过 ClusterEvent 的编码和解码，与 TcpClusterBus 传递的内容完全一致。
+ * 每个总线用一个单线程执行器依次回调收到的事件，所以同一个节点发来的事件按发送顺序到达。
+ * 发布事件和节点加入、离开都在 Hub 的锁内完成，保证新节点先收到快照，再收到之后发布的事件。
+ */
+public class LoopbackBus implements ClusterBus {
+
+    /**
+     * 一组互相连接的总线。
+     */
+    public static class Hub {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<String, LoopbackBus> members = new LinkedHashMap<>();
+    }
+
+    private final Hub hub;
+    private final String nodeId;
+    private final ExecutorService inbox;
+    private volatile Listener listener;
+
+    public LoopbackBus(Hub hub, String nodeId) {
+        this.hub = hub;
+        this.nodeId = nodeId;
+        this.inbox = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-loopback-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        this.listener = listener;
+        hub.lock.lock();
+        try {
+            if (hub.members.containsKey(nodeId)) {
+                throw new IOException("节点标识重复: " + nodeId);
+            }
+            List<ClusterEvent> mine = listener.snapshot();
+            for (LoopbackBus other : hub.members.values()) {
+                for (ClusterEvent event : mine) {
+                    other.deliver(nodeId, event);
+                }
+                for (ClusterEvent event : other.listener.snapshot()) {
+                    deliver(other.nodeId, event);
+                }
+            }
+            hub.members.put(nodeId, this);
+        } finally {
+            hub.lock.unlock();
+        }
+    }
+
+    @Override
+    public void publish(ClusterEvent event) {
+        hub.lock.lock();
+        try {
+            for (LoopbackBus other : hub.members.values()) {
+                if (other != this) {
+                    other.deliver(nodeId, event);
+                }
+            }
+        } finally {
+            hub.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean send(String node, ClusterEvent event) {
+        hub.lock.lock();
+        try {
+            LoopbackBus other = hub.members.get(node);
+            if (other == null || other == this) {
+                return false;
+            }
+            other.deliver(nodeId, event);
+            return true;
+        } finally {
+            hub.lock.unlock();
+        }
+    }
+
+    @Override
+    public Set<String> peers() {
+        hub.lock.lock();
+        try {
+            Set<String> peers = new HashSet<>(hub.members.keySet());
+            peers.remove(nodeId);
+            return peers;
+        } finally {
+            hub.lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        hub.lock.lock();
+        try {
+            if (hub.members.remove(nodeId, this)) {
+                for (LoopbackBus other : hub.members.values()) {
+                    other.inbox.execute(() -> other.listener.onPeerDown(nodeId));
+                }
+            }
+        } finally {
+            hub.lock.unlock();
+        }
+        inbox.shutdown();
+    }
+
+    // 调用者需持有 hub.lock
+    private void deliver(String from, ClusterEvent event) {
+        byte[] body;
+        try {
+            body = event.encode();
+        } catch (IOException e) {
+            Server.logger.log(Level.SEVERE, "编码集群事件失败", e);
+            return;
+        }
+        inbox.execute(() -> {
+            try {
+                listener.onEvent(from, ClusterEvent.decode(body));
+            } catch (Exception e) {
+                Server.logger.log(Level.WARNING, "处理节点 " + from + " 的集群事件失败", e);
+            }
+        });
+    }
+}
@@ -0,0 +1,240 @@
+// Metrics.java 位于 server 包中
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics 是服务器的指标注册表，以及查看指标的本地 HTTP 接口。
+ *
+ * 指标分三种：
+ * - 计量器（Meter）：累计次数 + 最近 1 分钟的每秒速率，例如各类消息的收到次数
+ * - 直方图（LatencyHistogram）：耗时分布，例如广播耗时、数据库写入耗时、登录耗时
+ * - 仪表（gauge）：读取时才计算的当前值，例如队列长度、连接数
+ *
+ * 热点路径上只做原子自增，不分配内存：计量器和直方图在启动时创建并保存在字段中，
+ * 按消息类型计数时只查找预先登记的类型，未知类型统一计入 other，客户端无法让注册表无限增长。
+ *
+ * 启动 HTTP 接口后（默认只监听 127.0.0.1）：
+ * - GET /stats       纯文本，每行一个指标
+ * - GET /stats.json  JSON 格式
+ */
+public class Metrics {
+
+    /**
+     * 计量器：累计次数，以及每 TICK_SECONDS 秒更新一次的 1 分钟指数加权平均速率（与 Unix load average 相同的算法）。
+     */
+    public static class Meter {
+        private final LongAdder count = new LongAdder();
+        private long lastCount;        // 上一次更新速率时的累计次数（只在定时线程中访问）
+        private volatile double rate;  // 每秒次数
+        private volatile boolean initialized;
+
+        public void mark() {
+            count.increment();
+        }
+
+        public void mark(long n) {
+            count.add(n);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        /**
+         * 最近 1 分钟的平均速率（次/秒）。
+         */
+        public double rate() {
+            return rate;
+        }
+
+        private void tick() {
+            long current = count.sum();
+            double instant = (double) (current - lastCount) / TICK_SECONDS;
+            lastCount = current;
+            if (initialized) {
+                rate += ALPHA * (instant - rate);
+            } else {
+                rate = instant;
+                initialized = true;
+            }
+        }
+    }
+
+    // 速率的更新间隔（秒）以及 1 分钟指数加权平均的系数
+    private static final int TICK_SECONDS = 5;
+    private static final double ALPHA = 1 - Math.exp(-TICK_SECONDS / 60.0);
+    // 客户端可能发来的消息类型，其余类型计入 other
+    private static final String[] MESSAGE_TYPES = {
+            "chat", "private", "load_older", "presence_sync", "join_room", "leave_room",
+            "getsalt", "register", "login", "resume"
+    };
+
+    private static final ConcurrentHashMap<String, Meter> meters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    // 按消息类型的计量器，启动时创建，之后只读
+    private static final Map<String, Meter> messageMeters = new ConcurrentHashMap<>();
+    private static final Meter otherMessages = meter("messages.in.other");
+    private static final long startedAt = System.currentTimeMillis();
+
+    static {
+        for (String type : MESSAGE_TYPES) {
+            messageMeters.put(type, meter("messages.in." + type));
+        }
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-ticker");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(() -> meters.values().forEach(Meter::tick),
+                TICK_SECONDS, TICK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 取得（或创建）一个计量器。应在启动时调用并保存结果，不要在热点路径上按名字查找。
+     */
+    public static Meter meter(String name) {
+        return meters.computeIfAbsent(name, n -> new Meter());
+    }
+
+    /**
+     * 取得（或创建）一个直方图。应在启动时调用并保存结果。
+     */
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * 登记一个已有的直方图（例如连接池指标中的直方图）。
+     */
+    public static void register(String name, LatencyHistogram histogram) {
+        histograms.put(name, histogram);
+    }
+
+    /**
+     * 登记一个仪表，读取指标时调用 supplier 取得当前值。
+     */
+    public static void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * 记录收到一条客户端消息。
+     */
+    public static void markMessage(String type) {
+        Meter meter = type == null ? null : messageMeters.get(type);
+        (meter != null ? meter : otherMessages).mark();
+    }
+
+    /**
+     * 纯文本格式的全部指标，每行一个，按名字排序。
+     */
+    public static String text() {
+        StringBuilder out = new StringBuilder();
+        out.append("uptime.s ").append((System.currentTimeMillis() - startedAt) / 1000).append('\n');
+        for (Map.Entry<String, Long> e : gaugeValues().entrySet()) {
+            out.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Meter> e : new TreeMap<>(meters).entrySet()) {
+            out.append(e.getKey()).append(' ').append(e.getValue().count())
+                    .append(String.format(" rate1m=%.2f/s", e.getValue().rate())).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(histograms).entrySet()) {
+            out.append(e.getKey()).append(' ').append(e.getValue().summary()).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * JSON 格式的全部指标（耗时单位为毫秒）。
+     */
+    public static String json() {
+        StringBuilder out = new StringBuilder("{\"uptime_s\":")
+                .append((System.currentTimeMillis() - startedAt) / 1000).append(",\"gauges\":{");
+        String sep = "";
+        for (Map.Entry<String, Long> e : gaugeValues().entrySet()) {
+            out.append(sep).append(quote(e.getKey())).append(':').append(e.getValue());
+            sep = ",";
+        }
+        out.append("},\"meters\":{");
+        sep = "";
+        for (Map.Entry<String, Meter> e : new TreeMap<>(meters).entrySet()) {
+            out.append(sep).append(quote(e.getKey()))
+                    .append(String.format(Locale.ROOT, ":{\"count\":%d,\"rate1m\":%.3f}", e.getValue().count(), e.getValue().rate()));
+            sep = ",";
+        }
+        out.append("},\"histograms\":{");
+        sep = "";
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(histograms).entrySet()) {
+            LatencyHistogram h = e.getValue();
+            out.append(sep).append(quote(e.getKey())).append(String.format(Locale.ROOT,
+                    ":{\"count\":%d,\"mean_ms\":%.3f,\"p50_ms\":%.3f,\"p90_ms\":%.3f,\"p99_ms\":%.3f,\"max_ms\":%.3f}",
+                    h.count(), h.mean() / 1e6, h.percentile(50) / 1e6, h.percentile(90) / 1e6,
+                    h.percentile(99) / 1e6, h.max() / 1e6));
+            sep = ",";
+        }
+        return out.append("}}").toString();
+    }
+
+    private static Map<String, Long> gaugeValues() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            try {
+                values.put(e.getKey(), e.getValue().getAsLong());
+            } catch (RuntimeException ex) {
+                values.put(e.getKey(), -1L); // 读取失败（例如连接池已关闭）
+            }
+        }
+        return values;
+    }
+
+    private static String quote(String name) {
+        return "\"" + name.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * 启动查看指标的 HTTP 接口。
+     *
+     * @param host 监听地址，默认 127.0.0.1，只允许本机访问
+     * @param port 监听端口
+     */
+    public static void startEndpoint(String host, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/stats", exchange -> {
+            boolean json = exchange.getRequestURI().getPath().endsWith(".json");
+            respond(exchange, json ? json() : text(), json ? "application/json" : "text/plain");
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        Server.logger.info("指标接口已启动：http://" + host + ":" + port + "/stats");
+    }
+
+    private static void respond(HttpExchange exchange, String body, String contentType) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,718 @@
+// NioServer.java 位于 server 包中
+package server;
+
+import shared.Frame;
+import shared.FrameCodec;
+import shared.Message;
+import shared.MessageSink;
+
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static server.Server.logger;
+
+/**
+ * NioServer 是服务器的非阻塞运行模式（server.mode=nio）。
+ *
+ * 与“每个连接一个线程”的模式不同，它使用：
+ * - 一个接收线程：通过 ServerSocketChannel 接受新连接
+ * - 少量 I/O 线程：每个线程拥有一个 Selector，负责若干连接的读写和 TLS 加解密（SSLEngine）
+ * - 一个工作线程池：执行登录、写数据库等可能阻塞的操作，同一连接的消息按顺序处理
+ *
+ * 空闲连接只占用一个 SelectionKey 和少量对象，不再占用线程和线程栈，
+ * 因此可以同时保持数万个空闲的聊天连接。
+ * 与线程模式的读超时一样，超过 READ_TIMEOUT_MS 没有收到任何数据的连接、
+ * 以及 HANDSHAKE_TIMEOUT_MS 内没有完成 TLS 握手和协议握手头的连接由 I/O 线程定期关闭。
+ * TLS 握手中耗时的计算（SSLEngine 的委托任务）交给单独的线程池执行，不阻塞 I/O 线程上的其他连接。
+ *
+ * 协议层完全复用 Server.Client 的登录/聊天逻辑，线路上使用 FrameCodec 定义的分帧协议。
+ */
+public class NioServer {
+    // 连接超过这个时间（毫秒）没有收到任何数据时关闭，与线程模式的 socket 读超时相同
+    private static final long READ_TIMEOUT_MS = 60000;
+    // 连接建立后必须在这个时间（毫秒）内完成 TLS 握手并发来协议握手头
+    private static final long HANDSHAKE_TIMEOUT_MS = 10000;
+    // I/O 线程检查超时连接的间隔（毫秒）
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    private final SSLContext sslContext;   // TLS 上下文
+    private final IoLoop[] loops;          // I/O 线程
+    private final ExecutorService workers; // 工作线程池
+    private final ExecutorService tlsTasks; // 执行 TLS 握手委托任务的线程池
+    private int nextLoop;                  // 轮询分配连接用的下标
+
+    /**
+     * @param sslContext    服务器的 TLS 上下文
+     * @param ioThreads     I/O 线程数
+     * @param workerThreads 工作线程数
+     */
+    public NioServer(SSLContext sslContext, int ioThreads, int workerThreads) throws IOException {
+        this.sslContext = sslContext;
+        this.loops = new IoLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(i);
+        }
+
+        AtomicInteger workerId = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workerThreads), r -> {
+            Thread t = new Thread(r, "nio-worker-" + workerId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger tlsId = new AtomicInteger();
+        this.tlsTasks = Executors.newFixedThreadPool(loops.length, r -> {
+            Thread t = new Thread(r, "nio-tls-" + tlsId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 绑定端口并在当前线程中持续接受新连接。
+     */
+    public void run(int port) throws IOException {
+        for (IoLoop loop : loops) {
+            loop.thread.start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), 1024);
+            logger.info("服务器已启动并监听于端口: " + port + "（NIO 模式，I/O 线程数: " + loops.length + "）");
+
+            // 持续接受新连接，并轮流分配给各个 I/O 线程
+            while (true) {
+                SocketChannel channel = server.accept();
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                    SSLEngine engine = sslContext.createSSLEngine();
+                    engine.setUseClientMode(false);
+                    engine.setNeedClientAuth(false);
+                    engine.setWantClientAuth(false);
+
+                    IoLoop loop = loops[nextLoop++ % loops.length];
+                    loop.register(new Connection(loop, channel, engine));
+                    logger.fine("接受了一个新的连接请求");
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "初始化连接失败", e);
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * IoLoop 是一个 I/O 线程：在自己的 Selector 上处理若干连接的读写事件。
+     * 所有 SSLEngine 操作和 SelectionKey 修改都只在这个线程中进行。
+     * 解密、加密用的大缓冲区由同一线程的所有连接共享，连接本身只在数据不完整时才持有小缓冲区。
+     */
+    private static class IoLoop implements Runnable {
+        private final Selector selector = Selector.open();
+        private final Thread thread;
+        // 等待注册到 Selector 的新连接
+        private final Queue<Connection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        // 有新数据等待发送的连接
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+        // TLS 委托任务已经执行完、可以继续握手的连接
+        private final Queue<Connection> pendingTasksDone = new ConcurrentLinkedQueue<>();
+        // 本线程负责的全部连接（只在本线程中访问），用于检查超时
+        private final Set<Connection> connections = new HashSet<>();
+        private long lastSweep = millis();
+
+        // 同一线程内共享的缓冲区
+        private ByteBuffer netIn;  // 从网络读到的密文
+        private ByteBuffer appIn;  // 解密得到的明文
+        private ByteBuffer netOut; // 加密后待写入网络的密文
+        private final ByteBuffer[] gather = new ByteBuffer[64]; // 一次加密时合并的帧
+
+        IoLoop(int id) throws IOException {
+            this.thread = new Thread(this, "nio-io-" + id);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * 由接收线程调用：把新连接交给本线程注册。
+         */
+        void register(Connection connection) {
+            pendingRegistrations.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * 由任意线程调用：通知本线程某个连接有数据需要发送。
+         */
+        void requestWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * 由 TLS 任务线程调用：某个连接的委托任务已经执行完。
+         */
+        void tasksDone(Connection connection) {
+            pendingTasksDone.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(SWEEP_INTERVAL_MS);
+
+                    Connection connection;
+                    while ((connection = pendingRegistrations.poll()) != null) {
+                        connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                        connections.add(connection);
+                        connection.engine.beginHandshake();
+                    }
+                    while ((connection = pendingTasksDone.poll()) != null) {
+                        connection.delegating = false;
+                        safely(connection, false); // 处理任务执行期间留下的密文，继续握手
+                        safely(connection, true);  // 发送任务执行期间积压的消息
+                    }
+                    while ((connection = pendingWrites.poll()) != null) {
+                        connection.writeRequested.set(false);
+                        safely(connection, true);
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection c = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isWritable()) {
+                            safely(c, true);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            safely(c, false);
+                        }
+                    }
+
+                    long now = millis();
+                    if (now - lastSweep >= SWEEP_INTERVAL_MS) {
+                        lastSweep = now;
+                        closeTimedOut(now);
+                    }
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "I/O 线程出现异常", e);
+                }
+            }
+        }
+
+        /**
+         * 关闭握手超时或读超时的连接：死掉的对端、以及迟迟不完成握手的慢速攻击不会一直占用连接和缓冲区。
+         */
+        private void closeTimedOut(long now) {
+            List<Connection> expired = new ArrayList<>();
+            for (Connection connection : connections) {
+                if (connection.timedOut(now)) {
+                    expired.add(connection);
+                }
+            }
+            for (Connection connection : expired) {
+                logger.fine("连接超时，已关闭");
+                connection.closeNow();
+            }
+        }
+
+        /**
+         * 执行连接的读或写，出错时关闭该连接而不影响其他连接。
+         */
+        private void safely(Connection connection, boolean write) {
+            try {
+                if (connection.closed.get()) {
+                    return;
+                }
+                if (write) {
+                    connection.onWritable();
+                } else {
+                    connection.onReadable();
+                }
+            } catch (Exception e) {
+                logger.log(Level.FINE, "客户端断开连接", e);
+                connection.closeNow();
+            }
+        }
+
+        ByteBuffer netIn(SSLSession session) {
+            if (netIn == null || netIn.capacity() < session.getPacketBufferSize()) {
+                netIn = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+            }
+            return netIn;
+        }
+
+        ByteBuffer appIn(SSLSession session) {
+            if (appIn == null || appIn.capacity() < session.getApplicationBufferSize()) {
+                appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+            }
+            return appIn;
+        }
+
+        ByteBuffer netOut(SSLSession session) {
+            if (netOut == null || netOut.capacity() < session.getPacketBufferSize()) {
+                netOut = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+            }
+            return netOut;
+        }
+    }
+
+    /**
+     * Connection 代表一个 NIO 连接：负责 TLS 握手、分帧的读写，
+     * 并作为 Server.Client 的输出端（MessageSink）。
+     */
+    private class Connection implements MessageSink {
+        private final IoLoop loop;
+        private final SocketChannel channel;
+        private final SSLEngine engine;
+        private final Server.Client client;
+        private SelectionKey key;
+
+        // 有界发送队列（任意线程写入，只有 I/O 线程取出）
+        private final OutboundQueue outbox = new OutboundQueue(Server.OUTBOUND_CAPACITY, Server.OUTBOUND_POLICY);
+        // 是否已经在 IoLoop 的待发送队列中
+        private final AtomicBoolean writeRequested = new AtomicBoolean();
+        // 是否已经关闭（只由 I/O 线程设置）
+        private final AtomicBoolean closed = new AtomicBoolean();
+        // 其他线程请求在发送完剩余数据后关闭连接
+        private volatile boolean closeRequested;
+        // 发送队列溢出，需要立即断开连接
+        private volatile boolean aborted;
+
+        // 以下字段只在 I/O 线程中访问
+        private ByteBuffer pendingNetIn;  // 尚未凑成完整 TLS 记录的密文
+        private ByteBuffer pendingApp;    // 尚未凑成完整帧的明文
+        private ByteBuffer pendingNetOut; // 套接字暂时写不下的密文
+        private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>(); // 已从队列取出、正在加密的帧
+        private boolean handshakeDone;    // TLS 握手是否完成
+        private boolean helloDone;        // 分帧协议握手头是否已收到
+        private volatile int version;     // 协商出的协议版本
+        private boolean delegating;       // TLS 委托任务正在其他线程中执行，握手暂停
+        private final long acceptedAt = millis(); // 连接建立的时间（毫秒）
+        private long lastReadAt = acceptedAt;     // 最后一次收到数据的时间（毫秒）
+
+        // 同一连接的任务按顺序交给工作线程执行
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        Connection(IoLoop loop, SocketChannel channel, SSLEngine engine) {
+            this.loop = loop;
+            this.channel = channel;
+            this.engine = engine;
+            this.client = new Server.Client(this);
+        }
+
+        /**
+         * 发送一个对象：放入发送队列后唤醒 I/O 线程，不会阻塞。
+         */
+        @Override
+        public void send(Object obj) throws IOException {
+            if (!outbox.offer(obj)) {
+                if (outbox.isClosed()) {
+                    throw new ClosedChannelException();
+                }
+                // 慢速客户端：丢弃积压的消息并立即断开
+                outbox.close();
+                outbox.clear();
+                aborted = true;
+                requestWrite();
+                logger.info("客户端发送队列已满，已断开连接");
+                throw new IOException("发送队列已满，断开慢速客户端");
+            }
+            requestWrite();
+        }
+
+        @Override
+        public int version() {
+            return version;
+        }
+
+        @Override
+        public int pending() {
+            return outbox.size();
+        }
+
+        /**
+         * 请求关闭连接：I/O 线程会先发完队列中的数据再关闭。
+         */
+        @Override
+        public void close() {
+            outbox.close();
+            closeRequested = true;
+            requestWrite();
+        }
+
+        private void requestWrite() {
+            if (writeRequested.compareAndSet(false, true)) {
+                loop.requestWrite(this);
+            }
+        }
+
+        /**
+         * 是否超时：还没有收到协议握手头时按握手超时计算，之后按读超时计算。
+         */
+        boolean timedOut(long now) {
+            return helloDone ? now - lastReadAt > READ_TIMEOUT_MS : now - acceptedAt > HANDSHAKE_TIMEOUT_MS;
+        }
+
+        /**
+         * 套接字可读：读取密文、解密并拆分出完整的帧。
+         * TLS 委托任务执行完后也从这里继续，此时只处理之前留下的密文。
+         */
+        void onReadable() throws IOException {
+            ByteBuffer in = loop.netIn(engine.getSession());
+            in.clear();
+            if (pendingNetIn != null) {
+                in.put(pendingNetIn);
+                pendingNetIn = null;
+            }
+
+            int n = channel.read(in);
+            in.flip();
+            if (n < 0) {
+                closeNow();
+                return;
+            }
+            if (n > 0) {
+                lastReadAt = millis();
+            }
+
+            unwrap(in);
+
+            // 不完整的 TLS 记录留到下次读取时继续处理
+            if (in.hasRemaining() && !closed.get()) {
+                pendingNetIn = copyOf(in);
+            }
+        }
+
+        /**
+         * 套接字可写（或有新数据需要发送）：继续写出积压的密文，并加密发送队列中的帧。
+         */
+        void onWritable() throws IOException {
+            if (aborted) {
+                closeNow();
+                return;
+            }
+            if (pendingNetOut != null) {
+                channel.write(pendingNetOut);
+                if (pendingNetOut.hasRemaining()) {
+                    return; // 套接字仍然写不下，等待下一次 OP_WRITE
+                }
+                pendingNetOut = null;
+            }
+
+            if (handshakeDone) {
+                flushOutbox();
+            }
+
+            if (pendingNetOut == null) {
+                if (closeRequested && ((outbox.isEmpty() && writing.isEmpty()) || !handshakeDone)) {
+                    closeNow();
+                    return;
+                }
+                if (key != null && key.isValid()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        }
+
+        /**
+         * 解密所有可以解密的数据，并推进 TLS 握手。
+         */
+        private void unwrap(ByteBuffer in) throws IOException {
+            while (!closed.get()) {
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    return; // 任务执行完后 I/O 线程从 onReadable 继续，未处理的密文留在 pendingNetIn 中
+                }
+                if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    wrapHandshake();
+                    continue;
+                }
+                if (!in.hasRemaining()) {
+                    return;
+                }
+
+                ByteBuffer app = loop.appIn(engine.getSession());
+                app.clear();
+                SSLEngineResult result = engine.unwrap(in, app);
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        return; // TLS 记录不完整，等待更多数据
+                    case BUFFER_OVERFLOW:
+                        loop.appIn = ByteBuffer.allocate(app.capacity() * 2);
+                        continue;
+                    case CLOSED:
+                        closeNow();
+                        return;
+                    default:
+                        break;
+                }
+
+                app.flip();
+                if (app.hasRemaining()) {
+                    onPlaintext(app);
+                }
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                    onHandshakeFinished();
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                        && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 生成并发送握手数据。
+         */
+        private void wrapHandshake() throws IOException {
+            ByteBuffer out = loop.netOut(engine.getSession());
+            out.clear();
+            SSLEngineResult result = engine.wrap(EMPTY, out);
+            out.flip();
+            writeNet(out);
+
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                closeNow();
+            } else if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                onHandshakeFinished();
+            }
+        }
+
+        /**
+         * 把握手中的计算任务（密钥交换、证书处理）交给 TLS 任务线程池执行，执行完后通知 I/O 线程继续握手。
+         */
+        private void runDelegatedTasks() {
+            if (delegating) {
+                return;
+            }
+            List<Runnable> batch = new ArrayList<>();
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                batch.add(task);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            delegating = true;
+            tlsTasks.execute(() -> {
+                try {
+                    for (Runnable t : batch) {
+                        t.run();
+                    }
+                } finally {
+                    loop.tasksDone(this);
+                }
+            });
+        }
+
+        private void onHandshakeFinished() throws IOException {
+            if (!handshakeDone) {
+                handshakeDone = true;
+                flushOutbox();
+            }
+        }
+
+        /**
+         * 处理解密后的明文：先读取协议握手头，然后拆分出完整的帧交给工作线程解码处理。
+         */
+        private void onPlaintext(ByteBuffer app) throws IOException {
+            ByteBuffer data = app;
+            if (pendingApp != null) {
+                data = append(pendingApp, app);
+                pendingApp = null;
+            }
+
+            if (!helloDone) {
+                if (data.remaining() < FrameCodec.HELLO_LENGTH) {
+                    pendingApp = copyOf(data);
+                    return;
+                }
+                byte[] hello = new byte[FrameCodec.HELLO_LENGTH];
+                data.get(hello);
+                version = FrameCodec.negotiate(hello);
+                helloDone = true;
+                writing.add(ByteBuffer.wrap(FrameCodec.hello(version)));
+                flushOutbox();
+            }
+
+            while (data.remaining() >= 4) {
+                int length = data.getInt(data.position());
+                FrameCodec.checkLength(length);
+                if (data.remaining() < 4 + length) {
+                    break;
+                }
+                data.position(data.position() + 4);
+                byte[] body = new byte[length];
+                data.get(body);
+
+                // 解码和业务处理都在工作线程中进行，不占用 I/O 线程
+                dispatch(() -> {
+                    try {
+                        client.handle((Message) FrameCodec.decode(body, 0, body.length, version));
+                    } catch (Exception e) {
+                        logger.log(Level.FINE, "处理客户端消息失败", e);
+                        close();
+                    }
+                });
+            }
+
+            if (data.hasRemaining()) {
+                pendingApp = copyOf(data);
+            }
+        }
+
+        /**
+         * 编码、加密并发送队列中的消息，多个小帧会合并到同一个 TLS 记录中。
+         * 套接字写不下时停止从队列取消息，积压的消息留在有界队列中由溢出策略处理。
+         */
+        private void flushOutbox() throws IOException {
+            ByteBuffer[] gather = loop.gather;
+            while (pendingNetOut == null && !delegating) {
+                Object item;
+                while (writing.size() < gather.length && (item = outbox.poll()) != null) {
+                    // 广播的 Frame 由所有接收者共享同一个字节数组，这里只创建独立的读取位置
+                    writing.add(ByteBuffer.wrap(Frame.bytesOf(item, version)));
+                }
+                if (writing.isEmpty()) {
+                    return;
+                }
+
+                int count = 0;
+                for (ByteBuffer frame : writing) {
+                    gather[count++] = frame;
+                }
+
+                ByteBuffer out = loop.netOut(engine.getSession());
+                out.clear();
+                SSLEngineResult result = engine.wrap(gather, 0, count, out);
+                Arrays.fill(gather, 0, count, null);
+                if (result.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new SSLException("加密数据失败: " + result.getStatus());
+                }
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                }
+
+                // 移除已经完整加密的帧
+                while (!writing.isEmpty() && !writing.peekFirst().hasRemaining()) {
+                    writing.pollFirst();
+                }
+
+                out.flip();
+                writeNet(out);
+            }
+        }
+
+        /**
+         * 把密文写入套接字，写不下的部分暂存起来并关注 OP_WRITE。
+         */
+        private void writeNet(ByteBuffer src) throws IOException {
+            if (pendingNetOut == null) {
+                channel.write(src);
+            }
+            if (src.hasRemaining()) {
+                pendingNetOut = pendingNetOut == null ? copyOf(src) : append(pendingNetOut, src);
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * 在 I/O 线程中立即关闭连接，然后让工作线程执行 Client 的下线清理。
+         */
+        private void closeNow() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            loop.connections.remove(this);
+            try {
+                // 尽力发送 close_notify
+                engine.closeOutbound();
+                ByteBuffer out = loop.netOut(engine.getSession());
+                out.clear();
+                engine.wrap(EMPTY, out);
+                out.flip();
+                channel.write(out);
+            } catch (IOException ignored) {}
+
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+
+            outbox.close();
+            outbox.clear();
+            writing.clear();
+            pendingNetIn = null;
+            pendingApp = null;
+            pendingNetOut = null;
+            dispatch(client::disconnect);
+        }
+
+        /**
+         * 把任务交给工作线程池，同一连接的任务严格按提交顺序执行。
+         */
+        private void dispatch(Runnable task) {
+            tasks.add(task);
+            if (draining.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            do {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "处理客户端任务失败", e);
+                    }
+                }
+                draining.set(false);
+            } while (!tasks.isEmpty() && draining.compareAndSet(false, true));
+        }
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static long millis() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer src) {
+        ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+        copy.put(src).flip();
+        return copy;
+    }
+
+    private static ByteBuffer append(ByteBuffer head, ByteBuffer tail) {
+        ByteBuffer joined = ByteBuffer.allocate(head.remaining() + tail.remaining());
+        joined.put(head).put(tail).flip();
+        return joined;
+    }
+}
@@ -0,0 +1,215 @@
+// OutboundQueue.java 位于 server 包中
+package server;
+
+import shared.Frame;
+import shared.Message;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * OutboundQueue 是每个客户端连接独有的有界发送队列。
+ *
+ * 广播时只需要把消息放进各个客户端的队列，真正的网络写入由该连接自己的写线程
+ * （或 NIO 模式下的 I/O 线程）完成，一个写得很慢的客户端不会拖慢其他人。
+ *
+ * 当慢速客户端的队列满了时，按照配置的溢出策略处理：
+ * - DROP_OLDEST：丢弃最旧的一条消息
+ * - DISCONNECT：断开这个慢速客户端
+ * - COALESCE：合并消息——过时的用户列表快照只保留最新一条，
+ *   仍然放不下时把最旧的若干条消息合并成一条“已省略 N 条消息”的系统提示
+ */
+public class OutboundQueue {
+
+    /**
+     * 队列溢出策略
+     */
+    public enum OverflowPolicy {
+        DROP_OLDEST, DISCONNECT, COALESCE;
+
+        /**
+         * 解析配置文件中的策略名称，例如 "drop_oldest"。
+         */
+        public static OverflowPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    private final ArrayDeque<Object> items = new ArrayDeque<>();
+    private final int capacity;            // 队列容量
+    private final OverflowPolicy policy;   // 溢出策略
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed;                // 关闭后不再接受新消息
+
+    // COALESCE 策略下，位于队首的“已省略 N 条消息”提示及其计数
+    private Message skippedNotice;
+    private int skipped;
+
+    /**
+     * @param capacity 队列最多容纳的消息数
+     * @param policy   队列满时的处理策略
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = Math.max(2, capacity);
+        this.policy = policy;
+    }
+
+    /**
+     * 放入一条待发送的消息，不会阻塞。
+     *
+     * @return 成功放入返回 true；队列已关闭，或队列已满且策略为 DISCONNECT 时返回 false
+     */
+    public boolean offer(Object item) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (items.size() >= capacity) {
+                if (policy == OverflowPolicy.DISCONNECT) {
+                    return false;
+                } else if (policy == OverflowPolicy.DROP_OLDEST) {
+                    items.pollFirst();
+                } else {
+                    coalesce(item);
+                }
+            }
+            items.addLast(item);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 阻塞等待并取出下一条消息。
+     *
+     * @return 下一条消息；队列已关闭且没有剩余消息时返回 null
+     */
+    public Object take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出下一条消息，不阻塞。
+     *
+     * @return 下一条消息；队列为空时返回 null
+     */
+    public Object poll() {
+        lock.lock();
+        try {
+            return items.isEmpty() ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 关闭队列：不再接受新消息，已经入队的消息仍然可以取出。
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 清空队列中尚未发送的消息。
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            items.clear();
+            skippedNotice = null;
+            skipped = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Object removeFirst() {
+        Object item = items.pollFirst();
+        if (item == skippedNotice) {
+            skippedNotice = null;
+            skipped = 0;
+        }
+        return item;
+    }
+
+    /**
+     * COALESCE 策略：为新消息腾出位置。
+     */
+    private void coalesce(Object incoming) {
+        // 1. 用户列表是完整快照，队列中只需要保留最新的一条
+        boolean newerSnapshot = isSnapshot(incoming);
+        Iterator<Object> it = items.descendingIterator();
+        while (it.hasNext()) {
+            if (isSnapshot(it.next())) {
+                if (newerSnapshot) {
+                    it.remove();
+                }
+                newerSnapshot = true;
+            }
+        }
+        if (items.size() < capacity) {
+            return;
+        }
+
+        // 2. 把最旧的消息合并成一条提示，提示本身和新消息各占一个位置
+        if (skippedNotice != null && items.peekFirst() == skippedNotice) {
+            items.pollFirst();
+        }
+        while (items.size() > capacity - 2) {
+            items.pollFirst();
+            skipped++;
+        }
+        skippedNotice = Message.system("网络较慢，已省略 " + skipped + " 条消息");
+        items.addFirst(skippedNotice);
+    }
+
+    private static boolean isSnapshot(Object item) {
+        return Frame.messageOf(item) instanceof Message message
+                && ("user_list".equals(message.type) || "presence_snapshot".equals(message.type));
+    }
+}
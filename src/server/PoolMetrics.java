@@ -0,0 +1,87 @@
+// PoolMetrics.java 位于 server 包中
+package server;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PoolMetrics 收集 HikariCP 连接池的指标。
+ *
+ * HikariCP 在每次借出、归还、创建连接时回调 IMetricsTracker，这里把回调记录到直方图中：
+ * - 借用等待时间：getConnection 等待空闲连接的时间，连接池不够用时会明显变长
+ * - 连接占用时间：从借出到归还的时间，反映每次数据库操作的耗时
+ * - 新建连接耗时，以及等待超时的次数
+ * 活跃、空闲、等待中的连接数由连接池的 PoolStats 实时读取。
+ */
+public class PoolMetrics implements MetricsTrackerFactory {
+    private final LatencyHistogram acquire = new LatencyHistogram(); // 借用等待时间
+    private final LatencyHistogram usage = new LatencyHistogram();   // 连接占用时间
+    private final LatencyHistogram create = new LatencyHistogram();  // 新建连接耗时
+    private final AtomicLong timeouts = new AtomicLong();            // 等待连接超时的次数
+    private volatile PoolStats poolStats;
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        this.poolStats = poolStats;
+        return new IMetricsTracker() {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                acquire.record(elapsedAcquiredNanos);
+            }
+
+            @Override
+            public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+                usage.record(elapsedBorrowedMillis * 1_000_000);
+            }
+
+            @Override
+            public void recordConnectionCreatedMillis(long connectionCreatedMillis) {
+                create.record(connectionCreatedMillis * 1_000_000);
+            }
+
+            @Override
+            public void recordConnectionTimeout() {
+                timeouts.incrementAndGet();
+            }
+        };
+    }
+
+    public LatencyHistogram acquireTime() {
+        return acquire;
+    }
+
+    public LatencyHistogram usageTime() {
+        return usage;
+    }
+
+    public long timeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * 当前的连接数统计：{活跃, 空闲, 等待连接的线程, 总数, 最大连接数}；连接池还没有启动时全部为 0。
+     */
+    public int[] connections() {
+        PoolStats stats = poolStats;
+        if (stats == null) {
+            return new int[5];
+        }
+        return new int[]{stats.getActiveConnections(), stats.getIdleConnections(), stats.getPendingThreads(),
+                stats.getTotalConnections(), stats.getMaxConnections()};
+    }
+
+    /**
+     * 返回一行指标摘要。
+     */
+    public String stats() {
+        int[] c = connections();
+        return "活跃=" + c[0] + " 空闲=" + c[1] + " 等待=" + c[2] + " 总数=" + c[3] + "/" + c[4]
+                + " 超时=" + timeouts.get()
+                + " | 借用等待 " + acquire.summary()
+                + " | 占用 " + usage.summary()
+                + " | 新建连接 " + create.summary();
+    }
+}
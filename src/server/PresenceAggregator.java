@@ -0,0 +1,185 @@
+// PresenceAggregator.java 位于 server 包中
+package server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * PresenceAggregator 把一小段时间窗口内的上线、下线事件合并成一次更新。
+ *
+ * 大量用户在同一秒内重连时，不再为每个人各发一条系统通知和一次在线用户列表更新，
+ * 而是在窗口结束时只发出一次：
+ * - 每个用户只保留窗口内的最终状态，同一窗口内上线又下线（或下线又上线）的用户相互抵消
+ * - 窗口内新登录的会话单独列出，它们需要一份完整的在线用户快照
+ *
+ * 窗口长度为 0 时不合并，每个事件立即发出。
+ *
+ * @param <T> 会话对象的类型
+ */
+public class PresenceAggregator<T> {
+
+    /**
+     * 一次合并后的在线状态更新。
+     *
+     * @param joined      窗口内上线的用户名
+     * @param left        窗口内下线的用户名
+     * @param newSessions 窗口内新登录的会话
+     */
+    public record Batch<T>(List<String> joined, List<String> left, List<T> newSessions) {
+        public boolean hasChanges() {
+            return !joined.isEmpty() || !left.isEmpty();
+        }
+    }
+
+    private final long windowMs;               // 合并窗口（毫秒）
+    private final Consumer<Batch<T>> publisher; // 发出合并后的更新
+    private final ScheduledExecutorService timer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // 本窗口内有事件的用户：{窗口开始前是否在线, 目前是否在线}
+    private Map<String, boolean[]> pending = new LinkedHashMap<>();
+    private List<T> newSessions = new ArrayList<>();
+    private boolean scheduled; // 是否已经安排了本窗口的发送
+    // 保证各个窗口的更新按顺序发出
+    private final ReentrantLock publishLock = new ReentrantLock();
+
+    // 合并统计
+    private final AtomicLong events = new AtomicLong();    // 收到的上线、下线事件数
+    private final AtomicLong changes = new AtomicLong();   // 合并后实际发出的状态变化数
+    private final AtomicLong cancelled = new AtomicLong(); // 窗口内相互抵消的用户数
+    private final AtomicLong batches = new AtomicLong();   // 发出的更新次数
+
+    /**
+     * @param windowMs  合并窗口（毫秒），0 表示不合并
+     * @param publisher 发出合并后的更新，同一时间只会有一个线程调用
+     */
+    public PresenceAggregator(long windowMs, Consumer<Batch<T>> publisher) {
+        this.windowMs = Math.max(0, windowMs);
+        this.publisher = publisher;
+        this.timer = this.windowMs == 0 ? null : Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "presence-aggregator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 记录一个用户上线。
+     *
+     * @param session 新登录的会话，发出更新时会收到完整的在线用户快照
+     */
+    public void joined(String username, T session) {
+        events.incrementAndGet();
+        record(username, true, session);
+    }
+
+    /**
+     * 记录一个用户下线。
+     */
+    public void left(String username) {
+        events.incrementAndGet();
+        record(username, false, null);
+    }
+
+    /**
+     * 记录一个恢复的会话：用户的在线状态没有变化（旧连接被新连接替换），
+     * 只需要在本窗口结束时给这个会话发送完整的在线用户快照。
+     */
+    public void resumed(T session) {
+        record(null, true, session);
+    }
+
+    private void record(String username, boolean online, T session) {
+        boolean flushNow = false;
+        lock.lock();
+        try {
+            if (username != null) {
+                boolean[] state = pending.get(username);
+                if (state == null) {
+                    pending.put(username, new boolean[]{!online, online});
+                } else {
+                    state[1] = online;
+                }
+            }
+            if (session != null) {
+                newSessions.add(session);
+            }
+            if (!scheduled) {
+                scheduled = true;
+                if (timer == null) {
+                    flushNow = true;
+                } else {
+                    timer.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    /**
+     * 结束当前窗口，发出合并后的更新。
+     */
+    private void flush() {
+        publishLock.lock();
+        try {
+            Map<String, boolean[]> states;
+            List<T> sessions;
+            lock.lock();
+            try {
+                states = pending;
+                sessions = newSessions;
+                pending = new LinkedHashMap<>();
+                newSessions = new ArrayList<>();
+                scheduled = false;
+            } finally {
+                lock.unlock();
+            }
+            if (states.isEmpty() && sessions.isEmpty()) {
+                return;
+            }
+
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            for (Map.Entry<String, boolean[]> entry : states.entrySet()) {
+                boolean before = entry.getValue()[0];
+                boolean after = entry.getValue()[1];
+                if (before == after) {
+                    cancelled.incrementAndGet();
+                } else {
+                    (after ? joined : left).add(entry.getKey());
+                }
+            }
+            changes.addAndGet(joined.size() + left.size());
+            if (!states.isEmpty()) {
+                batches.incrementAndGet(); // 只有恢复的会话时不算一次上线、下线更新
+            }
+            publisher.accept(new Batch<>(joined, left, sessions));
+        } catch (RuntimeException e) {
+            Server.logger.log(java.util.logging.Level.SEVERE, "发送在线状态更新失败", e);
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    /**
+     * 返回合并统计：被合并掉的事件数 = 收到的事件数 - 发出的更新次数。
+     */
+    public String stats() {
+        long received = events.get();
+        long sent = batches.get();
+        return "事件=" + received + " 发出更新=" + sent + " 被合并=" + Math.max(0, received - sent)
+                + " 状态变化=" + changes.get() + " 相互抵消=" + cancelled.get();
+    }
+}
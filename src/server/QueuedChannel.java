@@ -0,0 +1,88 @@
+// QueuedChannel.java 位于 server 包中
+package server;
+
+import shared.MessageChannel;
+import shared.MessageSink;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+
+import static server.Server.logger;
+
+/**
+ * QueuedChannel 用于线程模式（thread / virtual）：
+ * send 只把消息放入该客户端的 OutboundQueue，由一个专门的写线程把队列中的消息写入 MessageChannel。
+ */
+public class QueuedChannel implements MessageSink {
+    private final MessageChannel channel; // 实际发送消息的通道
+    private final OutboundQueue queue;    // 有界发送队列
+    private final Runnable onOverflow;    // 队列溢出且策略为断开连接时执行
+
+    /**
+     * @param channel    实际发送消息的通道
+     * @param queue      该连接的发送队列
+     * @param threads    用于创建写线程的线程工厂
+     * @param onOverflow 队列溢出需要断开慢速客户端时的回调
+     */
+    public QueuedChannel(MessageChannel channel, OutboundQueue queue, ThreadFactory threads, Runnable onOverflow) {
+        this.channel = channel;
+        this.queue = queue;
+        this.onOverflow = onOverflow;
+        threads.newThread(this::writeLoop).start();
+    }
+
+    @Override
+    public void send(Object obj) throws IOException {
+        if (!queue.offer(obj)) {
+            if (queue.isClosed()) {
+                throw new IOException("连接已关闭");
+            }
+            // 慢速客户端：丢弃积压的消息并断开连接
+            queue.close();
+            queue.clear();
+            onOverflow.run();
+            throw new IOException("发送队列已满，断开慢速客户端");
+        }
+    }
+
+    @Override
+    public int pending() {
+        return queue.size();
+    }
+
+    @Override
+    public int version() {
+        return channel.version();
+    }
+
+    /**
+     * 关闭通道：写线程发送完已入队的消息后关闭底层通道。
+     */
+    @Override
+    public void close() {
+        queue.close();
+    }
+
+    /**
+     * 写线程：依次取出队列中的消息写入网络。
+     */
+    private void writeLoop() {
+        try {
+            Object item;
+            while ((item = queue.take()) != null) {
+                channel.send(item);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "发送消息失败", e);
+        } finally {
+            queue.close();
+            queue.clear();
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,142 @@
+// ResumeTokens.java 位于 server 包中
+package server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ResumeTokens 负责签发和校验会话恢复令牌。
+ *
+ * 登录成功后服务器发给客户端一个令牌，连接断开后客户端带着令牌和最后收到的消息 id 重新连接，
+ * 服务器校验令牌后直接恢复会话，不再经过 getsalt / login 两次往返（只检查账号是否仍然启用，通常命中凭据缓存）。
+ * 令牌只在密码登录时签发，恢复会话时不重新签发，所以有效期不会因为反复重连而延长。
+ *
+ * 每次密码登录开始一个新的“代”（签发时间，epoch 毫秒，同一用户严格递增），令牌中带有签发时的代；
+ * 服务器只记住每个用户最新的代，比它旧的令牌一律拒绝。这样用户在另一台设备上重新输入密码登录后，
+ * 被挤下线的设备不能再用手里的旧令牌把会话抢回去。
+ * 集群中由登录节点通过 ONLINE 事件把新的代告诉其他节点（revokeBefore）。
+ *
+ * 令牌格式：base64url(用户名) "." 过期时间（epoch 秒） "." 代 "." base64url(HMAC-SHA256(前面三段))
+ * 除了每个用户最新的代以外服务器不保存任何状态；最新的代只保存在内存中，早于它的令牌过期后就不再需要，定期清理。
+ * 密钥未配置时每次启动随机生成，服务器重启后之前签发的令牌全部失效。
+ */
+public class ResumeTokens {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec key;
+    private final long ttlSeconds;
+    // 每个用户最新的代；早于它签发的令牌无效
+    private final ConcurrentHashMap<String, Long> generations = new ConcurrentHashMap<>();
+    private volatile long nextPurge;
+
+    /**
+     * @param secret     签名密钥；为 null 或空时随机生成
+     * @param ttlSeconds 令牌的有效期（秒）
+     */
+    public ResumeTokens(String secret, long ttlSeconds) {
+        byte[] keyBytes;
+        if (secret == null || secret.isEmpty()) {
+            keyBytes = new byte[32];
+            new SecureRandom().nextBytes(keyBytes);
+        } else {
+            keyBytes = secret.getBytes(StandardCharsets.UTF_8);
+        }
+        this.key = new SecretKeySpec(keyBytes, ALGORITHM);
+        this.ttlSeconds = Math.max(1, ttlSeconds);
+    }
+
+    /**
+     * 用户用密码登录成功：开始一个新的代，之前签发给这个用户的令牌全部失效。
+     *
+     * @return 新的代，之后用它签发令牌（issue）并告诉集群中的其他节点（revokeBefore）
+     */
+    public long newGeneration(String username) {
+        long now = System.currentTimeMillis();
+        purge(now);
+        return generations.merge(username, now, (previous, current) -> Math.max(previous + 1, current));
+    }
+
+    /**
+     * 集群中的其他节点上有新的密码登录：早于 generation 签发给这个用户的令牌失效。
+     */
+    public void revokeBefore(String username, long generation) {
+        purge(System.currentTimeMillis());
+        generations.merge(username, generation, Math::max);
+    }
+
+    /**
+     * 为一个已登录的用户签发令牌。
+     *
+     * @param generation 这次登录的代（newGeneration 的返回值）
+     */
+    public String issue(String username, long generation) {
+        String payload = ENCODER.encodeToString(username.getBytes(StandardCharsets.UTF_8))
+                + "." + (System.currentTimeMillis() / 1000 + ttlSeconds) + "." + generation;
+        return payload + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    /**
+     * 校验令牌。
+     *
+     * @return 令牌有效时返回其中的用户名；格式错误、签名不符、已过期或者用户之后又用密码登录过时返回 null
+     */
+    public String verify(String token) {
+        if (token == null) {
+            return null;
+        }
+        int last = token.lastIndexOf('.');
+        int first = token.indexOf('.');
+        int second = first < 0 ? -1 : token.indexOf('.', first + 1);
+        if (first <= 0 || second <= first || last <= second) {
+            return null;
+        }
+        try {
+            String payload = token.substring(0, last);
+            byte[] signature = DECODER.decode(token.substring(last + 1));
+            if (!MessageDigest.isEqual(sign(payload), signature)) {
+                return null;
+            }
+            long expiresAt = Long.parseLong(token.substring(first + 1, second));
+            if (expiresAt < System.currentTimeMillis() / 1000) {
+                return null;
+            }
+            long generation = Long.parseLong(token.substring(second + 1, last));
+            String username = new String(DECODER.decode(token.substring(0, first)), StandardCharsets.UTF_8);
+            if (generation < generations.getOrDefault(username, 0L)) {
+                return null; // 之后又有新的密码登录
+            }
+            return username;
+        } catch (IllegalArgumentException e) {
+            return null; // Base64 或数字格式错误
+        }
+    }
+
+    /**
+     * 每过一个令牌有效期清理一次：代早于 now - 有效期 的记录不再需要，比它更早签发的令牌已经全部过期。
+     */
+    private void purge(long now) {
+        if (now < nextPurge) {
+            return;
+        }
+        nextPurge = now + ttlSeconds * 1000;
+        long cutoff = now - ttlSeconds * 1000;
+        generations.values().removeIf(generation -> generation < cutoff);
+    }
+
+    private byte[] sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new IllegalStateException("无法计算令牌签名", e);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+// RetransmitWindow.java 位于 server 包中
+package server;
+
+import shared.MessageSink;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * RetransmitWindow 是一个会话的重传窗口：按发送顺序保存最近发给客户端、客户端还没有确认的带 id 的消息（聊天、私信）。
+ *
+ * 客户端定期发送累积确认（ack，最后收到的一条消息的 id），窗口删除这条及之前的全部消息。
+ * 连接断开时窗口与连接分离，之后发给这个会话的消息仍然记在窗口中；
+ * 客户端用恢复令牌重连时报告最后收到的 id，窗口按原来的顺序把这条之后的消息重发到新连接，
+ * 已经放入发送队列但还没写出、或者写出失败的消息都不会丢失。
+ *
+ * 集群模式下来自不同节点的消息 id 不一定按发送顺序递增，所以窗口按发送顺序而不是按 id 大小确定位置。
+ * 窗口满时丢弃最早的消息；客户端报告的 id 因此在窗口中找不到时由调用者改用聊天记录补发。
+ *
+ * 记录和发送在同一把锁内完成，窗口中的顺序与放入发送队列的顺序一致；发送只是放入队列，不会阻塞。
+ */
+public class RetransmitWindow {
+
+    /**
+     * 窗口中的一条消息。
+     *
+     * @param id      消息在 chat_log 中的 id
+     * @param message 已经编码好的 Frame 或 Message
+     * @param direct  是否为私信（窗口被丢弃时私信要放回离线收件箱）
+     */
+    public record Entry(long id, Object message, boolean direct) {}
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private MessageSink out;   // 当前连接的输出端；连接断开后为 null，消息只记录不发送
+    private long removed;      // 最后一条被确认或丢弃的消息 id，0 表示还没有删除过
+
+    /**
+     * @param capacity 窗口最多保存的消息数
+     */
+    public RetransmitWindow(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * 记录一条消息，连接存在时同时放入发送队列。窗口满时丢弃最早的一条。
+     *
+     * @return 放入了发送队列，或者连接断开期间记录了下来
+     */
+    public boolean send(long id, Object message, boolean direct) {
+        lock.lock();
+        try {
+            if (entries.size() == capacity) {
+                removed = entries.removeFirst().id();
+            }
+            entries.addLast(new Entry(id, message, direct));
+            if (out == null) {
+                return true;
+            }
+            try {
+                out.send(message);
+                return true;
+            } catch (IOException e) {
+                return false; // 连接正在关闭，消息仍然留在窗口中
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 累积确认：删除 id 为 lastId 的消息及它之前发送的全部消息。窗口中没有这条消息时不处理。
+     */
+    public void ack(long lastId) {
+        lock.lock();
+        try {
+            if (!contains(lastId)) {
+                return;
+            }
+            Entry entry;
+            do {
+                entry = entries.removeFirst();
+            } while (entry.id() != lastId);
+            removed = lastId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把窗口接到新的连接上，先重发 lastId 之后的全部消息，之后的消息直接发到新连接。
+     * lastId 在窗口中找不到时（窗口满时已经丢弃、或者是另一个窗口中的消息）清空窗口，由调用者从聊天记录补发。
+     *
+     * @param lastId 客户端最后收到的消息 id；0 表示还没有收到过
+     * @return 从窗口中补发成功返回 true
+     */
+    public boolean attach(MessageSink out, long lastId) {
+        lock.lock();
+        try {
+            this.out = out;
+            if (lastId != removed && !contains(lastId)) {
+                entries.clear();
+                removed = 0;
+                return false;
+            }
+            boolean after = lastId == removed;
+            for (Entry entry : entries) {
+                if (after) {
+                    out.send(entry.message());
+                } else {
+                    after = entry.id() == lastId;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return true; // 新连接也断开了，消息仍然留在窗口中
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 连接断开：之后的消息只记录不发送，等待客户端恢复会话。
+     */
+    public void detach() {
+        lock.lock();
+        try {
+            out = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 丢弃窗口（会话不会再恢复），返回其中还没有确认的私信，由调用者放回离线收件箱。
+     */
+    public List<Entry> discard() {
+        lock.lock();
+        try {
+            out = null;
+            List<Entry> direct = new ArrayList<>();
+            for (Entry entry : entries) {
+                if (entry.direct()) {
+                    direct.add(entry);
+                }
+            }
+            entries.clear();
+            return direct;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 调用者持有锁；客户端最后收到的通常是最近发送的消息，所以从后往前找
+    private boolean contains(long id) {
+        Iterator<Entry> it = entries.descendingIterator();
+        while (it.hasNext()) {
+            if (it.next().id() == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
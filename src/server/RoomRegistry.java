@@ -0,0 +1,93 @@
+// RoomRegistry.java 位于 server 包中
+package server;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RoomRegistry 是房间成员的索引：房间名 -> 该房间的成员注册表。
+ *
+ * 每个房间的成员用一个 SessionRegistry 保存，房间内广播直接使用它的只读快照，
+ * 广播的代价只与房间人数有关，与服务器上的总连接数无关。
+ * 第一个成员加入时创建房间，最后一个成员离开时删除房间；
+ * 加入、离开都在 ConcurrentHashMap.compute 中完成，不会与并发的加入、离开相互覆盖。
+ *
+ * @param <T> 会话对象的类型
+ */
+public class RoomRegistry<T> {
+    private final ConcurrentHashMap<String, SessionRegistry<T>> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * 把会话加入房间（房间不存在时创建）。同一用户名的旧会话会被替换。
+     *
+     * @return 新加入返回 true；这个会话已经在房间中时返回 false
+     */
+    public boolean join(String room, String username, T session) {
+        boolean[] joined = new boolean[1];
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = new SessionRegistry<>();
+            }
+            if (members.get(username) != session) {
+                members.replace(username, session);
+                joined[0] = true;
+            }
+            return members;
+        });
+        return joined[0];
+    }
+
+    /**
+     * 把会话移出房间，房间空了就删除。只有房间中登记的正是这个会话时才会移除。
+     *
+     * @return 移除成功返回 true
+     */
+    public boolean leave(String room, String username, T session) {
+        boolean[] left = new boolean[1];
+        rooms.computeIfPresent(room, (name, members) -> {
+            left[0] = members.remove(username, session);
+            return members.size() == 0 ? null : members;
+        });
+        return left[0];
+    }
+
+    /**
+     * 用户从新的连接恢复会话时，把旧会话在房间中的位置交给新会话。
+     *
+     * @return 旧会话确实在房间中并已替换返回 true
+     */
+    public boolean transfer(String room, String username, T previous, T session) {
+        boolean[] moved = new boolean[1];
+        rooms.computeIfPresent(room, (name, members) -> {
+            if (members.get(username) == previous) {
+                members.replace(username, session);
+                moved[0] = true;
+            }
+            return members;
+        });
+        return moved[0];
+    }
+
+    /**
+     * 返回房间当前成员的只读快照，用于房间内广播；房间不存在时返回空列表。
+     */
+    public List<T> members(String room) {
+        SessionRegistry<T> members = room == null ? null : rooms.get(room);
+        return members == null ? List.of() : members.snapshot();
+    }
+
+    /**
+     * 当前存在的全部房间名（弱一致的视图）。
+     */
+    public Set<String> names() {
+        return rooms.keySet();
+    }
+
+    /**
+     * 当前存在的房间数。
+     */
+    public int size() {
+        return rooms.size();
+    }
+}
@@ -2,12 +2,23 @@
 package server;
 
 // 引入必要的类库
+import shared.Frame;
+import shared.FrameCodec;
+import shared.FramedChannel;
 import shared.Message; // 公共的消息类，用于客户端与服务器之间通信
+import shared.MessageChannel;
+import shared.MessageSink;
+import shared.ObjectStreamChannel;
 
 import java.io.*;
 import java.security.KeyStore;
 import java.sql.Date;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.*;
 import javax.net.ssl.*;
@@ -26,14 +37,69 @@ import static server.UserManager.*; // 导入 UserManager 类中的所有静态
  * - 记录聊天日志到数据库
  */
 public class Server {
-    // 存储当前连接的所有客户端对象
-    private static final List<Client> clients = new ArrayList<>();
-    // 所有已登录用户的用户名集合（避免重复）
-    private static final Set<String> usernames = new HashSet<>();
+    // 所有已登录的客户端，按用户名索引（同一用户名同时只能有一个连接）
+    private static final SessionRegistry<Client> sessions = new SessionRegistry<>();
+    // 房间成员索引：房间内的消息只发给该房间的成员（大厅不在其中，大厅就是所有在线用户）
+    private static final RoomRegistry<Client> rooms = new RoomRegistry<>();
+    // 每个用户最多同时加入的房间数
+    private static int ROOMS_PER_USER = 20;
+    // 集群模式下与其他节点之间的消息总线（单节点运行时为 null）
+    private static ClusterBus cluster;
+    // 其他节点上的在线用户和房间成员
+    private static final ClusterDirectory directory = new ClusterDirectory();
+    // 分片模式：用户的在线状态只登记在它的归属节点上（一致性哈希），私信经归属节点转交；
+    // 否则每个节点都记录全部节点上的在线用户
+    private static boolean SHARDED_PRESENCE;
+    // 哈希环上每个节点的虚拟节点数
+    private static int RING_VNODES = 128;
+    // 当前连通的节点（包括本节点）组成的哈希环，节点加入或离开时整体替换；只在持有 ringLock 时替换
+    private static volatile ConsistentHashRing ring;
+    private static final ReentrantLock ringLock = new ReentrantLock();
+    // 在线用户列表的版本号，每次有用户上线或下线加 1；只在持有 presenceLock 时修改
+    private static long presenceVersion;
+    // 保证增量更新按版本号顺序进入每个客户端的发送队列（持锁期间只入队，不做网络写入）
+    private static final ReentrantLock presenceLock = new ReentrantLock();
+    // 上线、下线事件的合并窗口（毫秒），0 表示不合并
+    private static long PRESENCE_WINDOW_MS = 200;
+    // 把合并窗口内的上线、下线事件合并成一条系统通知和一次在线用户列表更新
+    private static PresenceAggregator<Client> presence;
+    // 其他节点上的上线、下线事件单独合并：通知只发给本节点的用户，不写入聊天记录（由用户所在的节点写入）
+    private static PresenceAggregator<Client> remotePresence;
+    // 签发和校验会话恢复令牌（密钥、有效期可配置）
+    private static ResumeTokens resumeTokens = new ResumeTokens(null, 43200);
+    // 恢复会话时最多补发的消息条数，更早的消息需要客户端向上翻页
+    private static int RESUME_MAX_MESSAGES = 200;
+    // 登录时从离线收件箱中每次取出（一条 offline_batch 中）的最多私信条数，超过时分多页取出
+    private static int OFFLINE_BATCH_MAX = 500;
+    // 每个会话的重传窗口最多保存的未确认消息数（0 表示不使用重传窗口），以及连接断开后窗口保留的时间（毫秒）
+    private static int WINDOW_SIZE = 256;
+    private static long WINDOW_PARK_MS = 60000;
+    // 连接断开、等待恢复会话的用户的重传窗口，按用户名索引
+    private static final ConcurrentHashMap<String, ParkedWindow> parkedWindows = new ConcurrentHashMap<>();
+    // 登录阶段请求的有界线程池：线程数默认等于数据库连接池大小，队列满或排队过久时立即回复“服务器繁忙”
+    private static AuthExecutor auth = new AuthExecutor(DBUtil.getMaxPoolSize(), 256, 2000, 500);
+    // 指标 HTTP 接口的监听地址和端口，端口为 0 时不启动
+    private static String METRICS_BIND = "127.0.0.1";
+    private static int METRICS_PORT = 9100;
+    // 当前打开的客户端连接数（包括还没有登录的连接）
+    private static final AtomicInteger openConnections = new AtomicInteger();
+    // 配置文件路径，默认是当前目录下的 server.properties；ChatBenchmark 等工具用系统属性 server.config 指定其他文件
+    static final String CONFIG_FILE = System.getProperty("server.config", "server.properties");
     // 服务器监听的端口号
     private static int PORT;
-    // 多线程安全锁，防止并发问题
-    private static final ReentrantLock lock = new ReentrantLock();
+    // 运行模式：thread（每个连接一个平台线程）、virtual（每个连接一个虚拟线程）
+    // 或 nio（Selector + SSLEngine 事件循环）
+    private static String MODE = "thread";
+    // NIO 模式下的 I/O 线程数
+    private static int NIO_IO_THREADS;
+    // NIO 模式下处理登录、数据库等阻塞操作的工作线程数
+    private static int NIO_WORKER_THREADS;
+    // 每个客户端发送队列的容量，以及队列满时的处理策略
+    static int OUTBOUND_CAPACITY = 1024;
+    static OutboundQueue.OverflowPolicy OUTBOUND_POLICY = OutboundQueue.OverflowPolicy.DISCONNECT;
+    // 线程模式下为每个客户端创建读线程和写线程的线程工厂
+    private static ThreadFactory readerThreads;
+    private static ThreadFactory writerThreads;
     // 日志记录器，用于输出运行信息和错误信息
     static final Logger logger = Logger.getLogger(Server.class.getName());
 
@@ -44,7 +110,7 @@ public class Server {
       静态代码块：在类加载时执行，用于初始化服务器配置。
       包括：
       - 设置日志格式
-      - 读取 server.properties 配置文件
+      - 读取 server.properties 配置文件（或系统属性 server.config 指定的文件）
       - 初始化数据库连接池
       - 初始化 SSL 上下文（如果启用了加密通信）
      */
@@ -63,13 +129,53 @@ public class Server {
         try {
             // 读取 server.properties 配置文件
             Properties prop = new Properties();
-            try (InputStream input = new FileInputStream("server.properties")) {
+            try (InputStream input = new FileInputStream(CONFIG_FILE)) {
                 prop.load(input);
             }
 
             // 获取服务器监听端口，默认8000
             PORT = Integer.parseInt(prop.getProperty("port", "8000"));
 
+            // 获取运行模式及 NIO 线程配置
+            MODE = prop.getProperty("server.mode", "thread").trim().toLowerCase();
+            NIO_IO_THREADS = Integer.parseInt(prop.getProperty("nio.iothreads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            NIO_WORKER_THREADS = Integer.parseInt(prop.getProperty("nio.workers", "16"));
+
+            // 获取发送队列配置
+            OUTBOUND_CAPACITY = Integer.parseInt(prop.getProperty("outbound.capacity", "1024"));
+            OUTBOUND_POLICY = OutboundQueue.OverflowPolicy.parse(prop.getProperty("outbound.overflow", "disconnect"));
+
+            // 获取上线、下线事件的合并窗口
+            PRESENCE_WINDOW_MS = Long.parseLong(prop.getProperty("presence.coalesce.ms", "200"));
+
+            // 获取会话恢复令牌的密钥、有效期（秒）以及恢复时最多补发的消息条数
+            resumeTokens = new ResumeTokens(prop.getProperty("session.token.secret", "").trim(),
+                    Long.parseLong(prop.getProperty("session.token.ttl", "43200")));
+            RESUME_MAX_MESSAGES = Integer.parseInt(prop.getProperty("session.resume.max", "200"));
+            OFFLINE_BATCH_MAX = Integer.parseInt(prop.getProperty("offline.batch.max", "500"));
+            WINDOW_SIZE = Integer.parseInt(prop.getProperty("session.window.size", "256"));
+            WINDOW_PARK_MS = Long.parseLong(prop.getProperty("session.window.park.s", "60")) * 1000;
+            ROOMS_PER_USER = Integer.parseInt(prop.getProperty("rooms.max.per.user", "20"));
+
+            // 集群配置：配置了节点标识时启用，id 段需要在第一次写入聊天记录之前设置
+            String clusterNode = prop.getProperty("cluster.node.id", "").trim();
+            if (!clusterNode.isEmpty()) {
+                ChatLogDAO.configureIds(Integer.parseInt(prop.getProperty("cluster.node.slot", "0")),
+                        Integer.parseInt(prop.getProperty("cluster.id.stride", "16")));
+                cluster = new TcpClusterBus(clusterNode, prop.getProperty("cluster.bind", "0.0.0.0").trim(),
+                        Integer.parseInt(prop.getProperty("cluster.port", "9000")),
+                        TcpClusterBus.parsePeers(prop.getProperty("cluster.peers", "")),
+                        prop.getProperty("cluster.secret", "").trim(),
+                        Integer.parseInt(prop.getProperty("cluster.queue.capacity", "65536")));
+                SHARDED_PRESENCE = "sharded".equalsIgnoreCase(prop.getProperty("cluster.presence", "broadcast").trim());
+                RING_VNODES = Integer.parseInt(prop.getProperty("cluster.ring.vnodes", "128"));
+            }
+
+            // 指标接口配置
+            METRICS_BIND = prop.getProperty("metrics.bind", "127.0.0.1").trim();
+            METRICS_PORT = Integer.parseInt(prop.getProperty("metrics.port", "9100"));
+
             // 获取SSL证书密码
             String keyStorePassword = prop.getProperty("ssl.keypassword");
 
@@ -91,10 +197,18 @@ public class Server {
                         .getInstance(KeyManagerFactory.getDefaultAlgorithm());
                 kmf.init(keyStore, keyStorePassword.toCharArray());
 
+                // 会话票据需要在创建 SSLContext 之前设置
+                TlsSessions.enableTickets(Boolean.parseBoolean(prop.getProperty("ssl.session.tickets", "true")));
+
                 // 初始化SSLContext
                 sslContext = SSLContext.getInstance("TLS");
                 sslContext.init(kmf.getKeyManagers(), null, null);
 
+                // 会话缓存：重连的客户端可以复用之前的会话，跳过完整握手
+                TlsSessions.configure(sslContext,
+                        Integer.parseInt(prop.getProperty("ssl.session.cache.size", "20480")),
+                        Integer.parseInt(prop.getProperty("ssl.session.timeout", "3600")));
+
                 logger.info("SSL上下文初始化成功，证书路径: " + keyStoreFile.getAbsolutePath());
             } else {
                 logger.warning("缺少SSL密码配置，服务器将不使用加密通信");
@@ -109,9 +223,45 @@ public class Server {
                 throw new IOException("缺少数据库配置项");
 
             // 初始化数据库连接池
-            DBUtil.init(DB_URL, DB_USER, DB_PASSWORD);
+            DBUtil.init(DB_URL, DB_USER, DB_PASSWORD, prop);
             logger.info("数据库连接池初始化成功");
 
+            // 登录线程池：线程数、等待队列容量、最长排队时间（毫秒）、建议重试间隔的基数（毫秒）
+            auth = new AuthExecutor(
+                    Integer.parseInt(prop.getProperty("auth.workers", String.valueOf(DBUtil.getMaxPoolSize()))),
+                    Integer.parseInt(prop.getProperty("auth.queue.capacity", "256")),
+                    Long.parseLong(prop.getProperty("auth.queue.wait.ms", "2000")),
+                    Long.parseLong(prop.getProperty("auth.retry.ms", "500")));
+
+            // 用户凭据缓存：最多缓存的用户数、每条记录的有效时间（毫秒）
+            UserManager.initCache(
+                    Integer.parseInt(prop.getProperty("auth.cache.size", "10000")),
+                    Long.parseLong(prop.getProperty("auth.cache.ttl.ms", "300000")));
+
+            // 用户名布隆过滤器：预计用户数、目标误判率
+            if (Boolean.parseBoolean(prop.getProperty("auth.filter.enabled", "true"))) {
+                UserManager.initFilter(
+                        Long.parseLong(prop.getProperty("auth.filter.expected", "1000000")),
+                        Double.parseDouble(prop.getProperty("auth.filter.fpp", "0.01")));
+            }
+
+            // 从数据库预热最近聊天记录的内存缓存
+            ChatHistoryCache.init(
+                    Integer.parseInt(prop.getProperty("history.cache.public", "500")),
+                    Integer.parseInt(prop.getProperty("history.cache.private", "50")),
+                    Integer.parseInt(prop.getProperty("history.cache.users", "10000")),
+                    Integer.parseInt(prop.getProperty("history.cache.warm.private", "5000")),
+                    Integer.parseInt(prop.getProperty("history.cache.room", "200")),
+                    Integer.parseInt(prop.getProperty("history.cache.rooms", "1000")),
+                    Integer.parseInt(prop.getProperty("history.cache.warm.room", "20000")));
+
+            // 读取聊天记录 id 的起点并预留第一段，启动异步批量写入线程
+            ChatLogDAO.start(
+                    Integer.parseInt(prop.getProperty("chatlog.queue.capacity", "8192")),
+                    Integer.parseInt(prop.getProperty("chatlog.batch.size", "200")),
+                    Long.parseLong(prop.getProperty("chatlog.flush.ms", "100")),
+                    Long.parseLong(prop.getProperty("chatlog.id.block", "10000")));
+
         } catch (Exception e) {
             logger.log(Level.SEVERE, "初始化失败", e);
             PORT = 8000; // 如果出错，使用默认端口8000
@@ -123,7 +273,43 @@ public class Server {
      * 启动服务器，开始监听客户端连接。
      */
     public static void main(String[] args) {
-        logger.info("服务器正在启动... 监听端口: " + PORT);
+        logger.info("服务器正在启动... 监听端口: " + PORT + "，运行模式: " + MODE);
+        presence = new PresenceAggregator<>(PRESENCE_WINDOW_MS, batch -> Client.publishPresence(batch, true));
+        remotePresence = new PresenceAggregator<>(PRESENCE_WINDOW_MS, batch -> Client.publishPresence(batch, false));
+        startMetrics();
+        if (cluster != null) {
+            try {
+                joinCluster(cluster);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "加入集群失败", e);
+                return;
+            }
+        }
+
+        // 添加关闭钩子，在JVM退出时释放资源
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (cluster != null) {
+                cluster.close();
+            }
+            logger.info("在线状态合并统计：" + presence.stats());
+            logger.info("登录线程池统计：" + auth.stats());
+            logger.info("用户凭据缓存统计：" + UserManager.cacheStats());
+            logger.info("用户名过滤器统计：" + UserManager.filterStats());
+            ChatLogDAO.shutdown(); // 先把缓冲区中的聊天记录写完
+            logger.info("数据库连接池统计：" + DBUtil.metrics().stats());
+            DBUtil.close();
+            logger.info("数据库连接池已关闭");
+        }));
+
+        if ("nio".equals(MODE)) {
+            // NIO 模式：少量 I/O 线程通过 Selector 服务所有连接
+            try {
+                new NioServer(sslContext, NIO_IO_THREADS, NIO_WORKER_THREADS).run(PORT);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "服务器启动失败", e);
+            }
+            return;
+        }
 
         try (
                 // 创建SSL服务器Socket，绑定端口
@@ -134,16 +320,19 @@ public class Server {
 
             logger.info("服务器已启动并监听于端口: " + PORT);
 
-            // 添加关闭钩子，在JVM退出时释放资源
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                DBUtil.close();
-                logger.info("数据库连接池已关闭");
-            }));
+            // 每个客户端一个读线程和一个写线程：virtual 模式下使用虚拟线程，空闲连接不再占用平台线程和线程栈
+            if ("virtual".equals(MODE)) {
+                readerThreads = Thread.ofVirtual().name("client-", 0).factory();
+                writerThreads = Thread.ofVirtual().name("client-writer-", 0).factory();
+            } else {
+                readerThreads = Thread.ofPlatform().name("client-", 0).factory();
+                writerThreads = Thread.ofPlatform().name("client-writer-", 0).factory();
+            }
 
             // 持续接受新连接
             while (true) {
                 SSLSocket socket = (SSLSocket) serverSocket.accept();
-                new Thread(new Client(socket)).start(); // 为每个客户端创建一个线程
+                readerThreads.newThread(new Client(socket)).start(); // 为每个客户端创建一个线程
                 logger.info("接受了一个新的连接请求");
             }
         } catch (IOException e) {
@@ -151,108 +340,723 @@ public class Server {
         }
     }
 
+    /**
+     * 登记服务器各部分的仪表，并启动指标 HTTP 接口。
+     */
+    private static void startMetrics() {
+        Metrics.gauge("sessions.online", sessions::size);
+        Metrics.gauge("sessions.parked", parkedWindows::size);
+        Metrics.gauge("connections.open", openConnections::get);
+        Metrics.gauge("rooms.active", rooms::size);
+        Metrics.gauge("cluster.peers", () -> cluster == null ? 0 : cluster.peers().size());
+        Metrics.gauge("cluster.remote.users", directory::size);
+        Metrics.gauge("cluster.ring.nodes", () -> ring == null ? 0 : ring.nodes().size());
+        Metrics.gauge("outbound.queue.total", () -> {
+            long total = 0;
+            for (Client client : sessions.snapshot()) {
+                total += client.out.pending();
+            }
+            return total;
+        });
+        Metrics.gauge("outbound.queue.max", () -> {
+            long max = 0;
+            for (Client client : sessions.snapshot()) {
+                max = Math.max(max, client.out.pending());
+            }
+            return max;
+        });
+        Metrics.gauge("chatlog.queue.depth", ChatLogDAO::queueDepth);
+        Metrics.gauge("auth.queue.depth", auth::queueDepth);
+        Metrics.gauge("auth.rejected", auth::rejectedCount);
+        Metrics.register("auth.queue.wait", auth.queueWait());
+
+        if (METRICS_PORT > 0) {
+            try {
+                Metrics.startEndpoint(METRICS_BIND, METRICS_PORT);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "指标接口启动失败", e);
+            }
+        }
+    }
+
+    /**
+     * 通过给定的总线加入集群（main 使用配置中的 TcpClusterBus，测试可以传入 LoopbackBus）。
+     */
+    static void joinCluster(ClusterBus bus) throws IOException {
+        cluster = bus;
+        ring = new ConsistentHashRing(Set.of(bus.nodeId()), RING_VNODES);
+        bus.start(new ClusterListener());
+    }
+
+    /**
+     * 把事件发给集群中的所有其他节点（单节点运行时什么都不做）。
+     */
+    private static void publish(ClusterEvent event) {
+        ClusterBus bus = cluster;
+        if (bus != null) {
+            bus.publish(event);
+        }
+    }
+
+    /**
+     * 发出本节点用户的上线、下线事件：分片模式下只发给该用户的归属节点（归属节点是本节点时不需要发送），
+     * 否则发给所有节点。
+     */
+    private static void announce(ClusterEvent event) {
+        ClusterBus bus = cluster;
+        if (bus == null) {
+            return;
+        }
+        if (!SHARDED_PRESENCE) {
+            bus.publish(event);
+            return;
+        }
+        String home = ring.owner(event.user());
+        if (!home.equals(bus.nodeId())) {
+            bus.send(home, event);
+        }
+    }
+
+    /**
+     * 用户是否仍在集群中的其他节点上在线（此时本节点上的会话结束不算下线）。
+     * 分片模式下本节点不一定知道，在线用户列表也只包含本节点的用户，一律按下线处理。
+     */
+    private static boolean onlineElsewhere(String user) {
+        return !SHARDED_PRESENCE && directory.nodeOf(user) != null;
+    }
+
+    /**
+     * 连通的节点变化后重建哈希环。分片模式下，本节点上归属节点变成了其他节点的用户向新的归属节点登记，
+     * 不再归本节点负责的用户从目录中删除（新的归属节点会从这些用户所在的节点收到登记）。
+     *
+     * 节点加入时只有归属于新节点的用户改变归属，所以各节点在连接陆续建立的过程中保留的记录只多不少，
+     * 多出的部分在之后的重建中删除。
+     */
+    private static void rebalance() {
+        ClusterBus bus = cluster;
+        ringLock.lock();
+        try {
+            Set<String> nodes = new HashSet<>(bus.peers());
+            nodes.add(bus.nodeId());
+            ConsistentHashRing previous = ring;
+            if (previous.nodes().equals(nodes)) {
+                return;
+            }
+            ConsistentHashRing next = new ConsistentHashRing(nodes, RING_VNODES);
+            ring = next;
+            if (!SHARDED_PRESENCE) {
+                return;
+            }
+            String self = bus.nodeId();
+            int moved = 0;
+            for (Client client : sessions.snapshot()) {
+                String home = next.owner(client.username);
+                if (client.loggedIn && !home.equals(self) && !home.equals(previous.owner(client.username))) {
+                    bus.send(home, ClusterEvent.online(client.username, false));
+                    moved++;
+                }
+            }
+            int dropped = directory.retainUsers(user -> self.equals(next.owner(user))).size();
+            logger.info("集群节点变为 " + new TreeSet<>(nodes) + "：" + moved + " 个本地用户改变了归属节点，"
+                    + dropped + " 个用户不再由本节点登记");
+        } finally {
+            ringLock.unlock();
+        }
+    }
+
+    /**
+     * 处理集群中其他节点发来的事件：更新 ClusterDirectory，并把转发来的消息发给本节点上的接收者。
+     */
+    private static class ClusterListener implements ClusterBus.Listener {
+        // 正在接收快照的节点，以及它在快照之前记录中的房间（快照中没有再出现的房间在 SYNCED 时清除）
+        private final Map<String, Set<String>> syncing = new ConcurrentHashMap<>();
+
+        @Override
+        public List<ClusterEvent> snapshot() {
+            List<ClusterEvent> events = new ArrayList<>();
+            List<String> online = new ArrayList<>();
+            for (Client client : sessions.snapshot()) {
+                if (client.loggedIn) {
+                    online.add(client.username);
+                }
+            }
+            events.add(ClusterEvent.users(online, ChatLogDAO.lastKnownId()));
+            for (String room : rooms.names()) {
+                List<String> members = new ArrayList<>();
+                for (Client member : rooms.members(room)) {
+                    members.add(member.username);
+                }
+                events.add(ClusterEvent.roomMembers(room, members));
+            }
+            events.add(ClusterEvent.synced());
+            return events;
+        }
+
+        @Override
+        public void onEvent(String node, ClusterEvent event) {
+            switch (event.type()) {
+                case USERS -> {
+                    // 连接断开期间对方转发的消息都没有收到，缓存中更早的记录不再可信
+                    ChatLogDAO.observeId(event.id());
+                    ChatHistoryCache.invalidateBefore(ChatLogDAO.lastKnownId() + 1);
+                    syncing.put(node, directory.roomsOf(node));
+                    rebalance();
+                    if (SHARDED_PRESENCE) {
+                        // 快照中包含对方的全部用户，只登记归属于本节点的，不产生上线通知
+                        String self = cluster.nodeId();
+                        ConsistentHashRing current = ring;
+                        List<String> mine = new ArrayList<>();
+                        for (String user : event.names()) {
+                            if (self.equals(current.owner(user))) {
+                                mine.add(user);
+                            }
+                        }
+                        directory.replaceNode(node, mine);
+                        logger.info("已同步集群节点 " + node + " 的在线用户：" + event.names().size()
+                                + " 人，其中 " + mine.size() + " 人归属本节点");
+                        return;
+                    }
+                    ClusterDirectory.Changes changes = directory.replaceNode(node, event.names());
+                    for (String user : changes.joined()) {
+                        if (sessions.get(user) == null) {
+                            remotePresence.joined(user, null);
+                        }
+                    }
+                    for (String user : changes.left()) {
+                        if (sessions.get(user) == null) {
+                            remotePresence.left(user);
+                        }
+                    }
+                    logger.info("已同步集群节点 " + node + " 的在线用户：" + event.names().size() + " 人");
+                }
+                case ONLINE -> {
+                    if (event.id() > 0) {
+                        resumeTokens.revokeBefore(event.user(), event.id()); // 用户重新输入了密码，旧令牌失效
+                    }
+                    userOnline(event.target() != null ? event.target() : node, event.user(),
+                            event.resumed(), event.target() != null, event.id());
+                }
+                case OFFLINE -> {
+                    if (directory.offline(node, event.user()) && !SHARDED_PRESENCE
+                            && sessions.get(event.user()) == null) {
+                        remotePresence.left(event.user());
+                    }
+                }
+                case CHAT -> {
+                    if (event.id() > 0) {
+                        ChatLogDAO.recordRemote(event.id(), event.user(), null, event.room(), event.content(), "user");
+                    }
+                    Message message = event.room() == null
+                            ? Message.chat(event.user(), event.content())
+                            : Message.chat(event.user(), event.content(), event.room());
+                    Client.fanOut(Client.withId(message, event.id()), event.id(),
+                            event.room() == null ? sessions.snapshot() : rooms.members(event.room()));
+                }
+                case PRIVATE -> {
+                    if (event.id() > 0) {
+                        ChatLogDAO.recordRemote(event.id(), event.user(), event.target(), null, event.content(), "user");
+                    }
+                    deliverPrivate(event, event.room() != null ? event.room() : node);
+                }
+                case FORWARD_PRIVATE -> {
+                    // 本节点是接收者的归属节点：接收者在本节点上就直接交付，否则转交给它所在的节点
+                    if (sessions.get(event.target()) != null) {
+                        if (event.id() > 0) {
+                            ChatLogDAO.recordRemote(event.id(), event.user(), event.target(), null, event.content(), "user");
+                        }
+                        deliverPrivate(event, event.room());
+                        return;
+                    }
+                    String at = directory.nodeOf(event.target());
+                    if (at == null || !cluster.send(at, ClusterEvent.privateMsg(event.id(), event.user(),
+                            event.target(), event.content(), event.room()))) {
+                        cluster.send(event.room(), ClusterEvent.undelivered(event.id(), event.user(), event.target()));
+                    }
+                }
+                case UNDELIVERED -> {
+                    // 记录由本节点写入，离线收件箱也由本节点写入，保证写入顺序；写入数据库之后再通知发送者
+                    ChatLogDAO.addToInbox(event.target(), event.id()).thenAccept(stored -> {
+                        Client sender = sessions.get(event.user());
+                        if (sender != null && sender.loggedIn) {
+                            sender.sendSystem(Client.inboxNotice(event.target(), stored));
+                        }
+                    });
+                }
+                case ROOM_MEMBERS -> {
+                    Set<String> stale = syncing.get(node);
+                    if (stale != null) {
+                        stale.remove(event.room());
+                    }
+                    ClusterDirectory.Changes changes = directory.replaceRoom(node, event.room(), event.names());
+                    for (String user : changes.joined()) {
+                        Client.fanOut(Message.roomJoin(event.room(), user), rooms.members(event.room()));
+                    }
+                    for (String user : changes.left()) {
+                        Client.fanOut(Message.roomLeave(event.room(), user), rooms.members(event.room()));
+                    }
+                }
+                case ROOM_JOIN -> {
+                    if (directory.joinRoom(node, event.room(), event.user())) {
+                        Client.fanOut(Message.roomJoin(event.room(), event.user()), rooms.members(event.room()));
+                    }
+                }
+                case ROOM_LEAVE -> {
+                    if (directory.leaveRoom(node, event.room(), event.user())) {
+                        Client.fanOut(Message.roomLeave(event.room(), event.user()), rooms.members(event.room()));
+                    }
+                }
+                case SYNCED -> {
+                    Set<String> stale = syncing.remove(node);
+                    if (stale != null) {
+                        for (String room : stale) {
+                            for (String user : directory.replaceRoom(node, room, List.of()).left()) {
+                                Client.fanOut(Message.roomLeave(room, user), rooms.members(room));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * 把其他节点转发来的私信交给本节点上的接收者；接收者已经不在时通知发送者所在的节点放入离线收件箱。
+         */
+        private static void deliverPrivate(ClusterEvent event, String origin) {
+            Client receiver = sessions.get(event.target());
+            if (receiver != null && receiver.deliver(Client.withId(
+                    Message.privateMsg(event.user(), event.target(), event.content()), event.id()), event.id(), true)) {
+                return;
+            }
+            cluster.send(origin, ClusterEvent.undelivered(event.id(), event.user(), event.target()));
+        }
+
+        /**
+         * 用户在另一个节点上登录。本节点上也有这个用户的会话时：
+         * - 对方是恢复会话（客户端断线后连到了另一个节点）或者重新输入密码登录，本节点的旧会话让出
+         * - 归属节点转告的另一个节点上已有的会话（不是接管），标识较小的节点保留会话，另一个节点让出
+         * 让出的节点不产生下线通知，只发出 OFFLINE 让其他节点把它从该用户的节点列表中去掉。
+         *
+         * 分片模式下只有归属节点收到登录事件。归属节点发现用户已经登记在另一个节点上时，
+         * 把这次登录转告给原来的节点（不是恢复会话时也把原来的登录转告给新节点），由它们按上面的规则决定谁让出。
+         *
+         * @param node       用户登录的节点
+         * @param forwarded  由归属节点转告，而不是登录节点直接发来的
+         * @param generation 密码登录时的令牌代，转告时一并带上；没有时为 0
+         */
+        private void userOnline(String node, String user, boolean resumed, boolean forwarded, long generation) {
+            Client local = sessions.get(user);
+            if (local != null) {
+                if (!resumed && node.compareTo(cluster.nodeId()) > 0) {
+                    if (SHARDED_PRESENCE && !forwarded) {
+                        // 对方的登录事件只发给了本节点（归属节点），需要告诉它本节点上的会话
+                        cluster.send(node, ClusterEvent.online(user, false, cluster.nodeId(), 0));
+                    }
+                    return; // 保留本节点的会话，对方收到本节点的 ONLINE 后会让出
+                }
+                if (sessions.remove(user, local)) {
+                    local.movedTo(node);
+                    announce(ClusterEvent.offline(user));
+                }
+                if (!forwarded) {
+                    directory.online(node, user);
+                }
+                return;
+            }
+            if (!SHARDED_PRESENCE) {
+                if (directory.online(node, user)) {
+                    remotePresence.joined(user, null);
+                }
+                return;
+            }
+            if (forwarded) {
+                return; // 本节点上原来的会话已经结束
+            }
+            String previous = directory.nodeOf(user);
+            directory.online(node, user);
+            if (previous != null && !previous.equals(node)) {
+                cluster.send(previous, ClusterEvent.online(user, resumed, node, generation));
+                if (!resumed) {
+                    cluster.send(node, ClusterEvent.online(user, false, previous, 0));
+                }
+            }
+        }
+
+        @Override
+        public void onPeerDown(String node) {
+            syncing.remove(node);
+            for (String user : directory.removeNode(node)) {
+                if (!SHARDED_PRESENCE && sessions.get(user) == null) {
+                    remotePresence.left(user);
+                }
+            }
+            rebalance();
+            for (ClusterDirectory.Membership member : directory.removeRooms(node)) {
+                Client.fanOut(Message.roomLeave(member.room(), member.user()), rooms.members(member.room()));
+            }
+            logger.warning("与集群节点 " + node + " 的连接已断开，它上面的用户视为下线");
+        }
+    }
+
+    /**
+     * 根据客户端发送的前几个字节判断它使用的协议，并创建对应的消息通道。
+     * - 以 FrameCodec.MAGIC 开头：新版分帧协议
+     * - 否则：旧版连续的 Java 序列化对象流
+     */
+    static MessageChannel openChannel(SSLSocket socket) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+        in.mark(FrameCodec.MAGIC.length);
+        byte[] head = in.readNBytes(FrameCodec.MAGIC.length);
+        in.reset();
+
+        if (FrameCodec.isMagic(head)) {
+            return FramedChannel.accept(in, socket.getOutputStream());
+        }
+        return new ObjectStreamChannel(in, socket.getOutputStream());
+    }
+
+    /**
+     * 连接断开后保留的重传窗口。
+     *
+     * @param window    会话的重传窗口
+     * @param lastId    断开时已分配的最大消息 id，断开期间的消息从这里开始用聊天记录补发
+     * @param expiresAt 超过这个时间（毫秒）没有恢复会话时丢弃窗口
+     */
+    private record ParkedWindow(RetransmitWindow window, long lastId, long expiresAt) {}
+
     /**
      * Client 内部类：代表一个客户端连接。
-     * 每个客户端都有自己的线程，负责处理其发送的消息。
+     * 线程模式下每个客户端都有自己的线程，负责读取其发送的消息；
+     * NIO 模式下由 NioServer 的事件循环解码消息后交给 handle 处理。
      */
-    private static class Client implements Runnable {
-        private final SSLSocket socket; // 客户端Socket连接
-        private ObjectOutputStream out; // 输出流，向客户端发送数据
+    static class Client implements Runnable {
+        // 登录时发送以及每次向上翻页的历史记录条数
+        private static final int HISTORY_PAGE_SIZE = 50;
+        // 合并后的上线、下线通知中最多列出的用户名个数
+        private static final int NOTICE_NAMES = 5;
+        // 合并后的系统通知在聊天记录中的发送者
+        private static final String SYSTEM_SENDER = "系统";
+        // 房间名的最大长度（与 chat_log.room 列的长度一致）
+        private static final int ROOM_NAME_MAX = 50;
+        // 登录阶段各类请求的耗时（包括在登录线程池中排队的时间）
+        private static final Map<String, LatencyHistogram> loginTime = Map.of(
+                "getsalt", Metrics.histogram("auth.getsalt"),
+                "register", Metrics.histogram("auth.register"),
+                "login", Metrics.histogram("auth.login"),
+                "resume", Metrics.histogram("auth.resume"));
+        // 每次广播的耗时（编码 + 放入所有接收者的发送队列），以及广播送达的接收者数
+        private static final LatencyHistogram fanOutTime = Metrics.histogram("broadcast.fanout");
+        private static final Metrics.Meter fanOutRecipients = Metrics.meter("broadcast.recipients");
+        private static final Metrics.Meter offlineDelivered = Metrics.meter("offline.delivered");
+
+        private final SSLSocket socket; // 客户端Socket连接（NIO 模式下为 null）
+        private MessageSink out;        // 输出端，向客户端发送数据
         private String username;        // 当前客户端的用户名
+        // 是否已经登录成功；登录回复发出之后才置为 true，之前的广播不会发给这个客户端
+        private volatile boolean loggedIn;
+        private Long historyBefore;     // 向上翻页的位置：已发送的最早一条历史记录的 id（null 表示没有更早的记录）
+        // 已加入的房间，以及每个房间向上翻页的位置（没有更早的记录时不在表中）
+        private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+        private final Map<String, Long> roomHistoryBefore = new ConcurrentHashMap<>();
+        private final AtomicBoolean open = new AtomicBoolean(true); // 保证连接数只减一次
+        // 重传窗口（协议第 8 版的客户端才有）：带 id 的消息先记入窗口，客户端确认后删除，恢复会话时从窗口重发
+        private volatile RetransmitWindow window;
+        private long tokenGeneration;   // 密码登录时开始的令牌代，签发会话恢复令牌时使用
 
         public Client(SSLSocket socket) {
             this.socket = socket;
+            openConnections.incrementAndGet();
+        }
+
+        /**
+         * NIO 模式使用的构造方法，输出端由事件循环提供。
+         */
+        Client(MessageSink out) {
+            this.socket = null;
+            this.out = out;
+            openConnections.incrementAndGet();
+        }
+
+        /**
+         * 创建一个已经登录、但不在会话表中的接收者，ChatBenchmark 用它测量真实的广播扇出路径。
+         *
+         * @param windowSize 重传窗口大小；0 表示没有窗口（第 8 版以前的客户端）
+         */
+        static Client benchmarkRecipient(MessageSink out, int windowSize) {
+            Client client = new Client(out);
+            client.loggedIn = true;
+            if (windowSize > 0) {
+                RetransmitWindow w = new RetransmitWindow(windowSize);
+                w.attach(out, 0);
+                client.window = w;
+            }
+            return client;
         }
 
         @Override
         public void run() {
-            Message message;
+            Object message;
 
             try {
                 socket.setSoTimeout(60000); // 60秒超时
 
-                // 初始化输入输出流
-                out = new ObjectOutputStream(socket.getOutputStream());
-                out.flush();
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-
-                // 接收客户端发送请求
-                while ((message = (Message) in.readObject()) != null) {
-                    if ("getsalt".equals(message.type)) {
-                        String user = (String) message.data.get("username");
-                        byte[] salt = getSaltByUsername(user);
-                        out.writeObject(Message.returnSalt(salt));
-                        out.flush();
-
-                    } else if ("register".equals(message.type)) {
-                        String user = (String) message.data.get("username"); // 👈 赋值
-                        String hashedPassword = (String) message.data.get("password_hash");
-                        byte[] salt = (byte[]) message.data.get("salt");
-
-                        if (!usernameExists(user)) {
-                            if (register(user, hashedPassword, salt)) {
-                                out.writeObject("success");
-                                out.flush();
-                            } else {
-                                out.writeObject("服务器内部错误");
-                                out.flush();
-                            }
-                        } else {
-                            out.writeObject("用户名已存在，请更换用户名后重试");
-                            out.flush();
-                        }
+                // 识别客户端协议并初始化消息通道，发送的消息先进入该客户端自己的发送队列
+                MessageChannel channel = openChannel(socket);
+                out = new QueuedChannel(channel, new OutboundQueue(OUTBOUND_CAPACITY, OUTBOUND_POLICY),
+                        writerThreads, this::abort);
 
-                    } else if ("login".equals(message.type)) {
-                        this.username = (String) message.data.get("username"); // 赋值
-                        String hashedPassword = (String) message.data.get("password");
-
-                        if (usernameExists(username)) {
-                            if (authenticate(username, hashedPassword)) {
-                                out.writeObject("success");
-                                out.flush();
-                                break;
-                            } else {
-                                out.writeObject("用户名或密码错误");
-                                out.flush();
-                            }
-                        } else {
-                            out.writeObject("用户不存在，请注册");
-                            out.flush();
-                        }
-                    }
+                // 循环接收客户端发送的请求
+                while ((message = channel.receive()) != null) {
+                    handle((Message) message);
+                }
+            } catch (Exception e) {
+                logger.log(Level.FINE, "客户端断开连接", e);
+            } finally {
+                disconnect(); // 断开连接并清理资源
+            }
+        }
+
+        /**
+         * 处理客户端发来的一条消息。
+         * 登录前只处理 getsalt / register / login / resume，
+         * 登录后只处理 chat / private / load_older / presence_sync / join_room / leave_room / ack。
+         */
+        void handle(Message message) throws IOException {
+            Metrics.markMessage(message.type);
+            if (!loggedIn) {
+                submitLogin(message);
+            } else if ("chat".equals(message.type)) {
+                String content = (String) message.data.get("content");
+                String room = (String) message.data.get("room");
+                if (room == null) {
+                    broadcastMessage("[" + username + "]：" + content, "user");
+                } else {
+                    sendRoomMessage(room, "[" + username + "]：" + content);
+                }
+            } else if ("private".equals(message.type)) {
+                String target = (String) message.data.get("to");
+                String content = (String) message.data.get("content");
+                sendPrivateMessage(target, content);
+            } else if ("load_older".equals(message.type)) {
+                String room = (String) message.data.get("room");
+                if (room == null) {
+                    sendOlderHistory((String) message.data.get("before"));
+                } else {
+                    sendOlderRoomHistory(room, (String) message.data.get("before"));
                 }
+            } else if ("presence_sync".equals(message.type)) {
+                resyncPresence();
+            } else if ("join_room".equals(message.type)) {
+                joinRoom((String) message.data.get("room"));
+            } else if ("leave_room".equals(message.type)) {
+                leaveRoom((String) message.data.get("room"));
+            } else if ("ack".equals(message.type)) {
+                RetransmitWindow w = window;
+                if (w != null && message.data.get("last_id") instanceof Long lastId) {
+                    w.ack(lastId);
+                }
+            }
+        }
+
+        /**
+         * 把登录阶段的请求交给登录线程池执行并等待结果；线程池繁忙时立即回复建议的重试时间。
+         */
+        private void submitLogin(Message message) throws IOException {
+            long start = System.nanoTime();
+            try {
+                auth.execute(() -> handleLogin(message));
+            } catch (AuthExecutor.BusyException e) {
+                out.send(out.version() >= FrameCodec.VERSION_BUSY
+                        ? Message.busy(e.retryAfterMs()) : Message.busyText(e.retryAfterMs()));
+            }
+            LatencyHistogram histogram = message.type == null ? null : loginTime.get(message.type);
+            if (histogram != null) {
+                histogram.record(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * 处理登录阶段的请求：获取盐值、注册、登录和恢复会话
+         */
+        private void handleLogin(Message message) throws IOException {
+            if ("getsalt".equals(message.type)) {
+                String user = (String) message.data.get("username");
+                byte[] salt = getSaltByUsername(user);
+                out.send(Message.returnSalt(salt));
 
-                // 将该客户端加入在线列表（只有登录或注册成功后才添加）
-                if (username != null) { //只有当 username 不为 null 才添加
-                    lock.lock();
-                    try {
-                        usernames.add(username);
-                        clients.add(this);
-                    } finally {
-                        lock.unlock();
+            } else if ("register".equals(message.type)) {
+                String user = (String) message.data.get("username");
+                String hashedPassword = (String) message.data.get("password_hash");
+                byte[] salt = (byte[]) message.data.get("salt");
+
+                if (!usernameExists(user)) {
+                    if (register(user, hashedPassword, salt)) {
+                        out.send("success");
+                    } else {
+                        out.send("服务器内部错误");
                     }
+                } else {
+                    out.send("用户名已存在，请更换用户名后重试");
                 }
 
-                // 广播欢迎消息，并发送在线用户列表和最近历史消息
-                broadcastMessage(username + " 进入了聊天室", "system");
-                broadcastUserList();
-                sendRecentChatHistory();
-
-                // 循环接收客户端发送的消息
-                while ((message = (Message) in.readObject()) != null) {
-                    if ("chat".equals(message.type)) {
-                        String content = (String) message.data.get("content");
-                        broadcastMessage("[" + username + "]：" + content, "user");
-                    } else if ("private".equals(message.type)) {
-                        String target = (String) message.data.get("to");
-                        String content = (String) message.data.get("content");
-                        sendPrivateMessage(target, content);
+            } else if ("login".equals(message.type)) {
+                String user = (String) message.data.get("username");
+                String hashedPassword = (String) message.data.get("password");
+
+                // 一次查询（通常直接命中缓存）得到用户是否存在以及密码是否正确
+                Credentials credentials = lookup(user);
+                if (credentials != null) {
+                    if (credentials.matches(hashedPassword)) {
+                        // 密码登录总是成功：这个用户名原来的会话（可能是还没有被发现断开的半开连接）让出，
+                        // 就像恢复会话一样，旧会话不产生下线通知。
+                        // 先开始新的令牌代再替换旧会话：被挤下线的设备手里的令牌从此无法再恢复会话。
+                        // 使用表中实际保存的用户名，"Alice" 和 "alice" 登录的是同一个会话
+                        user = credentials.username();
+                        this.username = user;
+                        tokenGeneration = resumeTokens.newGeneration(user);
+                        boolean elsewhere = onlineElsewhere(user);
+                        Client previous = sessions.replace(user, this);
+                        if (previous != null && previous != this) {
+                            previous.replaced();
+                            if (previous.window != null) {
+                                discardWindow(user, previous.window);
+                            }
+                        }
+                        out.send("success");
+                        onLogin(previous != null || elsewhere);
+                    } else {
+                        out.send("用户名或密码错误");
                     }
+                } else {
+                    out.send("用户不存在，请注册");
                 }
-            } catch (Exception e) {
-                logger.log(Level.FINE, "客户端断开连接", e);
-            } finally {
-                disconnect(); // 断开连接并清理资源
+
+            } else if ("resume".equals(message.type)) {
+                resume((String) message.data.get("token"), (Long) message.data.get("last_id"));
+            }
+        }
+
+        /**
+         * 登录成功后：加入在线列表，广播欢迎消息，并发送在线用户列表和最近历史消息
+         *
+         * @param takeover 这个用户原来已经在线（在本节点或集群中的其他节点上），新的登录接管了原来的会话
+         */
+        private void onLogin(boolean takeover) {
+            // 重新登录后旧会话不会再恢复，它的窗口中没有确认的私信放回离线收件箱
+            ParkedWindow parked = parkedWindows.remove(username);
+            if (parked != null) {
+                discardWindow(username, parked.window());
+            }
+            if (out.version() >= FrameCodec.VERSION_ACK && WINDOW_SIZE > 0) {
+                RetransmitWindow w = new RetransmitWindow(WINDOW_SIZE);
+                w.attach(out, 0);
+                window = w;
+            }
+            loggedIn = true;
+
+            if (takeover) {
+                presence.resumed(this); // 在线状态没有变化，只需要给新连接发送一份在线用户快照
+            } else {
+                presence.joined(username, this); // 系统通知和在线用户列表在合并窗口结束时统一发出
+            }
+            if (cluster != null) {
+                // 按恢复会话的规则广播：用户原来所在的节点（分片模式下本节点不一定知道）收到后让出会话，
+                // 并且不再接受这次登录之前签发的令牌
+                ChatHistoryCache.invalidateUser(username, ChatLogDAO.lastKnownId() + 1);
+                announce(ClusterEvent.login(username, tokenGeneration));
+            }
+            sendRecentChatHistory();
+            sendOfflineMessages(historyBefore == null ? 0 : historyBefore);
+            sendResumeToken();
+        }
+
+        /**
+         * 断线重连的客户端用令牌恢复会话：不校验密码（只检查账号是否仍然启用），也不重新发送整页历史记录，
+         * 只补发 id 大于 lastId 的消息。
+         *
+         * 旧连接可能还没有被发现已经断开（读超时之前），此时新连接直接替换它，
+         * 在线状态没有变化，不会产生上线、下线通知。
+         *
+         * 支持确认的客户端（协议第 8 版）接管旧连接或断开时保留下来的重传窗口，从窗口中按原来的顺序重发 lastId 之后的消息；
+         * 窗口中找不到 lastId 时（窗口满时已经丢弃，或者会话是从其他节点转过来的）仍然从聊天记录补发。
+         */
+        private void resume(String token, Long lastId) throws IOException {
+            String user = resumeTokens.verify(token);
+            if (user == null) {
+                out.send("会话已过期，请重新登录");
+                return;
+            }
+            // 令牌签发之后账号可能已经被停用（通常直接命中凭据缓存，数据库中的停用最多经过缓存有效期之后生效）
+            Credentials credentials = lookup(user);
+            if (credentials == null || !credentials.active()) {
+                out.send("账号已停用，请重新登录");
+                return;
+            }
+            this.username = user;
+            // 先接管窗口再登记新连接：登记之后发给这个用户的消息都进入窗口，窗口补发完之前不会直接写到新连接
+            purgeParkedWindows();
+            Client live = sessions.get(user);
+            RetransmitWindow adopted = live != null ? live.window : null;
+            ParkedWindow parked = adopted == null ? parkedWindows.remove(user) : null;
+            if (parked != null) {
+                adopted = parked.window();
+            }
+            if (out.version() >= FrameCodec.VERSION_ACK && WINDOW_SIZE > 0) {
+                window = adopted != null ? adopted : new RetransmitWindow(WINDOW_SIZE);
+            } else if (parked != null) {
+                discardWindow(user, parked.window());
+                parked = null;
+            }
+            Client previous = sessions.replace(user, this);
+            if (previous != null && previous != this) {
+                takeOverRooms(previous); // 先接管房间，旧连接关闭后离开房间时不会产生通知
+                previous.replaced();
+            }
+            ParkedWindow stale = parkedWindows.get(user);
+            if (stale != null && stale.window() == window) {
+                parkedWindows.remove(user, stale); // 旧连接在接管之后才断开，把已经接管的窗口保留了下来
+            }
+            out.send("success");
+            boolean replayed = window != null && window.attach(out, lastId == null ? 0 : lastId);
+            loggedIn = true;
+
+            if (previous == null && !onlineElsewhere(user)) {
+                presence.joined(user, this);
+            } else {
+                presence.resumed(this); // 只需要给新连接发送一份在线用户快照
+            }
+            if (cluster != null) {
+                // 用户可能是从其他节点转过来的，原来的节点收到后让出会话
+                ChatHistoryCache.invalidateUser(user, ChatLogDAO.lastKnownId() + 1);
+                announce(ClusterEvent.online(user, true));
+            }
+            if (!replayed) {
+                Long missedBefore = sendMissedChatHistory(lastId == null ? 0 : lastId);
+                sendOfflineMessages(missedBefore == null ? 0 : missedBefore);
+                for (String room : joinedRooms) {
+                    sendMissedRoomHistory(room, lastId == null ? 0 : lastId);
+                }
+            } else if (parked != null) {
+                // 保留下来的窗口只有断开之前发出的消息，断开期间的消息和私信仍然从聊天记录、离线收件箱补发
+                Long missedBefore = sendMissedChatHistory(parked.lastId());
+                sendOfflineMessages(missedBefore == null ? 0 : missedBefore);
+            } else if (previous != null) {
+                historyBefore = previous.historyBefore; // 旧连接收到的消息都在窗口中，不需要查询聊天记录
+            }
+            // 不签发新令牌：客户端继续使用登录时的令牌，有效期从密码登录时算起，到期后必须重新输入密码
+            logger.info("用户 " + user + " 恢复了会话");
+        }
+
+        /**
+         * 发送会话恢复令牌（只在密码登录后发给支持会话恢复的客户端；恢复会话时不重新签发，令牌的有效期不会被延长）
+         */
+        private void sendResumeToken() {
+            if (out.version() < FrameCodec.VERSION_RESUME) {
+                return;
+            }
+            try {
+                out.send(Message.sessionToken(resumeTokens.issue(username, tokenGeneration)));
+            } catch (IOException e) {
+                logger.log(Level.FINE, "发送会话恢复令牌失败", e);
             }
         }
 
@@ -261,108 +1065,676 @@ public class Server {
          */
         private void sendPrivateMessage(String target, String message) {
             Message msg = Message.privateMsg(username, target, message);
-            lock.lock();
-            try {
-                for (Client client : clients) {
-                    if (client.username.equals(target)) {
-                        try {
-                            client.out.writeObject(msg);
-                            client.out.flush();
-                            ChatLogDAO.logMessage(this.username, target, message, "user"); // 记录私信
-                            return;
-                        } catch (IOException ignored) {}
-                    }
+
+            // 按用户名直接查找接收者
+            Client receiver = sessions.get(target);
+            if (receiver != null && receiver.loggedIn) {
+                // 先记录私信得到 id，接收者恢复会话时从这个 id 继续
+                long id = ChatLogDAO.logMessage(this.username, target, message, "user");
+                if (!receiver.deliver(withId(msg, id), id, true)) {
+                    // 接收者的连接正在关闭
+                    ChatLogDAO.addToInbox(target, id).thenAccept(stored -> sendSystem(inboxNotice(target, stored)));
                 }
+                warnIfNotSaved(id);
+                return;
+            }
+            // 用户名是否存在通常由布隆过滤器或凭据缓存直接判断，不需要查询数据库
+            if (!usernameExists(target)) {
                 try {
-                    out.writeObject(Message.system("用户 '" + target + "' 不存在或不在线"));
-                    out.flush();
+                    out.send(Message.system("用户 '" + target + "' 不存在"));
                 } catch (IOException ignored) {}
-            } finally {
-                lock.unlock();
+                return;
+            }
+            // 接收者在集群中的其他节点上：只转发给那个节点
+            long id = -1;
+            if (cluster != null) {
+                String home = SHARDED_PRESENCE ? ring.owner(target) : cluster.nodeId();
+                if (!home.equals(cluster.nodeId())) {
+                    // 分片模式下只有归属节点知道接收者在哪里，由它转交；找不到时它回复 UNDELIVERED
+                    id = ChatLogDAO.logMessage(this.username, target, message, "user");
+                    if (cluster.send(home, ClusterEvent.forwardPrivate(id, username, target, message, cluster.nodeId()))) {
+                        return;
+                    }
+                } else {
+                    String node = directory.nodeOf(target);
+                    if (node != null) {
+                        id = ChatLogDAO.logMessage(this.username, target, message, "user");
+                        if (cluster.send(node, ClusterEvent.privateMsg(id, username, target, message))) {
+                            return;
+                        }
+                    }
+                }
+            }
+            // 接收者不在线：放入离线收件箱，写入数据库之后才告诉发送者下次登录时送达
+            CompletableFuture<Boolean> stored = id > 0
+                    ? ChatLogDAO.addToInbox(target, id)
+                    : ChatLogDAO.logOfflineMessage(this.username, target, message);
+            stored.thenAccept(ok -> sendSystem(inboxNotice(target, ok)));
+        }
+
+        /**
+         * 消息已经发出，但写入缓冲区已满（或无法分配 id）没有保存到聊天记录时告诉发送者。
+         */
+        private void warnIfNotSaved(long id) {
+            if (id < 0) {
+                sendSystem("服务器繁忙，刚才的消息已发出，但没有保存到聊天记录");
             }
         }
 
+        /**
+         * 私信放入离线收件箱之后给发送者的通知。
+         *
+         * @param stored 是否已经写入数据库
+         */
+        private static String inboxNotice(String target, boolean stored) {
+            return stored
+                    ? "用户 '" + target + "' 不在线，私信将在对方下次登录时送达"
+                    : "用户 '" + target + "' 不在线，私信保存失败，请稍后重试";
+        }
+
         /**
          * 广播消息给所有在线用户
          */
         private void broadcastMessage(String msg, String log_level) {
-            Message message = Message.chat(username, msg);
-            lock.lock();
+            long id = ChatLogDAO.logMessage(this.username, null, msg, log_level); // 记录群发消息
+            fanOut(withId(Message.chat(username, msg), id), id, onlineClients());
+            warnIfNotSaved(id);
+            publish(ClusterEvent.chat(id, username, null, msg));
+        }
+
+        /**
+         * 发送消息给某个房间的所有成员：只遍历这个房间的成员快照，与服务器上的总连接数无关
+         */
+        private void sendRoomMessage(String room, String msg) {
+            if (!joinedRooms.contains(room)) {
+                sendSystem("你还没有加入房间 #" + room);
+                return;
+            }
+            long id = ChatLogDAO.logMessage(this.username, null, room, msg, "user");
+            fanOut(withId(Message.chat(username, msg, room), id), id, rooms.members(room));
+            warnIfNotSaved(id);
+            // 所有节点都要收到房间消息（各节点的房间记录缓存需要完整），由各节点发给自己的房间成员
+            publish(ClusterEvent.chat(id, username, room, msg));
+        }
+
+        /**
+         * 加入房间（房间不存在时自动创建）：通知房间中的其他成员，给自己发送成员快照和最近的房间记录。
+         * 已经在房间中时（例如恢复会话后客户端重新发送加入请求）只重新发送成员快照。
+         */
+        private void joinRoom(String room) {
+            if (out.version() < FrameCodec.VERSION_ROOMS) {
+                sendSystem("客户端版本过旧，不支持房间");
+                return;
+            }
+            room = room == null ? "" : room.trim();
+            if (room.isEmpty() || room.length() > ROOM_NAME_MAX) {
+                sendSystem("房间名不能为空，且不能超过 " + ROOM_NAME_MAX + " 个字符");
+                return;
+            }
+            if (!joinedRooms.contains(room) && joinedRooms.size() >= ROOMS_PER_USER) {
+                sendSystem("最多只能同时加入 " + ROOMS_PER_USER + " 个房间");
+                return;
+            }
+
+            boolean joined = rooms.join(room, username, this);
+            joinedRooms.add(room);
+            List<Client> members = rooms.members(room);
+            if (joined) {
+                List<Client> others = new ArrayList<>(members.size());
+                for (Client member : members) {
+                    if (member != this) {
+                        others.add(member);
+                    }
+                }
+                fanOut(Message.roomJoin(room, username), others);
+                publish(ClusterEvent.roomJoin(room, username));
+            }
             try {
-                for (Client client : clients) {
-                    try {
-                        client.out.writeObject(message);
-                        client.out.flush();
-                    } catch (IOException ignored) {}
+                Map<String, Object> users = userMap(members);
+                for (String remote : directory.roomMembers(room)) {
+                    users.put(remote, true);
+                }
+                out.send(Message.roomSnapshot(room, users));
+            } catch (IOException e) {
+                logger.log(Level.FINE, "发送房间成员列表失败", e);
+            }
+            if (joined) {
+                sendRoomHistory(room, ChatLogDAO.getRecentRoomHistory(room, HISTORY_PAGE_SIZE), null);
+            }
+        }
+
+        /**
+         * 离开房间：通知房间中剩下的成员，并给自己发送确认。
+         */
+        private void leaveRoom(String room) {
+            if (room == null || !joinedRooms.remove(room)) {
+                sendSystem("你不在房间 #" + room + " 中");
+                return;
+            }
+            roomHistoryBefore.remove(room);
+            Message left = Message.roomLeave(room, username);
+            if (rooms.leave(room, username, this)) {
+                fanOut(left, rooms.members(room));
+                publish(ClusterEvent.roomLeave(room, username));
+            }
+            try {
+                out.send(left);
+            } catch (IOException ignored) {}
+        }
+
+        /**
+         * 恢复会话时接管旧连接加入的房间，房间中的其他成员看不到任何变化。
+         */
+        private void takeOverRooms(Client previous) {
+            for (String room : previous.joinedRooms) {
+                if (rooms.transfer(room, username, previous, this)) {
+                    joinedRooms.add(room);
+                }
+            }
+            previous.joinedRooms.clear();
+        }
+
+        /**
+         * 断开连接时离开所有房间（被新连接接管的房间已经不再登记这个连接，不会产生通知）。
+         */
+        private void leaveAllRooms() {
+            for (String room : joinedRooms) {
+                if (rooms.leave(room, username, this)) {
+                    fanOut(Message.roomLeave(room, username), rooms.members(room));
+                    publish(ClusterEvent.roomLeave(room, username));
+                }
+            }
+            joinedRooms.clear();
+        }
+
+        private void sendSystem(String content) {
+            try {
+                out.send(Message.system(content));
+            } catch (IOException ignored) {}
+        }
+
+        /**
+         * 给聊天消息加上它在 chat_log 中的 id（记录未保存时不加）。
+         */
+        private static Message withId(Message message, long id) {
+            if (id > 0) {
+                message.data.put("id", id);
+            }
+            return message;
+        }
+
+        /**
+         * 发出一个合并窗口内的上线、下线更新（由 PresenceAggregator 调用）：
+         * - 所有人收到一条合并后的系统通知
+         * - 支持增量更新的客户端（协议第 4 版）收到一条增量更新：只有一个变化时为 presence_join / presence_leave，
+         *   否则为 presence_batch；旧版客户端仍然收到完整的 user_list
+         * - 窗口内新登录的客户端收到一份完整快照
+         */
+        private static void publishPresence(PresenceAggregator.Batch<Client> batch, boolean local) {
+            if (batch.hasChanges()) {
+                String notice = presenceNotice(batch);
+                fanOut(Message.system(notice), onlineClients());
+                if (local) {
+                    ChatLogDAO.logMessage(SYSTEM_SENDER, null, notice, "system");
+                }
+            }
+
+            presenceLock.lock();
+            try {
+                long version = batch.hasChanges() ? ++presenceVersion : presenceVersion;
+                List<Client> online = onlineClients();
+                Set<Client> newcomers = Collections.newSetFromMap(new IdentityHashMap<>());
+                newcomers.addAll(batch.newSessions());
+                List<Client> deltaRecipients = new ArrayList<>();
+                List<Client> legacyRecipients = new ArrayList<>();
+                for (Client client : online) {
+                    if (!newcomers.contains(client)) {
+                        (client.supportsPresenceDeltas() ? deltaRecipients : legacyRecipients).add(client);
+                    }
+                }
+
+                if (batch.hasChanges()) {
+                    fanOut(presenceDelta(batch, version), deltaRecipients);
+                    if (!legacyRecipients.isEmpty()) {
+                        fanOut(Message.userList(onlineUsers(online)), legacyRecipients);
+                    }
+                }
+                for (Client client : newcomers) {
+                    if (client.loggedIn) {
+                        client.sendPresenceSnapshot(online, version);
+                    }
                 }
-                ChatLogDAO.logMessage(this.username, null, msg, log_level); // 记录群发消息
             } finally {
-                lock.unlock();
+                presenceLock.unlock();
+            }
+        }
+
+        private static Message presenceDelta(PresenceAggregator.Batch<Client> batch, long version) {
+            if (batch.joined().size() + batch.left().size() > 1) {
+                return Message.presenceBatch(batch.joined(), batch.left(), version);
             }
+            return batch.joined().isEmpty()
+                    ? Message.presenceLeave(batch.left().get(0), version)
+                    : Message.presenceJoin(batch.joined().get(0), version);
         }
 
         /**
-         * 广播当前在线用户列表
+         * 生成合并后的系统通知，例如“A、B 等 12 人进入了聊天室；C 离开了聊天室”。
          */
-        private void broadcastUserList() {
-            Map<String, Object> userMap = new HashMap<>();
-            lock.lock();
+        private static String presenceNotice(PresenceAggregator.Batch<Client> batch) {
+            StringBuilder notice = new StringBuilder();
+            appendNames(notice, batch.joined(), "进入了聊天室");
+            if (!batch.joined().isEmpty() && !batch.left().isEmpty()) {
+                notice.append("；");
+            }
+            appendNames(notice, batch.left(), "离开了聊天室");
+            return notice.toString();
+        }
+
+        private static void appendNames(StringBuilder notice, List<String> names, String action) {
+            if (names.isEmpty()) {
+                return;
+            }
+            notice.append(String.join("、", names.subList(0, Math.min(names.size(), NOTICE_NAMES))));
+            if (names.size() > NOTICE_NAMES) {
+                notice.append(" 等 ").append(names.size()).append(" 人");
+            }
+            notice.append(" ").append(action);
+        }
+
+        /**
+         * 客户端发现增量更新的版本号不连续，重新发送一份完整快照。
+         */
+        private void resyncPresence() {
+            presenceLock.lock();
             try {
-                for (Client client : clients) {
+                sendPresenceSnapshot(onlineClients(), presenceVersion);
+            } finally {
+                presenceLock.unlock();
+            }
+        }
+
+        // 调用者需持有 presenceLock
+        private void sendPresenceSnapshot(List<Client> online, long version) {
+            Map<String, Object> users = onlineUsers(online);
+            try {
+                out.send(supportsPresenceDeltas() ? Message.presenceSnapshot(users, version) : Message.userList(users));
+            } catch (IOException e) {
+                logger.log(Level.FINE, "发送在线用户列表失败", e);
+            }
+        }
+
+        private boolean supportsPresenceDeltas() {
+            return out.version() >= FrameCodec.VERSION_PRESENCE;
+        }
+
+        /**
+         * 把在线客户端列表转换成用户列表消息使用的映射表。
+         */
+        private static Map<String, Object> userMap(List<Client> online) {
+            Map<String, Object> userMap = new HashMap<>();
+            for (Client client : online) {
+                if (client.loggedIn) {
                     userMap.put(client.username, true);
                 }
-            } finally {
-                lock.unlock();
             }
+            return userMap;
+        }
+
+        /**
+         * 集群中的全部在线用户：本节点的在线客户端加上其他节点上的用户。
+         * 分片模式下本节点只知道归属于自己的那部分用户，列表中只有本节点的用户。
+         */
+        private static Map<String, Object> onlineUsers(List<Client> online) {
+            Map<String, Object> users = userMap(online);
+            if (SHARDED_PRESENCE) {
+                return users;
+            }
+            for (String remote : directory.users()) {
+                users.put(remote, true);
+            }
+            return users;
+        }
 
-            Message msg = Message.userList(userMap);
-            lock.lock();
+        /**
+         * 把一条消息发送给多个接收者：消息只编码一次，所有接收者共享同一份帧字节。
+         */
+        private static void fanOut(Message message, List<Client> recipients) {
+            fanOut(message, 0, recipients);
+        }
+
+        /**
+         * 把一条带 id 的聊天消息发送给多个接收者，同时记入各接收者的重传窗口。
+         * ChatBenchmark 的 fanout.* 基准直接测量这个方法。
+         *
+         * @param id 消息在 chat_log 中的 id；0 表示不是聊天消息，不记入窗口
+         */
+        static void fanOut(Message message, long id, List<Client> recipients) {
+            long start = System.nanoTime();
+            Frame frame;
             try {
-                for (Client client : clients) {
-                    try {
-                        client.out.writeObject(msg);
-                        client.out.flush();
-                    } catch (IOException ignored) {}
+                frame = Frame.of(message);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "编码广播消息失败", e);
+                return;
+            }
+            int sent = 0;
+            for (Client client : recipients) {
+                if (client.deliver(frame, id, false)) {
+                    sent++;
                 }
-            } finally {
-                lock.unlock();
+            }
+            fanOutTime.record(System.nanoTime() - start);
+            fanOutRecipients.mark(sent);
+        }
+
+        /**
+         * 发送一条消息。有重传窗口时带 id 的消息先记入窗口（窗口与连接分离期间只记录不发送）；
+         * 否则只发给已经收到登录回复、还没有下线的连接。
+         *
+         * @param direct 是否为私信
+         * @return 消息已经放入发送队列或者记入了窗口
+         */
+        private boolean deliver(Object message, long id, boolean direct) {
+            RetransmitWindow w = window;
+            if (w != null && id > 0) {
+                return w.send(id, message, direct);
+            }
+            if (!loggedIn) {
+                return false; // 还没有收到登录回复，或者已经下线
+            }
+            try {
+                out.send(message);
+                return true;
+            } catch (IOException e) {
+                return false;
             }
         }
 
         /**
-         * 发送最近的历史聊天记录给新上线的用户
+         * 当前在线客户端的只读快照。
+         * 遍历快照发送消息时不持有任何锁，一个写得慢的客户端或一次数据库写入不会阻塞其他线程的上线、下线。
+         */
+        private static List<Client> onlineClients() {
+            return sessions.snapshot();
+        }
+
+        /**
+         * 发送最近的历史聊天记录给新上线的用户：整页记录放在一条 history_batch 消息中，只编码和写出一次
          */
         private void sendRecentChatHistory() {
-            List<String> history = ChatLogDAO.getRecentChatHistory(50, username);
-            for (String msg : history) {
+            ChatLogDAO.HistoryPage page = ChatLogDAO.getRecentChatHistory(HISTORY_PAGE_SIZE, username);
+            historyBefore = page.before();
+            if (page.lines().isEmpty()) {
+                return;
+            }
+            try {
+                out.send(Message.historyBatch(page.lines(), page.newest(),
+                        page.before() == null ? null : page.before().toString()));
+            } catch (IOException e) {
+                logger.log(Level.FINE, "发送历史消息失败", e);
+            }
+        }
+
+        /**
+         * 恢复会话时补发客户端错过的消息（id 大于 lastId）。
+         * 错过的太多时只补发最新的一页，并把翻页位置设在这一页之前；
+         * 否则客户端已有的记录保持原来的翻页位置。
+         *
+         * @return 补发的这一页之前还有没补发的消息时，返回这一页的翻页位置；否则返回 null
+         */
+        private Long sendMissedChatHistory(long lastId) {
+            ChatLogDAO.HistoryPage page = ChatLogDAO.getChatHistoryAfter(lastId, RESUME_MAX_MESSAGES, username);
+            historyBefore = page.before() != null ? page.before() : (lastId > 0 ? lastId + 1 : null);
+            if (page.lines().isEmpty()) {
+                return null;
+            }
+            try {
+                out.send(Message.historyBatch(page.lines(), page.newest(),
+                        page.before() == null ? null : page.before().toString()));
+            } catch (IOException e) {
+                logger.log(Level.FINE, "发送错过的消息失败", e);
+            }
+            return page.before();
+        }
+
+        /**
+         * 分页取出离线收件箱中的全部私信，每页用一条 offline_batch 发送（旧版本客户端收到同样内容的 history_batch）。
+         * 刚发送的那一页历史记录中已经有的私信不再重复发送，只清出收件箱。
+         *
+         * @param below 刚发送的那一页历史记录中最早一条的 id；0 表示那一页已经包括全部记录
+         */
+        private void sendOfflineMessages(long below) {
+            Long cursor = 0L;
+            while (cursor != null) {
+                ChatLogDAO.OfflinePage page = ChatLogDAO.takeOfflineMessages(username, below, cursor, OFFLINE_BATCH_MAX);
+                cursor = page.next();
+                if (page.lines().isEmpty()) {
+                    continue;
+                }
+                offlineDelivered.mark(page.lines().size());
                 try {
-                    out.writeObject(Message.history(msg));
-                    out.flush();
+                    out.send(out.version() >= FrameCodec.VERSION_OFFLINE
+                            ? Message.offlineBatch(page.lines())
+                            : Message.historyBatch(page.lines()));
                 } catch (IOException e) {
-                    logger.log(Level.FINE, "发送历史消息失败", e);
+                    logger.log(Level.FINE, "发送离线私信失败", e);
+                    return; // 连接已经断开，剩下的留在收件箱中，下次登录再取
                 }
             }
         }
 
         /**
-         * 断开客户端连接并清理资源
+         * 向上翻页：发送比客户端已有记录更早的一页历史记录。
+         *
+         * @param before 客户端上一次收到的翻页位置；为 null 时从登录时发送的最早一条记录继续
          */
-        private void disconnect() {
-            if (username != null) {
-                lock.lock();
+        private void sendOlderHistory(String before) {
+            Long cursor = historyBefore;
+            if (before != null) {
                 try {
-                    usernames.remove(username);
-                    clients.remove(this);
-                } finally {
-                    lock.unlock();
-                }
-                broadcastMessage(username + " 离开了聊天室", "system");
-                broadcastUserList();
+                    cursor = Long.parseLong(before);
+                } catch (NumberFormatException ignored) {}
+            }
+
+            ChatLogDAO.HistoryPage page = cursor == null
+                    ? new ChatLogDAO.HistoryPage(List.of(), null, null)
+                    : ChatLogDAO.getChatHistoryBefore(cursor, HISTORY_PAGE_SIZE, username);
+            historyBefore = page.before();
+            try {
+                out.send(Message.historyPage(page.lines(), page.before() == null ? null : page.before().toString()));
+            } catch (IOException e) {
+                logger.log(Level.FINE, "发送历史消息失败", e);
+            }
+        }
+
+        /**
+         * 发送一页房间记录（加入房间或恢复会话时），并记下这个房间向上翻页的位置。
+         *
+         * @param fallback 这一页没有更早的记录时使用的翻页位置
+         */
+        private void sendRoomHistory(String room, ChatLogDAO.HistoryPage page, Long fallback) {
+            Long before = page.before() != null ? page.before() : fallback;
+            if (before != null) {
+                roomHistoryBefore.put(room, before);
+            } else {
+                roomHistoryBefore.remove(room);
+            }
+            if (page.lines().isEmpty()) {
+                return;
+            }
+            try {
+                out.send(Message.historyBatch(page.lines(), page.newest(),
+                        page.before() == null ? null : page.before().toString(), room));
+            } catch (IOException e) {
+                logger.log(Level.FINE, "发送房间记录失败", e);
+            }
+        }
+
+        /**
+         * 恢复会话时补发某个房间中错过的消息（id 大于 lastId）。
+         */
+        private void sendMissedRoomHistory(String room, long lastId) {
+            sendRoomHistory(room, ChatLogDAO.getRoomHistoryAfter(room, lastId, RESUME_MAX_MESSAGES),
+                    lastId > 0 ? lastId + 1 : null);
+        }
+
+        /**
+         * 在房间中向上翻页。
+         *
+         * @param before 客户端上一次收到的翻页位置；为 null 时从加入房间时发送的最早一条记录继续
+         */
+        private void sendOlderRoomHistory(String room, String before) {
+            if (!joinedRooms.contains(room)) {
+                sendSystem("你还没有加入房间 #" + room);
+                return;
+            }
+            Long cursor = roomHistoryBefore.get(room);
+            if (before != null) {
+                try {
+                    cursor = Long.parseLong(before);
+                } catch (NumberFormatException ignored) {}
             }
 
+            ChatLogDAO.HistoryPage page = cursor == null
+                    ? new ChatLogDAO.HistoryPage(List.of(), null, null)
+                    : ChatLogDAO.getRoomHistoryBefore(room, cursor, HISTORY_PAGE_SIZE);
+            if (page.before() != null) {
+                roomHistoryBefore.put(room, page.before());
+            } else {
+                roomHistoryBefore.remove(room);
+            }
             try {
+                out.send(Message.historyPage(page.lines(), page.before() == null ? null : page.before().toString(), room));
+            } catch (IOException e) {
+                logger.log(Level.FINE, "发送房间记录失败", e);
+            }
+        }
+
+        /**
+         * 立即断开慢速客户端：不再发送 TLS 关闭通知，直接关闭底层连接，
+         * 读线程随后会因为连接关闭而退出并执行 disconnect。
+         */
+        private void abort() {
+            try {
+                socket.setSoLinger(true, 0);
                 socket.close();
             } catch (IOException ignored) {}
+            logger.info("客户端 " + username + " 的发送队列已满，已断开连接");
+        }
+
+        /**
+         * 同一用户从新的连接恢复了会话或者重新登录：不再给这个旧连接发送消息，并关闭它。
+         * 旧连接随后执行 disconnect 时已经不在注册表中，不会产生下线通知。
+         *
+         * 支持的客户端（协议第 10 版）先收到一条 session_replaced，发送完之后再关闭连接，客户端收到后不再自动恢复会话；
+         * 否则两台设备会用各自的令牌轮流把对方挤下线。更低版本的客户端直接断开，它们手里的旧令牌已经被新的密码登录作废。
+         */
+        private void replaced() {
+            loggedIn = false;
+            if (out != null && out.version() >= FrameCodec.VERSION_REPLACED) {
+                try {
+                    out.send(Message.sessionReplaced());
+                    out.close(); // 发送队列中的消息写完之后关闭
+                    logger.info("用户 " + username + " 已从新的连接登录或恢复会话，已通知旧连接");
+                    return;
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "通知旧连接失败", e);
+                }
+            }
+            try {
+                if (socket != null) {
+                    socket.setSoLinger(true, 0);
+                    socket.close();
+                } else if (out != null) {
+                    out.close();
+                }
+            } catch (IOException ignored) {}
+            logger.info("用户 " + username + " 已从新的连接登录或恢复会话，旧连接已关闭");
+        }
+
+        /**
+         * 用户已经在集群中的另一个节点上恢复了会话：不通知房间成员就退出所有房间（客户端会在新节点上重新加入），
+         * 然后像本节点内被替换一样关闭连接。
+         */
+        private void movedTo(String node) {
+            for (String room : joinedRooms) {
+                rooms.leave(room, username, this);
+            }
+            joinedRooms.clear();
+            replaced();
+            logger.info("用户 " + username + " 已转到集群节点 " + node);
+        }
+
+        /**
+         * 连接断开后保留会话的重传窗口，等待客户端在 session.window.park.s 秒内恢复会话。
+         */
+        private static void parkWindow(String user, RetransmitWindow w) {
+            w.detach();
+            purgeParkedWindows();
+            ParkedWindow previous = parkedWindows.put(user, new ParkedWindow(w, ChatLogDAO.lastKnownId(),
+                    System.currentTimeMillis() + WINDOW_PARK_MS));
+            if (previous != null && previous.window() != w) {
+                discardWindow(user, previous.window());
+            }
+        }
+
+        /**
+         * 丢弃超过保留时间还没有恢复的窗口。
+         */
+        private static void purgeParkedWindows() {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, ParkedWindow> entry : parkedWindows.entrySet()) {
+                if (entry.getValue().expiresAt() <= now && parkedWindows.remove(entry.getKey(), entry.getValue())) {
+                    discardWindow(entry.getKey(), entry.getValue().window());
+                }
+            }
+        }
+
+        /**
+         * 丢弃一个不会再恢复的窗口：聊天消息在登录时的历史记录中可以看到，没有确认的私信放回离线收件箱。
+         */
+        private static void discardWindow(String user, RetransmitWindow w) {
+            for (RetransmitWindow.Entry entry : w.discard()) {
+                ChatLogDAO.addToInbox(user, entry.id()).thenAccept(stored -> {
+                    if (!stored) {
+                        logger.warning("未确认的私信 " + entry.id() + " 放回 " + user + " 的离线收件箱失败");
+                    }
+                });
+            }
+        }
+
+        /**
+         * 断开客户端连接并清理资源
+         */
+        void disconnect() {
+            if (open.compareAndSet(true, false)) {
+                openConnections.decrementAndGet();
+            }
+            // 登记成功但还没来得及发出登录回复时也要移除，否则这个用户名再也无法登录
+            boolean wasLoggedIn = loggedIn;
+            loggedIn = false;
+            boolean removed = username != null && sessions.remove(username, this);
+            if (wasLoggedIn && removed) {
+                if (!onlineElsewhere(username)) {
+                    presence.left(username); // 被新连接替换的旧会话、以及仍在其他节点上的用户不算下线
+                }
+                announce(ClusterEvent.offline(username));
+                if (window != null) {
+                    parkWindow(username, window); // 被新连接替换的旧会话的窗口已经由新连接接管
+                }
+            }
+            if (username != null) {
+                leaveAllRooms();
+            }
+
+            try {
+                if (out != null) {
+                    out.close();
+                } else if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException ignored) {}
         }
     }
 }
\ No newline at end of file
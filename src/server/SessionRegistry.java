@@ -0,0 +1,97 @@
+// SessionRegistry.java 位于 server 包中
+package server;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SessionRegistry 是在线用户的并发注册表，按用户名索引。
+ *
+ * - 上线、下线只修改 ConcurrentHashMap 中对应的一项，不再需要全局锁
+ * - 私信按用户名 O(1) 查找接收者
+ * - 广播使用只读的快照列表：快照在注册表变化后第一次被用到时才重新复制，
+ *   之后的广播直接复用，遍历快照时不会阻塞其他用户的上线、下线
+ *
+ * @param <T> 会话对象的类型
+ */
+public class SessionRegistry<T> {
+
+    /**
+     * 某个版本的在线会话快照。
+     *
+     * @param version  生成快照时注册表的版本号
+     * @param sessions 只读的会话列表
+     */
+    private record Snapshot<T>(long version, List<T> sessions) {}
+
+    private final ConcurrentHashMap<String, T> sessions = new ConcurrentHashMap<>();
+    // 每次修改注册表后递增，用来判断快照是否过期
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot<T> snapshot = new Snapshot<>(0, List.of());
+
+    /**
+     * 登记一个会话。
+     *
+     * @return 登记成功返回 true；该用户名已经在线时返回 false
+     */
+    public boolean add(String username, T session) {
+        if (sessions.putIfAbsent(username, session) != null) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 用新的会话替换该用户名当前登记的会话（恢复会话时旧连接可能还没有被发现已经断开）。
+     *
+     * @return 被替换的旧会话；该用户名不在线时返回 null
+     */
+    public T replace(String username, T session) {
+        T previous = sessions.put(username, session);
+        version.incrementAndGet();
+        return previous;
+    }
+
+    /**
+     * 移除一个会话。只有当前登记的正是这个会话时才会移除。
+     *
+     * @return 移除成功返回 true
+     */
+    public boolean remove(String username, T session) {
+        if (!sessions.remove(username, session)) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 按用户名查找在线会话。
+     *
+     * @return 不在线时返回 null
+     */
+    public T get(String username) {
+        return username == null ? null : sessions.get(username);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * 返回当前所有在线会话的只读快照，用于广播。
+     */
+    public List<T> snapshot() {
+        Snapshot<T> current = snapshot;
+        long v = version.get();
+        if (current.version == v) {
+            return current.sessions;
+        }
+        // 先读版本号再复制，复制出的列表至少包含该版本之前的所有修改
+        List<T> copy = List.copyOf(sessions.values());
+        snapshot = new Snapshot<>(v, copy);
+        return copy;
+    }
+}
@@ -0,0 +1,440 @@
+// TcpClusterBus.java 位于 server 包中
+package server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * TcpClusterBus 是基于 TCP 的 ClusterBus 实现：集群中每两个节点之间保持一条长连接。
+ *
+ * - 连接由节点标识较小的一方发起，另一方只接受连接，两个节点之间不会出现两条连接
+ * - 建立连接时双方用共享密钥做 HMAC-SHA256 挑战应答，互相证明身份，只接受配置中列出的节点
+ * - 每条连接有一个有界发送队列和一个写线程，发布事件只是入队；队列满时断开这条连接，
+ *   对方重新连上后收到一份完整快照，不会因为一个慢节点拖住所有发送者
+ * - 连接空闲时每隔 HEARTBEAT_MS 发送一个空帧，读超时（3 个心跳间隔）即认为对方已经断开
+ * - 发起方每隔 RECONNECT_MS 重连断开的节点
+ *
+ * 帧格式与客户端协议相同：4 字节长度（大端）+ 事件体（见 ClusterEvent），长度为 0 的帧是心跳。
+ * 节点之间的连接不加密，集群端口应只在内网开放。
+ */
+public class TcpClusterBus implements ClusterBus {
+    // 握手魔数 "SKYN" 和版本
+    private static final byte[] MAGIC = {'S', 'K', 'Y', 'N'};
+    private static final int VERSION = 1;
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int NONCE_LENGTH = 16;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final long RECONNECT_MS = 2000;
+    private static final long HEARTBEAT_MS = 5000;
+
+    private final String nodeId;
+    private final String bindHost;
+    private final int port;
+    private final Map<String, InetSocketAddress> peerAddresses;
+    private final SecretKeySpec key;
+    private final int queueCapacity;
+    private final SecureRandom random = new SecureRandom();
+
+    // 当前已建立的连接，按节点标识索引
+    private final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<>();
+    private volatile Listener listener;
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+    private ScheduledExecutorService dialer;
+
+    private final Metrics.Meter eventsOut = Metrics.meter("cluster.events.out");
+    private final Metrics.Meter eventsIn = Metrics.meter("cluster.events.in");
+    private final Metrics.Meter overflows = Metrics.meter("cluster.queue.overflow");
+
+    /**
+     * @param nodeId        本节点的标识
+     * @param bindHost      集群端口的监听地址
+     * @param port          集群端口
+     * @param peers         其他节点的标识和集群地址
+     * @param secret        所有节点共享的密钥
+     * @param queueCapacity 每条连接的发送队列容量
+     */
+    public TcpClusterBus(String nodeId, String bindHost, int port, Map<String, InetSocketAddress> peers,
+                         String secret, int queueCapacity) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("集群模式必须配置 cluster.secret");
+        }
+        this.nodeId = nodeId;
+        this.bindHost = bindHost;
+        this.port = port;
+        this.peerAddresses = Map.copyOf(peers);
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    /**
+     * 解析节点列表，格式为 “节点标识@主机:端口”，多个节点之间用逗号分隔。
+     */
+    public static Map<String, InetSocketAddress> parsePeers(String spec) {
+        Map<String, InetSocketAddress> peers = new LinkedHashMap<>();
+        if (spec == null) {
+            return peers;
+        }
+        for (String item : spec.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            int at = item.indexOf('@');
+            int colon = item.lastIndexOf(':');
+            if (at <= 0 || colon <= at + 1) {
+                throw new IllegalArgumentException("无法解析集群节点: " + item);
+            }
+            peers.put(item.substring(0, at), InetSocketAddress.createUnresolved(
+                    item.substring(at + 1, colon), Integer.parseInt(item.substring(colon + 1))));
+        }
+        return peers;
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        this.listener = listener;
+        running = true;
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(bindHost, port));
+        daemon("cluster-accept", this::acceptLoop).start();
+
+        dialer = Executors.newSingleThreadScheduledExecutor(r -> daemon("cluster-dialer", r));
+        dialer.scheduleWithFixedDelay(this::dialPeers, 0, RECONNECT_MS, TimeUnit.MILLISECONDS);
+        Server.logger.info("集群节点 " + nodeId + " 已监听 " + bindHost + ":" + port
+                + "，其他节点: " + peerAddresses.keySet());
+    }
+
+    @Override
+    public void publish(ClusterEvent event) {
+        if (links.isEmpty()) {
+            return;
+        }
+        byte[] body = encode(event);
+        if (body == null) {
+            return;
+        }
+        for (Link link : links.values()) {
+            link.enqueue(body);
+        }
+    }
+
+    @Override
+    public boolean send(String node, ClusterEvent event) {
+        Link link = links.get(node);
+        if (link == null) {
+            return false;
+        }
+        byte[] body = encode(event);
+        return body != null && link.enqueue(body);
+    }
+
+    @Override
+    public Set<String> peers() {
+        return Set.copyOf(links.keySet());
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (dialer != null) {
+            dialer.shutdownNow();
+        }
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ignored) {}
+        for (Link link : links.values()) {
+            link.close();
+        }
+    }
+
+    private byte[] encode(ClusterEvent event) {
+        try {
+            return event.encode();
+        } catch (IOException e) {
+            Server.logger.log(Level.SEVERE, "编码集群事件失败", e);
+            return null;
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    Server.logger.log(Level.WARNING, "接受集群连接失败", e);
+                }
+                continue;
+            }
+            // 握手可能很慢（或对方根本不是集群节点），不能占用接受线程
+            daemon("cluster-handshake", () -> {
+                try {
+                    socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+                    String peer = acceptHandshake(socket);
+                    establish(peer, socket);
+                } catch (IOException e) {
+                    Server.logger.log(Level.WARNING, "集群连接握手失败: " + socket.getRemoteSocketAddress(), e);
+                    closeQuietly(socket);
+                }
+            }).start();
+        }
+    }
+
+    /**
+     * 连接所有还没有连上、且标识比本节点大的节点。
+     */
+    private void dialPeers() {
+        for (Map.Entry<String, InetSocketAddress> peer : peerAddresses.entrySet()) {
+            if (!running || nodeId.compareTo(peer.getKey()) >= 0 || links.containsKey(peer.getKey())) {
+                continue;
+            }
+            InetSocketAddress address = peer.getValue();
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MS);
+                socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+                dialHandshake(socket, peer.getKey());
+                establish(peer.getKey(), socket);
+            } catch (IOException e) {
+                Server.logger.log(Level.FINE, "连接集群节点 " + peer.getKey() + " 失败", e);
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * 发起方的握手：发送自己的标识和随机数，校验对方的应答，再应答对方的随机数。
+     */
+    private void dialHandshake(Socket socket, String expected) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        byte[] nonce = nonce();
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeUTF(nodeId);
+        out.write(nonce);
+        out.flush();
+
+        String peer = in.readUTF();
+        byte[] peerNonce = in.readNBytes(NONCE_LENGTH);
+        byte[] proof = in.readNBytes(32);
+        if (!expected.equals(peer) || !MessageDigest.isEqual(proof, sign("accept", peer, nonce))) {
+            throw new IOException("集群节点 " + expected + " 的身份校验失败");
+        }
+        out.write(sign("dial", nodeId, peerNonce));
+        out.flush();
+    }
+
+    /**
+     * 接受方的握手。
+     *
+     * @return 对方的节点标识
+     */
+    private String acceptHandshake(Socket socket) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        byte[] magic = in.readNBytes(MAGIC.length);
+        if (!Arrays.equals(magic, MAGIC) || in.readUnsignedByte() != VERSION) {
+            throw new IOException("不是集群节点的连接");
+        }
+        String peer = in.readUTF();
+        byte[] peerNonce = in.readNBytes(NONCE_LENGTH);
+        if (!peerAddresses.containsKey(peer) || peer.equals(nodeId)) {
+            throw new IOException("未配置的集群节点: " + peer);
+        }
+        byte[] nonce = nonce();
+        out.writeUTF(nodeId);
+        out.write(nonce);
+        out.write(sign("accept", nodeId, peerNonce));
+        out.flush();
+
+        byte[] proof = in.readNBytes(32);
+        if (!MessageDigest.isEqual(proof, sign("dial", peer, nonce))) {
+            throw new IOException("集群节点 " + peer + " 的身份校验失败");
+        }
+        return peer;
+    }
+
+    /**
+     * 握手完成后登记连接：先登记（之后发布的事件进入这条连接的队列），再写出本节点的快照，最后启动写线程，
+     * 对方因此先收到快照，再按顺序收到之后的事件。
+     */
+    private void establish(String peer, Socket socket) throws IOException {
+        socket.setSoTimeout((int) (HEARTBEAT_MS * 3));
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        Link link = new Link(peer, socket);
+        Link previous = links.put(peer, link);
+        if (previous != null) {
+            previous.close();
+        }
+        try {
+            for (ClusterEvent event : listener.snapshot()) {
+                byte[] body = event.encode();
+                link.out.writeInt(body.length);
+                link.out.write(body);
+            }
+            link.out.flush();
+        } catch (IOException e) {
+            link.close();
+            throw e;
+        }
+        daemon("cluster-writer-" + peer, link::writeLoop).start();
+        daemon("cluster-reader-" + peer, link::readLoop).start();
+        Server.logger.info("已连接集群节点 " + peer);
+    }
+
+    private byte[] nonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    private byte[] sign(String role, String node, byte[] nonce) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            mac.update((role + "|" + node + "|").getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal(nonce);
+        } catch (Exception e) {
+            throw new IllegalStateException("无法计算集群握手签名", e);
+        }
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * 与另一个节点之间的一条连接。
+     */
+    private class Link {
+        private final String peer;
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(queueCapacity);
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Link(String peer, Socket socket) throws IOException {
+            this.peer = peer;
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        boolean enqueue(byte[] body) {
+            if (closed.get()) {
+                return false;
+            }
+            if (!queue.offer(body)) {
+                overflows.mark();
+                Server.logger.warning("集群节点 " + peer + " 的发送队列已满，断开连接等待重新同步");
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * 写线程：队列中的事件连续写出，队列空了才刷新；空闲超过一个心跳间隔时发送空帧。
+         */
+        void writeLoop() {
+            try {
+                while (!closed.get()) {
+                    byte[] body = queue.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+                    if (body == null) {
+                        out.writeInt(0);
+                        out.flush();
+                        continue;
+                    }
+                    do {
+                        out.writeInt(body.length);
+                        out.write(body);
+                        eventsOut.mark();
+                    } while ((body = queue.poll()) != null);
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                Server.logger.log(Level.FINE, "写入集群节点 " + peer + " 失败", e);
+            } finally {
+                close();
+            }
+        }
+
+        void readLoop() {
+            try {
+                while (!closed.get()) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (SocketTimeoutException e) {
+                        throw new IOException("集群节点 " + peer + " 心跳超时", e);
+                    }
+                    if (length == 0) {
+                        continue; // 心跳
+                    }
+                    if (length < 0 || length > ClusterEvent.MAX_LENGTH) {
+                        throw new StreamCorruptedException("集群事件长度错误: " + length);
+                    }
+                    byte[] body = new byte[length];
+                    in.readFully(body);
+                    eventsIn.mark();
+                    ClusterEvent event = ClusterEvent.decode(body);
+                    if (closed.get()) {
+                        break; // 已经通知过断开，之后的事件不再处理
+                    }
+                    listener.onEvent(peer, event);
+                }
+            } catch (IOException e) {
+                if (!closed.get()) {
+                    Server.logger.log(Level.WARNING, "与集群节点 " + peer + " 的连接已断开", e);
+                }
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            closeQuietly(socket);
+            // 已经被新的连接替换时不通知断开，新的连接会发来完整快照
+            if (links.remove(peer, this)) {
+                listener.onPeerDown(peer);
+            }
+        }
+    }
+}
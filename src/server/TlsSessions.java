@@ -0,0 +1,36 @@
+// TlsSessions.java 位于 server 包中
+package server;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * TlsSessions 负责服务器端 TLS 会话复用的配置。
+ *
+ * 重新连接的客户端如果带着之前的会话（TLS 1.2 的会话 ID / 会话票据，TLS 1.3 的 PSK 票据）来握手，
+ * 服务器只需要做一次对称密钥运算，不再重复证书签名和密钥交换，重连风暴时可以节省大量 CPU。
+ * - 会话缓存：服务器保存最近的会话，容量和有效期可配置
+ * - 会话票据：会话状态加密后交给客户端保存，服务器不需要缓存（JDK 13 起支持）
+ */
+public class TlsSessions {
+
+    /**
+     * 启用或关闭会话票据。必须在创建任何 SSLContext 之前调用。
+     */
+    public static void enableTickets(boolean enabled) {
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(enabled));
+    }
+
+    /**
+     * 配置服务器的会话缓存。
+     *
+     * @param context        服务器的 TLS 上下文
+     * @param cacheSize      最多缓存的会话数，0 表示不限制
+     * @param timeoutSeconds 会话的有效期（秒），超过后需要重新完整握手
+     */
+    public static void configure(SSLContext context, int cacheSize, int timeoutSeconds) {
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(Math.max(0, cacheSize));
+        sessions.setSessionTimeout(Math.max(0, timeoutSeconds));
+    }
+}
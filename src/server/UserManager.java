@@ -20,9 +20,123 @@ import java.sql.ResultSet;             // 存储数据库查询结果
  * - 获取盐值
  * - 验证用户名和密码
  * - 判断用户名是否存在
+ *
+ * 获取盐值、验证密码、判断用户名是否存在都基于同一条查询（lookup），
+ * 一次读出用户名（表中实际保存的写法）、盐值、密码哈希和启用状态，并保存在 CredentialCache 中。
+ * users.username 的排序规则不区分大小写，"Alice" 和 "alice" 查到的是同一行，缓存也按表中的写法归并成同一个用户。
+ * 直接在数据库中停用账号时不会通知服务器，缓存中的记录最多在有效期（auth.cache.ttl.ms）之后重新读取。
+ * 查询数据库之前先用 UsernameFilter 排除一定不存在的用户名。
  */
 public class UserManager {
 
+    /**
+     * 一个用户的凭据记录。
+     *
+     * @param username     用户名（users 表中实际保存的写法）
+     * @param passwordHash 加盐哈希后的密码
+     * @param salt         盐值
+     * @param active       账号是否启用
+     */
+    public record Credentials(String username, String passwordHash, byte[] salt, boolean active) {
+
+        /**
+         * 判断账号已启用且密码哈希一致。
+         */
+        public boolean matches(String hashedPassword) {
+            return active && passwordHash.equals(hashedPassword);
+        }
+    }
+
+    // 凭据缓存，默认最多缓存 10000 个用户、每条记录 5 分钟后过期
+    private static volatile CredentialCache cache = new CredentialCache(10000, 300000);
+
+    /**
+     * 按配置重新创建凭据缓存。
+     *
+     * @param capacity 最多缓存的用户数
+     * @param ttlMs    每条记录的有效时间（毫秒）
+     */
+    public static void initCache(int capacity, long ttlMs) {
+        cache = new CredentialCache(capacity, ttlMs);
+    }
+
+    // 已注册用户名的布隆过滤器；为 null 时（未启用或加载失败）所有查询都直接访问数据库
+    private static volatile UsernameFilter filter;
+
+    /**
+     * 从 users 表加载用户名布隆过滤器。加载失败时不启用过滤器。
+     *
+     * @param expected 预计的用户数
+     * @param fpp      目标误判率
+     */
+    public static void initFilter(long expected, double fpp) {
+        try {
+            filter = UsernameFilter.load(expected, fpp);
+            Server.logger.info("用户名过滤器加载完成：" + filter.stats());
+        } catch (Exception e) {
+            filter = null;
+            Server.logger.log(java.util.logging.Level.SEVERE, "用户名过滤器加载失败，用户查询将直接访问数据库", e);
+        }
+    }
+
+    /**
+     * 返回用户名过滤器的统计信息。
+     */
+    public static String filterStats() {
+        UsernameFilter f = filter;
+        return f == null ? "未启用" : f.stats();
+    }
+
+    /**
+     * 返回凭据缓存的命中统计。
+     */
+    public static String cacheStats() {
+        return cache.stats();
+    }
+
+    /**
+     * 查询一个用户的凭据：先查缓存，未命中时用一条 SQL 同时读出用户名、盐值、密码哈希和启用状态。
+     *
+     * @param username 用户名（大小写与表中不同时也能查到）
+     * @return 用户不存在（或查询失败）时返回 null；返回的凭据中是表中实际保存的用户名
+     */
+    public static Credentials lookup(String username) {
+        if (username == null) {
+            return null;
+        }
+        Credentials cached = cache.get(username);
+        if (cached != null) {
+            return cached;
+        }
+        UsernameFilter f = filter;
+        if (f != null && !f.mightContain(username)) {
+            return null; // 一定不存在，不需要查询数据库
+        }
+
+        String sql = "SELECT username, password_hash, salt, is_active FROM users WHERE username = ?";
+        try (
+                Connection conn = DBUtil.getConnection();
+                PreparedStatement pstmt = conn.prepareStatement(sql)
+        ) {
+            pstmt.setString(1, username);  // 设置用户名参数
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    if (f != null) {
+                        f.recordFalsePositive();
+                    }
+                    return null;
+                }
+                Credentials credentials = new Credentials(rs.getString("username"), rs.getString("password_hash"),
+                        rs.getBytes("salt"), rs.getBoolean("is_active"));
+                cache.put(username, credentials);
+                return credentials;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     /**
      * 注册新用户到数据库中。
      *
@@ -47,8 +161,15 @@ public class UserManager {
             pstmt.setString(2, hashedPassword);    // 哈希后的密码
             pstmt.setBytes(3, salt);               // 盐值
 
+            // 先加入过滤器再写入数据库：插入成功之后的查询一定不会被过滤器误判为不存在
+            UsernameFilter f = filter;
+            if (f != null) {
+                f.put(username);
+            }
+
             // 执行插入操作，获取影响的行数
             int rowsAffected = pstmt.executeUpdate();
+            cache.invalidate(username);
 
             // 如果至少有一行被影响，说明插入成功
             return rowsAffected > 0;
@@ -74,27 +195,8 @@ public class UserManager {
      * @return 返回 salt 字节数组，如果找不到返回 null
      */
     public static byte[] getSaltByUsername(String username) {
-        // SQL 查询语句，查找指定用户名的盐值
-        String sql = "SELECT salt FROM users WHERE username = ? AND is_active = TRUE";
-
-        try (
-                Connection conn = DBUtil.getConnection();
-                PreparedStatement pstmt = conn.prepareStatement(sql)
-        ) {
-
-            pstmt.setString(1, username);  // 设置用户名参数
-            ResultSet rs = pstmt.executeQuery();  // 执行查询
-
-            // 如果有结果，取出盐值
-            if (rs.next()) {
-                return rs.getBytes("salt");  // 返回 salt 字段的内容
-            }
-
-        } catch (Exception e) {
-            e.printStackTrace();  // 出错则打印错误信息
-        }
-
-        return null;  // 默认返回 null 表示没找到
+        Credentials credentials = lookup(username);
+        return credentials != null && credentials.active() ? credentials.salt() : null;
     }
 
     /**
@@ -135,27 +237,8 @@ public class UserManager {
      * @return 匹配返回 true，否则 false
      */
     public static boolean authenticate(String username, String hashedPassword) {
-        // SQL 查询语句，查找用户的密码哈希值
-        String sql = "SELECT password_hash FROM users WHERE username = ? AND is_active = TRUE";
-
-        try (
-                Connection conn = DBUtil.getConnection();
-                PreparedStatement pstmt = conn.prepareStatement(sql)
-        ) {
-
-            pstmt.setString(1, username);  // 设置用户名参数
-            ResultSet rs = pstmt.executeQuery();  // 执行查询
-
-            if (rs.next()) {
-                String storedHash = rs.getString("password_hash");  // 获取存储的哈希值
-                return storedHash.equals(hashedPassword);  // 比较哈希值是否一致
-            }
-
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        return false;
+        Credentials credentials = lookup(username);
+        return credentials != null && credentials.matches(hashedPassword);
     }
 
     /**
@@ -165,21 +248,6 @@ public class UserManager {
      * @return 如果存在返回 true，否则返回 false
      */
     public static boolean usernameExists(String username) {
-        // SQL 查询语句，检查用户名是否存在
-        String sql = "SELECT 1 FROM users WHERE username = ? LIMIT 1";
-
-        try (
-                Connection conn = DBUtil.getConnection();
-                PreparedStatement pstmt = conn.prepareStatement(sql)
-        ) {
-
-            pstmt.setString(1, username);  // 设置用户名参数
-            ResultSet rs = pstmt.executeQuery();  // 执行查询
-            return rs.next();  // 如果能取到一行，说明存在
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
-        }
+        return lookup(username) != null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,243 @@
+// UsernameFilter.java 位于 server 包中
+package server;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * UsernameFilter 是所有已注册用户名的布隆过滤器，用来在查询数据库之前排除不存在的用户名。
+ *
+ * - mightContain 返回 false 时，该用户名一定不存在，UserManager 不再查询数据库
+ * - 返回 true 时，用户名可能存在（有一定误判率），仍然需要查询数据库确认
+ *
+ * 启动时从 users 表加载全部用户名，注册新用户时加入过滤器。
+ *
+ * users 表的排序规则认为很多不同的写法是同一个用户名：大小写、重音、"ß" 与 "ss"、全角字符、末尾的空格（PAD SPACE）等。
+ * 过滤器绝不能把存在的用户名判定为不存在，而在 Java 中无法完全复现 MySQL 的排序规则，所以只处理能够确定的情况：
+ * - 只有纯 ASCII 的查询才可能被直接判定为不存在，查询时转成小写并去掉末尾的空格再计算哈希
+ * - 含有非 ASCII 字符的查询一律返回“可能存在”，由数据库判断
+ * - 加入非 ASCII 的用户名时，另外按兼容分解、去掉重音和格式字符、展开 ß / æ 等字母之后的写法加入，
+ *   这样用全角或 "ss" 写法的 ASCII 查询仍然能查到；展开后仍然含有非 ASCII 字符（例如中文）的用户名不可能与 ASCII 查询相同
+ * 多合并的写法只会增加误判（仍然查询数据库），不会漏掉存在的用户名。
+ * 布隆过滤器不支持删除，但用户只会被停用而不会被删除，所以不需要删除操作。
+ *
+ * 位数组大小按预计用户数和目标误判率计算：m = -n·ln(p) / (ln 2)²，哈希函数个数 k = m/n·ln 2。
+ * 100 万用户、1% 误判率时约占 1.2MB 内存。
+ */
+public class UsernameFilter {
+    private final AtomicLongArray bits; // 位数组
+    private final long bitCount;         // 位数 m
+    private final int hashCount;         // 哈希函数个数 k
+    private final long expected;         // 预计用户数 n
+    private final AtomicLong inserted = new AtomicLong(); // 已加入的用户名数
+
+    // 查询统计
+    private final AtomicLong queries = new AtomicLong();        // 查询次数
+    private final AtomicLong rejected = new AtomicLong();       // 直接判定不存在的次数（省掉的数据库查询）
+    private final AtomicLong bypassed = new AtomicLong();       // 含有非 ASCII 字符、不经过过滤器的查询次数
+    private final AtomicLong falsePositives = new AtomicLong(); // 判定可能存在、数据库中却没有的次数
+
+    /**
+     * @param expected 预计的用户数
+     * @param fpp      目标误判率，例如 0.01
+     */
+    public UsernameFilter(long expected, double fpp) {
+        this.expected = Math.max(1, expected);
+        double p = Math.min(Math.max(fpp, 1e-9), 0.5);
+        long m = (long) Math.ceil(-this.expected * Math.log(p) / (Math.log(2) * Math.log(2)));
+        this.bitCount = Math.max(64, (m + 63) / 64 * 64);
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / this.expected * Math.log(2)));
+        this.bits = new AtomicLongArray((int) (bitCount / 64));
+    }
+
+    /**
+     * 创建过滤器并从 users 表加载所有用户名。
+     */
+    public static UsernameFilter load(long expected, double fpp) throws Exception {
+        UsernameFilter filter = new UsernameFilter(expected, fpp);
+        try (
+                Connection conn = DBUtil.getConnection();
+                Statement stmt = conn.createStatement()
+        ) {
+            stmt.setFetchSize(Integer.MIN_VALUE); // MySQL 驱动逐行读取结果，不把整个表读入内存
+            try (ResultSet rs = stmt.executeQuery("SELECT username FROM users")) {
+                while (rs.next()) {
+                    filter.put(rs.getString(1));
+                }
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * 加入一个用户名。
+     */
+    public void put(String username) {
+        if (isAscii(username)) {
+            set(key(username));
+        } else {
+            String folded = fold(username);
+            if (isAscii(folded)) {
+                set(folded);
+            }
+        }
+        inserted.incrementAndGet();
+    }
+
+    private void set(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long bit = index(h1, h2, i);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            while (((current = bits.get(word)) & mask) == 0) {
+                if (bits.compareAndSet(word, current, current | mask)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 判断用户名是否可能存在。
+     *
+     * @return false 表示一定不存在；true 表示可能存在（含有非 ASCII 字符的用户名总是返回 true）
+     */
+    public boolean mightContain(String username) {
+        if (!isAscii(username)) {
+            bypassed.incrementAndGet();
+            return true;
+        }
+        queries.incrementAndGet();
+        long hash = hash(key(username));
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long bit = index(h1, h2, i);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                rejected.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 记录一次误判：过滤器认为可能存在，但数据库中没有这个用户名。
+     */
+    public void recordFalsePositive() {
+        falsePositives.incrementAndGet();
+    }
+
+    /**
+     * 位数组占用的内存（字节）。
+     */
+    public long memoryBytes() {
+        return bitCount / 8;
+    }
+
+    /**
+     * 按当前已加入的用户名数计算的理论误判率：(1 - e^(-kn/m))^k。
+     */
+    public double expectedFpp() {
+        return Math.pow(1 - Math.exp(-hashCount * (double) inserted.get() / bitCount), hashCount);
+    }
+
+    /**
+     * 返回过滤器的大小和查询统计。观测误判率 = 误判次数 / 判定可能存在的次数（其中包括真正存在的用户名）。
+     */
+    public String stats() {
+        long maybe = queries.get() - rejected.get();
+        return String.format("用户名=%d/%d 内存=%dKB 哈希函数=%d 理论误判率=%.4f%% 查询=%d 直接排除=%d 误判=%d 观测误判率=%.4f%% 非ASCII未过滤=%d",
+                inserted.get(), expected, memoryBytes() / 1024, hashCount, expectedFpp() * 100,
+                queries.get(), rejected.get(), falsePositives.get(),
+                maybe == 0 ? 0.0 : falsePositives.get() * 100.0 / maybe, bypassed.get());
+    }
+
+    // 双重哈希：第 i 个哈希函数为 h1 + i·h2
+    private long index(int h1, int h2, int i) {
+        long combined = h1 + (long) i * h2;
+        return Math.floorMod(combined, bitCount);
+    }
+
+    // 纯 ASCII 用户名的比较方式与数据库一致：不区分大小写，忽略末尾的空格
+    private static String key(String username) {
+        int end = username.length();
+        while (end > 0 && username.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return username.substring(0, end).toLowerCase(Locale.ROOT);
+    }
+
+    // 非 ASCII 用户名与 ASCII 查询可能相同时的写法：兼容分解（全角转半角）、去掉重音和格式字符、展开合字
+    private static String fold(String username) {
+        String folded = Normalizer.normalize(username, Normalizer.Form.NFKD)
+                .replaceAll("[\\p{M}\\p{Cf}]", "")
+                .toLowerCase(Locale.ROOT)
+                .replace("ß", "ss").replace("æ", "ae").replace("œ", "oe").replace("ø", "o")
+                .replace("đ", "d").replace("ł", "l").replace("þ", "th");
+        return key(folded);
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 64 位 FNV-1a 哈希，再用 MurmurHash3 的 fmix64 打散各位
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * 离线测量：用 N 个用户名（默认 100 万）填充过滤器，再用 N 个不存在的用户名测量实际误判率和内存占用。
+     * 用法：java -cp . server.UsernameFilter [用户数] [目标误判率]
+     */
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        double fpp = args.length > 1 ? Double.parseDouble(args[1]) : 0.01;
+        UsernameFilter filter = new UsernameFilter(n, fpp);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            filter.put("user" + i);
+        }
+        long putNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long falsePositives = 0;
+        for (int i = 0; i < n; i++) {
+            if (filter.mightContain("guest" + i)) {
+                falsePositives++;
+            }
+        }
+        long queryNanos = System.nanoTime() - start;
+
+        System.out.printf("用户数=%d 内存=%.2fMB 哈希函数=%d 理论误判率=%.4f%% 实测误判率=%.4f%%%n",
+                n, filter.memoryBytes() / 1024.0 / 1024.0, filter.hashCount, filter.expectedFpp() * 100,
+                falsePositives * 100.0 / n);
+        System.out.printf("加入耗时=%.1fns/个 查询耗时=%.1fns/个%n", (double) putNanos / n, (double) queryNanos / n);
+    }
+}
@@ -0,0 +1,405 @@
+// BinaryCodec.java 位于 shared 包中
+package shared;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * BinaryCodec 是分帧协议第 2 版使用的紧凑二进制编码。
+ *
+ * 与 Java 序列化相比，它不携带类描述信息，也不需要装箱的 HashMap 条目，
+ * 每条消息只包含：1 字节类型编号 + 按固定顺序排列的字段。
+ * - 字符串：变长整数（长度 + 1，0 表示 null）+ UTF-8 字节
+ * - 字节数组：变长整数（长度 + 1，0 表示 null）+ 原始字节
+ * - 长整数：变长整数（64 位）
+ * - 可为 null 的长整数：变长整数（值 + 1，0 表示 null）
+ * - 用户列表：变长整数（人数）+ 每个用户名
+ * - 字符串列表：变长整数（条数）+ 每个字符串
+ * - 可压缩的字符串列表：1 字节压缩方式 + 字符串列表；
+ *   超过 COMPRESS_THRESHOLD 字节时使用 DEFLATE 压缩，格式为变长整数（原始长度）+ 字节数组（压缩后的数据）
+ *
+ * 已发布的布局只能在末尾追加可选字段：帧自带长度，旧版本解码时会忽略帧末尾多出的字段；
+ * 新版本解码旧版本发来的帧时，缺少的可选字段不会出现在消息中。可选字段在消息中也可以不存在。
+ *
+ * 不在布局表中的消息（或者字段与布局不完全一致的消息）使用 SERIALIZED 类型，
+ * 内部仍然是 Java 序列化，保证任何消息都能无损传输；解码时只允许 FrameCodec.SERIAL_FILTER 中列出的类。
+ */
+public class BinaryCodec {
+    // 纯文本回复（例如登录结果 "success"）
+    private static final int TEXT = 0;
+    // 无法用布局表表示的对象，内部使用 Java 序列化
+    private static final int SERIALIZED = 127;
+    // 可压缩字符串列表的压缩方式
+    private static final int PLAIN = 0;
+    private static final int DEFLATED = 1;
+    // 编码后的字符串列表达到该长度（字节）才压缩，太短的数据压缩后反而可能变长
+    private static final int COMPRESS_THRESHOLD = 1024;
+
+    /**
+     * 字段的编码方式
+     */
+    private enum Kind { STRING, BYTES, LONG, NULLABLE_LONG, USERS, LINES, PACKED_LINES }
+
+    /**
+     * @param optional 是否为后来追加的可选字段，只能出现在布局的末尾
+     */
+    private record Field(String name, Kind kind, boolean optional) {
+        Field(String name, Kind kind) {
+            this(name, kind, false);
+        }
+    }
+
+    private record Layout(int id, String type, Field... fields) {}
+
+    // 各消息类型的布局表：类型编号一旦发布就不能修改，只能追加
+    private static final Layout[] LAYOUTS = {
+            new Layout(1, "chat", new Field("sender", Kind.STRING), new Field("content", Kind.STRING),
+                    new Field("id", Kind.NULLABLE_LONG, true), new Field("room", Kind.STRING, true)),
+            new Layout(2, "private", new Field("sender", Kind.STRING), new Field("to", Kind.STRING),
+                    new Field("content", Kind.STRING), new Field("id", Kind.NULLABLE_LONG, true)),
+            new Layout(3, "user_list", new Field("users", Kind.USERS)),
+            new Layout(4, "history", new Field("log", Kind.STRING)),
+            new Layout(5, "system", new Field("content", Kind.STRING)),
+            new Layout(6, "login", new Field("username", Kind.STRING), new Field("password", Kind.STRING)),
+            new Layout(7, "register", new Field("username", Kind.STRING), new Field("password_hash", Kind.STRING),
+                    new Field("salt", Kind.BYTES)),
+            new Layout(8, "getsalt", new Field("username", Kind.STRING)),
+            new Layout(9, "returnsalt", new Field("salt", Kind.BYTES)),
+            new Layout(10, "load_older", new Field("before", Kind.STRING), new Field("room", Kind.STRING, true)),
+            new Layout(11, "history_page", new Field("lines", Kind.LINES), new Field("before", Kind.STRING),
+                    new Field("room", Kind.STRING, true)),
+            new Layout(12, "history_batch", new Field("lines", Kind.PACKED_LINES),
+                    new Field("last_id", Kind.NULLABLE_LONG, true), new Field("before", Kind.STRING, true),
+                    new Field("room", Kind.STRING, true)),
+            new Layout(13, "presence_snapshot", new Field("users", Kind.USERS), new Field("version", Kind.LONG)),
+            new Layout(14, "presence_join", new Field("username", Kind.STRING), new Field("version", Kind.LONG)),
+            new Layout(15, "presence_leave", new Field("username", Kind.STRING), new Field("version", Kind.LONG)),
+            new Layout(16, "presence_sync"),
+            new Layout(17, "presence_batch", new Field("joined", Kind.LINES), new Field("left", Kind.LINES),
+                    new Field("version", Kind.LONG)),
+            new Layout(18, "session_token", new Field("token", Kind.STRING)),
+            new Layout(19, "resume", new Field("token", Kind.STRING), new Field("last_id", Kind.NULLABLE_LONG)),
+            new Layout(20, "join_room", new Field("room", Kind.STRING)),
+            new Layout(21, "leave_room", new Field("room", Kind.STRING)),
+            new Layout(22, "room_snapshot", new Field("room", Kind.STRING), new Field("users", Kind.USERS)),
+            new Layout(23, "room_join", new Field("room", Kind.STRING), new Field("username", Kind.STRING)),
+            new Layout(24, "room_leave", new Field("room", Kind.STRING), new Field("username", Kind.STRING)),
+            new Layout(25, "offline_batch", new Field("lines", Kind.PACKED_LINES)),
+            new Layout(26, "ack", new Field("last_id", Kind.LONG)),
+            new Layout(27, "busy", new Field("content", Kind.STRING), new Field("retry_after_ms", Kind.LONG)),
+            new Layout(28, "session_replaced", new Field("content", Kind.STRING)),
+    };
+
+    private static final Map<String, Layout> BY_TYPE = new HashMap<>();
+    private static final Layout[] BY_ID = new Layout[SERIALIZED];
+
+    static {
+        for (Layout layout : LAYOUTS) {
+            BY_TYPE.put(layout.type, layout);
+            BY_ID[layout.id] = layout;
+        }
+    }
+
+    /**
+     * 把对象编码到输出流中。
+     */
+    public static void write(Object obj, OutputStream out) throws IOException {
+        if (obj instanceof String text) {
+            out.write(TEXT);
+            writeString(out, text);
+            return;
+        }
+
+        Layout layout = obj instanceof Message message ? layoutOf(message) : null;
+        if (layout == null) {
+            // 兜底：使用 Java 序列化
+            out.write(SERIALIZED);
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(obj);
+            oos.flush();
+            return;
+        }
+
+        Message message = (Message) obj;
+        out.write(layout.id);
+        for (Field field : layout.fields) {
+            Object value = message.data.get(field.name);
+            switch (field.kind) {
+                case STRING -> writeString(out, (String) value);
+                case BYTES -> writeBytes(out, (byte[]) value);
+                case LONG -> writeVarLong(out, (Long) value);
+                case NULLABLE_LONG -> writeVarLong(out, value == null ? 0 : (Long) value + 1);
+                case USERS -> {
+                    Map<?, ?> users = (Map<?, ?>) value;
+                    writeVarInt(out, users.size());
+                    for (Object user : users.keySet()) {
+                        writeString(out, (String) user);
+                    }
+                }
+                case LINES -> writeLines(out, (List<?>) value);
+                case PACKED_LINES -> writePackedLines(out, (List<?>) value);
+            }
+        }
+    }
+
+    /**
+     * 从输入流中解码一个对象。
+     */
+    public static Object read(InputStream in) throws IOException, ClassNotFoundException {
+        int id = in.read();
+        if (id == TEXT) {
+            return readString(in);
+        }
+        if (id == SERIALIZED) {
+            return FrameCodec.objectInput(in).readObject();
+        }
+
+        Layout layout = id > 0 && id < BY_ID.length ? BY_ID[id] : null;
+        if (layout == null) {
+            throw new StreamCorruptedException("未知的消息类型编号: " + id);
+        }
+
+        Message message = new Message();
+        message.type = layout.type;
+        for (Field field : layout.fields) {
+            if (field.optional && in.available() == 0) {
+                break; // 旧版本发来的帧没有后来追加的字段
+            }
+            switch (field.kind) {
+                case STRING -> message.data.put(field.name, readString(in));
+                case BYTES -> message.data.put(field.name, readBytes(in));
+                case LONG -> message.data.put(field.name, readVarLong(in));
+                case NULLABLE_LONG -> {
+                    long value = readVarLong(in);
+                    message.data.put(field.name, value == 0 ? null : value - 1);
+                }
+                case USERS -> {
+                    int count = readVarInt(in);
+                    Map<String, Object> users = new HashMap<>();
+                    for (int i = 0; i < count; i++) {
+                        users.put(readString(in), true);
+                    }
+                    message.data.put(field.name, users);
+                }
+                case LINES -> message.data.put(field.name, readLines(in));
+                case PACKED_LINES -> message.data.put(field.name, readPackedLines(in));
+            }
+        }
+        return message;
+    }
+
+    /**
+     * 查找消息对应的布局，只有字段完全符合布局时才使用紧凑编码。
+     */
+    private static Layout layoutOf(Message message) {
+        Layout layout = BY_TYPE.get(message.type);
+        if (layout == null || (message.binaryData != null && !message.binaryData.isEmpty())) {
+            return null;
+        }
+        int present = 0;
+        for (Field field : layout.fields) {
+            if (!message.data.containsKey(field.name)) {
+                if (field.optional) {
+                    continue; // 可选字段按 null 编码
+                }
+                return null;
+            }
+            present++;
+            Object value = message.data.get(field.name);
+            boolean matches = switch (field.kind) {
+                case STRING -> value == null || value instanceof String;
+                case BYTES -> value == null || value instanceof byte[];
+                case LONG -> value instanceof Long;
+                case NULLABLE_LONG -> value == null || value instanceof Long;
+                case USERS -> value instanceof Map<?, ?> users && isUserSet(users);
+                case LINES, PACKED_LINES ->
+                        value instanceof List<?> lines && lines.stream().allMatch(String.class::isInstance);
+            };
+            if (!matches) {
+                return null;
+            }
+        }
+        // 消息中不能有布局以外的字段
+        return present == message.data.size() ? layout : null;
+    }
+
+    // 用户列表的值固定为 true，只需要传输用户名
+    private static boolean isUserSet(Map<?, ?> users) {
+        for (Map.Entry<?, ?> entry : users.entrySet()) {
+            if (!(entry.getKey() instanceof String) || !Boolean.TRUE.equals(entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeLines(OutputStream out, List<?> lines) throws IOException {
+        writeVarInt(out, lines.size());
+        for (Object line : lines) {
+            writeString(out, (String) line);
+        }
+    }
+
+    private static List<String> readLines(InputStream in) throws IOException {
+        int count = readVarInt(in);
+        List<String> lines = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            lines.add(readString(in));
+        }
+        return lines;
+    }
+
+    /**
+     * 写入可压缩的字符串列表：先按普通字符串列表编码，足够长时再整体压缩。
+     */
+    private static void writePackedLines(OutputStream out, List<?> lines) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        writeLines(raw, lines);
+        if (raw.size() < COMPRESS_THRESHOLD) {
+            out.write(PLAIN);
+            raw.writeTo(out);
+            return;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw.toByteArray());
+            deflater.finish();
+            ByteArrayOutputStream packed = new ByteArrayOutputStream(raw.size() / 2);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                packed.write(buffer, 0, deflater.deflate(buffer));
+            }
+            out.write(DEFLATED);
+            writeVarInt(out, raw.size());
+            writeBytes(out, packed.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static List<String> readPackedLines(InputStream in) throws IOException {
+        int method = in.read();
+        if (method == PLAIN) {
+            return readLines(in);
+        }
+        if (method != DEFLATED) {
+            throw new StreamCorruptedException("未知的压缩方式: " + method);
+        }
+
+        // 解压后的长度同样受帧长度上限约束，防止恶意数据耗尽内存
+        int length = readVarInt(in);
+        FrameCodec.checkLength(length);
+        byte[] packed = readBytes(in);
+        if (packed == null) {
+            throw new StreamCorruptedException("缺少压缩数据");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed);
+            byte[] raw = new byte[length];
+            byte[] overflow = new byte[1]; // 解压结果超过声明长度时写到这里，用于发现错误
+            int n = 0;
+            while (!inflater.finished()) {
+                int inflated = n < length ? inflater.inflate(raw, n, length - n) : inflater.inflate(overflow);
+                boolean truncated = inflated == 0 && (inflater.needsInput() || inflater.needsDictionary());
+                if (truncated || (n == length && inflated > 0)) {
+                    throw new StreamCorruptedException("压缩数据长度不符");
+                }
+                n += inflated;
+            }
+            if (n != length) {
+                throw new StreamCorruptedException("压缩数据长度不符");
+            }
+            return readLines(new ByteArrayInputStream(raw));
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("压缩数据已损坏");
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(OutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        writeVarInt(out, value.length + 1);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(InputStream in) throws IOException {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        FrameCodec.checkLength(length);
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException();
+        }
+        return bytes;
+    }
+
+    /**
+     * 写入变长整数：每字节 7 位有效数据，最高位表示后面是否还有字节。
+     */
+    private static void writeVarInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("变长整数过长");
+    }
+
+    private static int readVarInt(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("变长整数过长");
+    }
+}
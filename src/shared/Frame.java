@@ -0,0 +1,65 @@
+// Frame.java 位于 shared 包中
+package shared;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Frame 是一条已经编码好的消息。
+ *
+ * 广播时消息对每个协议版本只编码一次，使用同一版本的接收者共享同一份字节数组，
+ * 不再为每个接收者重复编码；旧版对象流的接收者仍然使用原始的消息对象。
+ */
+public final class Frame {
+    private final Object message; // 原始消息（Message 或 String）
+    // 各协议版本编码后的完整帧（包含长度前缀），只读共享
+    private final AtomicReferenceArray<byte[]> encoded = new AtomicReferenceArray<>(FrameCodec.VERSION + 1);
+
+    private Frame(Object message) {
+        this.message = message;
+    }
+
+    /**
+     * 编码一条消息。最新版本的帧立即编码，旧版本在第一次用到时再编码。
+     */
+    public static Frame of(Object message) throws IOException {
+        Frame frame = new Frame(message);
+        frame.bytes(FrameCodec.VERSION);
+        return frame;
+    }
+
+    /**
+     * 返回原始消息。
+     */
+    public Object message() {
+        return message;
+    }
+
+    /**
+     * 返回指定协议版本编码后的帧字节，调用者不能修改其内容。
+     */
+    public byte[] bytes(int version) throws IOException {
+        byte[] bytes = encoded.get(version);
+        if (bytes == null) {
+            bytes = FrameCodec.encode(message, version);
+            if (!encoded.compareAndSet(version, null, bytes)) {
+                bytes = encoded.get(version);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 取得待发送对象的帧字节：已经编码好的 Frame 直接复用，其他对象现场编码。
+     */
+    public static byte[] bytesOf(Object obj, int version) throws IOException {
+        return obj instanceof Frame frame ? frame.bytes(version) : FrameCodec.encode(obj, version);
+    }
+
+    /**
+     * 取得待发送对象的原始消息。
+     */
+    public static Object messageOf(Object obj) {
+        return obj instanceof Frame frame ? frame.message : obj;
+    }
+}
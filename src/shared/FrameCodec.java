@@ -0,0 +1,194 @@
+// FrameCodec.java 位于 shared 包中，客户端与服务器共用
+package shared;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * FrameCodec 负责“分帧协议”的编码与解码。
+ *
+ * 分帧协议的格式：
+ * - 连接建立后，客户端先发送握手头：魔数 "SKYC"（4 字节）+ 客户端支持的最高协议版本（1 字节）
+ * - 服务器回复同样格式的握手头，版本为双方都支持的最高版本，之后双方都使用这个版本
+ * - 之后双方发送的每条消息都是一个帧：4 字节长度（大端）+ 消息体
+ *
+ * 消息体的编码取决于协商出的版本：
+ * - 第 1 版（VERSION_SERIALIZED）：Java 序列化
+ * - 第 2 版（VERSION_BINARY）：紧凑的二进制编码，见 BinaryCodec
+ * - 第 3 版（VERSION_BATCH）：编码与第 2 版相同，另外支持 history_batch 消息（一帧发送整页历史记录，可压缩）；
+ *   协商出更低版本时，history_batch 会被拆成逐条的 history 帧，拼接在一起一次写出
+ * - 第 4 版（VERSION_PRESENCE）：在线用户列表改为增量更新（presence_join / presence_leave），
+ *   只在登录或版本号不连续时发送完整快照；更低版本的客户端仍然在每次上线、下线时收到完整的 user_list
+ * - 第 5 版（VERSION_RESUME）：登录后服务器发送会话恢复令牌（session_token），聊天消息带有 id；
+ *   断线重连时客户端发送 resume（令牌 + 最后收到的消息 id），服务器只补发错过的消息
+ * - 第 6 版（VERSION_ROOMS）：支持房间（join_room / leave_room），聊天消息和历史记录可以带有房间名；
+ *   没有房间名的消息属于所有人都在的大厅，更低版本的客户端只会收到大厅的消息
+ * - 第 7 版（VERSION_OFFLINE）：登录时用一条 offline_batch 发送离线期间收到的私信；
+ *   更低版本的客户端收到的是同样内容的 history_batch
+ * - 第 8 版（VERSION_ACK）：客户端定期发送累积确认（ack，最后收到的消息 id），服务器为每个会话保留没有确认的消息，
+ *   恢复会话时按原来的顺序重发；更低版本的客户端恢复会话时仍然从聊天记录补发
+ * - 第 9 版（VERSION_BUSY）：登录阶段的“服务器繁忙”回复改为 busy 消息，建议的重试时间是单独的字段；
+ *   更低版本的客户端仍然收到“服务器繁忙，请在 N 秒后重试”文本
+ * - 第 10 版（VERSION_REPLACED）：会话被另一个连接（重新登录或恢复会话）接管时，旧连接先收到 session_replaced 再被关闭，
+ *   客户端收到后不再自动恢复会话；更低版本的客户端直接被断开
+ *
+ * 每个帧都是独立编码的，不依赖前面帧的状态，
+ * 因此 NIO 事件循环可以在数据到齐后直接解码，而不需要阻塞等待。
+ *
+ * 对端发来的 Java 序列化数据（第 1 版、BinaryCodec 的 SERIALIZED 类型、旧版对象流）
+ * 都通过 objectInput 读取，只允许反序列化 SERIAL_FILTER 中列出的类。
+ */
+public class FrameCodec {
+    // 握手魔数 "SKYC"
+    public static final byte[] MAGIC = {'S', 'K', 'Y', 'C'};
+    // 协议版本：1 使用 Java 序列化，2 使用二进制编码，3 支持批量历史记录，4 支持在线用户增量更新，5 支持会话恢复，
+    // 6 支持房间，7 支持离线私信，8 支持消息确认，9 支持结构化的繁忙回复，10 支持会话被接管的通知
+    public static final int VERSION_SERIALIZED = 1;
+    public static final int VERSION_BINARY = 2;
+    public static final int VERSION_BATCH = 3;
+    public static final int VERSION_PRESENCE = 4;
+    public static final int VERSION_RESUME = 5;
+    public static final int VERSION_ROOMS = 6;
+    public static final int VERSION_OFFLINE = 7;
+    public static final int VERSION_ACK = 8;
+    public static final int VERSION_BUSY = 9;
+    public static final int VERSION_REPLACED = 10;
+    // 当前支持的最高协议版本
+    public static final int VERSION = VERSION_REPLACED;
+    // 握手头长度：魔数 4 字节 + 版本 1 字节
+    public static final int HELLO_LENGTH = MAGIC.length + 1;
+    // 单个帧允许的最大长度（1MB），防止恶意客户端耗尽内存
+    public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+    // 反序列化白名单：只允许 Message 和消息字段中会出现的值类型（数组按元素类型匹配），其他类一律拒绝，
+    // 防止对端用精心构造的序列化数据在本进程中触发任意类的反序列化逻辑
+    public static final ObjectInputFilter SERIAL_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=16;maxarray=" + MAX_FRAME_LENGTH + ";"
+                    + "shared.Message;java.lang.String;java.lang.Number;java.lang.Long;java.lang.Integer;"
+                    + "java.lang.Boolean;java.lang.Object;java.util.HashMap;java.util.ArrayList;"
+                    + "java.util.CollSer;java.util.Map$Entry;!*");
+
+    /**
+     * 判断给定的字节是否以握手魔数开头。
+     *
+     * @param head 至少 4 个字节的数据
+     * @return 是分帧协议的握手头返回 true
+     */
+    public static boolean isMagic(byte[] head) {
+        return head.length >= MAGIC.length && Arrays.equals(head, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    /**
+     * 生成握手头。
+     *
+     * @param version 客户端发送时为支持的最高版本，服务器回复时为协商出的版本
+     */
+    public static byte[] hello(int version) {
+        byte[] hello = Arrays.copyOf(MAGIC, HELLO_LENGTH);
+        hello[MAGIC.length] = (byte) version;
+        return hello;
+    }
+
+    /**
+     * 服务器使用：根据客户端的握手头协商协议版本。
+     *
+     * @param hello 客户端发送的握手头
+     * @return 双方都支持的最高版本
+     */
+    public static int negotiate(byte[] hello) throws IOException {
+        int version = hello[MAGIC.length];
+        if (!isMagic(hello) || version < VERSION_SERIALIZED) {
+            throw new StreamCorruptedException("不支持的协议版本");
+        }
+        return Math.min(version, VERSION);
+    }
+
+    /**
+     * 客户端使用：检查服务器回复的握手头，返回服务器选定的版本。
+     */
+    public static int accepted(byte[] reply) throws IOException {
+        int version = reply[MAGIC.length];
+        if (!isMagic(reply) || version < VERSION_SERIALIZED || version > VERSION) {
+            throw new StreamCorruptedException("服务器不支持分帧协议");
+        }
+        return version;
+    }
+
+    /**
+     * 将一个对象编码成完整的帧（包含 4 字节长度前缀）。
+     *
+     * @param obj     要发送的对象（Message 或 String）
+     * @param version 协商出的协议版本
+     * @return 可以直接写入网络的帧字节（旧版本下的 history_batch 为多个连续的帧）
+     */
+    public static byte[] encode(Object obj, int version) throws IOException {
+        if (version < VERSION_BATCH && Message.isHistoryBatch(obj)) {
+            ByteArrayOutputStream frames = new ByteArrayOutputStream();
+            for (Message line : Message.splitHistoryBatch((Message) obj)) {
+                frames.write(encodeFrame(line, version));
+            }
+            return frames.toByteArray();
+        }
+        return encodeFrame(obj, version);
+    }
+
+    /**
+     * 将一个对象编码成单个帧。
+     */
+    private static byte[] encodeFrame(Object obj, int version) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(version >= VERSION_BINARY ? 64 : 256);
+        // 先占位 4 字节，写完后再回填长度
+        bytes.write(new byte[4]);
+        if (version >= VERSION_BINARY) {
+            BinaryCodec.write(obj, bytes);
+        } else {
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(obj);
+            }
+        }
+        byte[] frame = bytes.toByteArray();
+        int length = frame.length - 4;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    /**
+     * 解码一个帧的消息体（不包含长度前缀）。
+     *
+     * @param body    存放消息体的数组
+     * @param offset  消息体起始位置
+     * @param length  消息体长度
+     * @param version 协商出的协议版本
+     * @return 解码后的对象
+     */
+    public static Object decode(byte[] body, int offset, int length, int version)
+            throws IOException, ClassNotFoundException {
+        ByteArrayInputStream in = new ByteArrayInputStream(body, offset, length);
+        if (version >= VERSION_BINARY) {
+            return BinaryCodec.read(in);
+        }
+        try (ObjectInputStream ois = objectInput(in)) {
+            return ois.readObject();
+        }
+    }
+
+    /**
+     * 创建读取对端数据的对象输入流，并设置反序列化白名单。
+     */
+    public static ObjectInputStream objectInput(InputStream in) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(in);
+        ois.setObjectInputFilter(SERIAL_FILTER);
+        return ois;
+    }
+
+    /**
+     * 检查帧长度是否合法。
+     */
+    public static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("非法的帧长度: " + length);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+// FramedChannel.java 位于 shared 包中
+package shared;
+
+import java.io.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * FramedChannel 是分帧协议的阻塞式通道实现（帧格式见 FrameCodec）。
+ */
+public class FramedChannel implements MessageChannel {
+    private final DataInputStream in;   // 输入流
+    private final OutputStream out;     // 输出流
+    private int version;                // 协商出的协议版本
+    // 写锁，保证多个线程同时发送时帧不会交错
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private FramedChannel(InputStream in, OutputStream out) {
+        this.in = new DataInputStream(in);
+        this.out = out;
+    }
+
+    /**
+     * 客户端使用：发送握手头（支持的最高版本）并等待服务器选定版本。
+     */
+    public static FramedChannel connect(InputStream in, OutputStream out) throws IOException {
+        FramedChannel channel = new FramedChannel(in, new BufferedOutputStream(out));
+        channel.out.write(FrameCodec.hello(FrameCodec.VERSION));
+        channel.out.flush();
+
+        byte[] reply = new byte[FrameCodec.HELLO_LENGTH];
+        channel.in.readFully(reply);
+        channel.version = FrameCodec.accepted(reply);
+        return channel;
+    }
+
+    /**
+     * 服务器使用：读取客户端的握手头，协商版本并回复。
+     */
+    public static FramedChannel accept(InputStream in, OutputStream out) throws IOException {
+        FramedChannel channel = new FramedChannel(in, new BufferedOutputStream(out));
+        byte[] hello = new byte[FrameCodec.HELLO_LENGTH];
+        channel.in.readFully(hello);
+        channel.version = FrameCodec.negotiate(hello);
+        channel.out.write(FrameCodec.hello(channel.version));
+        channel.out.flush();
+        return channel;
+    }
+
+    /**
+     * 返回协商出的协议版本。
+     */
+    @Override
+    public int version() {
+        return version;
+    }
+
+    /**
+     * 发送一个对象。如果是已经编码好的 Frame，直接写出共享的帧字节。
+     */
+    @Override
+    public void send(Object obj) throws IOException {
+        byte[] frame = Frame.bytesOf(obj, version); // 在锁外完成编码
+        writeLock.lock();
+        try {
+            out.write(frame);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Object receive() throws IOException, ClassNotFoundException {
+        int length = in.readInt();
+        FrameCodec.checkLength(length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return FrameCodec.decode(body, 0, length, version);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+}
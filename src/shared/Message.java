@@ -3,7 +3,10 @@ package shared;
 
 import java.io.Serial;
 import java.io.Serializable; // 使对象可以被序列化（用于网络传输）
+import java.util.ArrayList;
 import java.util.HashMap;     // 使用 HashMap 存储消息数据
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;          // Map 接口，键值对结构
 
 /**
@@ -19,7 +22,10 @@ public class Message implements Serializable {
     /**
      * 消息类型字段：
      * 表示这条消息是什么类型的，比如群聊、私聊、用户列表更新等。
-     * 可选值包括："chat", "private", "user_list", "history", "system", "login", "register"
+     * 可选值包括："chat", "private", "user_list", "history", "system", "login", "register",
+     * "load_older", "history_page", "history_batch",
+     * "presence_snapshot", "presence_join", "presence_leave", "presence_batch", "presence_sync",
+     * "session_token", "resume", "offline_batch", "busy", "session_replaced"
      */
     public String type;
 
@@ -30,6 +36,9 @@ public class Message implements Serializable {
      */
     public Map<String, Object> data = new HashMap<>();
 
+    // 服务器繁忙时登录阶段请求的回复前缀，后面跟着建议的重试时间
+    public static final String BUSY = "服务器繁忙";
+
     /**
      * 构造一条群聊消息的方法
      * @param sender 发送者的用户名
@@ -44,6 +53,20 @@ public class Message implements Serializable {
         return msg;
     }
 
+    /**
+     * 构造一条房间内的群聊消息（协议第 6 版）
+     * @param sender 发送者的用户名
+     * @param content 聊天内容
+     * @param room 房间名；为 null 时就是大厅里的普通群聊消息
+     */
+    public static Message chat(String sender, String content, String room) {
+        Message msg = chat(sender, content);
+        if (room != null) {
+            msg.data.put("room", room);
+        }
+        return msg;
+    }
+
     /**
      * 构造一条私聊消息的方法
      * @param sender 发送者的用户名
@@ -145,4 +168,333 @@ public class Message implements Serializable {
         msg.data.put("salt", salt); // 改为放到 data 中
         return msg;
     }
-}
\ No newline at end of file
+
+    /**
+     * 请求更早的聊天记录（向上翻页）
+     * @param before 只返回 id 小于该值的记录；为 null 时从登录时收到的最早一条记录继续往前翻
+     */
+    public static Message loadOlder(String before) {
+        Message msg = new Message();
+        msg.type = "load_older";
+        msg.data.put("before", before);
+        return msg;
+    }
+
+    /**
+     * 请求某个房间更早的聊天记录（协议第 6 版）
+     * @param before 只返回 id 小于该值的记录
+     * @param room   房间名；为 null 时为大厅
+     */
+    public static Message loadOlder(String before, String room) {
+        Message msg = loadOlder(before);
+        if (room != null) {
+            msg.data.put("room", room);
+        }
+        return msg;
+    }
+
+    /**
+     * 返回一页更早的聊天记录
+     * @param lines  按从旧到新排列的历史记录
+     * @param before 下一页的翻页位置；为 null 表示没有更早的记录了
+     */
+    public static Message historyPage(List<String> lines, String before) {
+        Message msg = new Message();
+        msg.type = "history_page";
+        msg.data.put("lines", new ArrayList<>(lines));
+        msg.data.put("before", before);
+        return msg;
+    }
+
+    /**
+     * 返回某个房间的一页更早的聊天记录（协议第 6 版）
+     * @param room 房间名；为 null 时为大厅
+     */
+    public static Message historyPage(List<String> lines, String before, String room) {
+        Message msg = historyPage(lines, before);
+        if (room != null) {
+            msg.data.put("room", room);
+        }
+        return msg;
+    }
+
+    /**
+     * 构造一条批量历史记录消息
+     * 客户端登录后，服务器用一条这样的消息发送最近的整页聊天记录，而不是逐条发送 history 消息
+     * @param lines 按从旧到新排列的历史记录
+     */
+    public static Message historyBatch(List<String> lines) {
+        Message msg = new Message();
+        msg.type = "history_batch";
+        msg.data.put("lines", new ArrayList<>(lines));
+        return msg;
+    }
+
+    /**
+     * 构造一条带位置信息的批量历史记录消息（协议第 5 版）
+     * @param lines  按从旧到新排列的历史记录
+     * @param lastId 最新一条记录的 id，客户端恢复会话时从这里继续；为 null 表示未知
+     * @param before 向上翻页的位置；为 null 表示不改变客户端当前的翻页位置
+     */
+    public static Message historyBatch(List<String> lines, Long lastId, String before) {
+        Message msg = historyBatch(lines);
+        msg.data.put("last_id", lastId);
+        msg.data.put("before", before);
+        return msg;
+    }
+
+    /**
+     * 构造一条某个房间的批量历史记录消息（协议第 6 版）
+     * @param room 房间名；为 null 时为大厅（以及与自己有关的私信）
+     */
+    public static Message historyBatch(List<String> lines, Long lastId, String before, String room) {
+        Message msg = historyBatch(lines, lastId, before);
+        if (room != null) {
+            msg.data.put("room", room);
+        }
+        return msg;
+    }
+
+    /**
+     * 构造一条离线私信消息（协议第 7 版）
+     * 用户登录时，服务器用一条这样的消息发送离线期间收到、但不在登录时那一页历史记录中的私信
+     * @param lines 按从旧到新排列的私信，格式与历史记录相同
+     */
+    public static Message offlineBatch(List<String> lines) {
+        Message msg = new Message();
+        msg.type = "offline_batch";
+        msg.data.put("lines", new ArrayList<>(lines));
+        return msg;
+    }
+
+    /**
+     * 判断是否为批量历史记录消息
+     */
+    public static boolean isHistoryBatch(Object obj) {
+        return obj instanceof Message msg && "history_batch".equals(msg.type);
+    }
+
+    /**
+     * 把批量历史记录拆成逐条的 history 消息，发给不认识 history_batch 的旧版客户端
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Message> splitHistoryBatch(Message batch) {
+        List<String> lines = (List<String>) batch.data.get("lines");
+        List<Message> messages = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            messages.add(history(line));
+        }
+        return messages;
+    }
+
+    /**
+     * 构造一条在线用户快照消息（协议第 4 版）
+     * 客户端登录时，或者发现增量更新的版本号不连续时，服务器发送完整的在线用户列表
+     * @param users   用户名和状态的映射表
+     * @param version 这份快照对应的在线用户列表版本号
+     */
+    public static Message presenceSnapshot(Map<String, Object> users, long version) {
+        Message msg = new Message();
+        msg.type = "presence_snapshot";
+        msg.data.put("users", users);
+        msg.data.put("version", version);
+        return msg;
+    }
+
+    /**
+     * 构造一条“用户上线”的增量更新消息
+     * @param username 上线的用户名
+     * @param version  应用这次更新之后的版本号
+     */
+    public static Message presenceJoin(String username, long version) {
+        Message msg = new Message();
+        msg.type = "presence_join";
+        msg.data.put("username", username);
+        msg.data.put("version", version);
+        return msg;
+    }
+
+    /**
+     * 构造一条“用户下线”的增量更新消息
+     * @param username 下线的用户名
+     * @param version  应用这次更新之后的版本号
+     */
+    public static Message presenceLeave(String username, long version) {
+        Message msg = new Message();
+        msg.type = "presence_leave";
+        msg.data.put("username", username);
+        msg.data.put("version", version);
+        return msg;
+    }
+
+    /**
+     * 构造一条合并后的在线状态增量更新消息（服务器把一小段时间内的多次上线、下线合并成一条）
+     * @param joined  上线的用户名
+     * @param left    下线的用户名
+     * @param version 应用这次更新之后的版本号
+     */
+    public static Message presenceBatch(List<String> joined, List<String> left, long version) {
+        Message msg = new Message();
+        msg.type = "presence_batch";
+        msg.data.put("joined", new ArrayList<>(joined));
+        msg.data.put("left", new ArrayList<>(left));
+        msg.data.put("version", version);
+        return msg;
+    }
+
+    /**
+     * 构造一条请求完整在线用户列表的消息（客户端发现增量更新的版本号不连续时发送）
+     */
+    public static Message presenceSync() {
+        Message msg = new Message();
+        msg.type = "presence_sync";
+        return msg;
+    }
+
+    /**
+     * 构造一条会话恢复令牌消息（协议第 5 版）
+     * 登录或恢复会话成功后由服务器发送，连接断开后客户端用它恢复会话
+     * @param token 服务器签名的令牌
+     */
+    public static Message sessionToken(String token) {
+        Message msg = new Message();
+        msg.type = "session_token";
+        msg.data.put("token", token);
+        return msg;
+    }
+
+    /**
+     * 构造一条会话被接管的通知（协议第 10 版）
+     * 同一用户在另一个连接上重新登录或恢复了会话时发给旧连接，之后旧连接被关闭，客户端不应再自动恢复会话
+     */
+    public static Message sessionReplaced() {
+        Message msg = new Message();
+        msg.type = "session_replaced";
+        msg.data.put("content", "账号已在其他地方登录，当前连接已断开");
+        return msg;
+    }
+
+    /**
+     * 构造一条恢复会话的请求消息（协议第 5 版），代替 getsalt / login
+     * @param token  之前收到的会话恢复令牌
+     * @param lastId 客户端最后收到的聊天消息 id，服务器只补发比它更新的消息；为 null 表示未收到过
+     */
+    public static Message resume(String token, Long lastId) {
+        Message msg = new Message();
+        msg.type = "resume";
+        msg.data.put("token", token);
+        msg.data.put("last_id", lastId);
+        return msg;
+    }
+
+    /**
+     * 构造一条消息确认（协议第 8 版）：客户端已经按顺序收到了 lastId 及之前的全部消息
+     * 确认是累积的，客户端每隔一段时间或者每收到若干条消息发送一次，不需要逐条确认
+     * @param lastId 客户端最后收到的聊天消息 id
+     */
+    public static Message ack(long lastId) {
+        Message msg = new Message();
+        msg.type = "ack";
+        msg.data.put("last_id", lastId);
+        return msg;
+    }
+
+    /**
+     * 构造一条加入房间的请求（协议第 6 版），房间不存在时自动创建
+     * @param room 房间名
+     */
+    public static Message joinRoom(String room) {
+        Message msg = new Message();
+        msg.type = "join_room";
+        msg.data.put("room", room);
+        return msg;
+    }
+
+    /**
+     * 构造一条离开房间的请求（协议第 6 版）
+     * @param room 房间名
+     */
+    public static Message leaveRoom(String room) {
+        Message msg = new Message();
+        msg.type = "leave_room";
+        msg.data.put("room", room);
+        return msg;
+    }
+
+    /**
+     * 构造一条房间成员快照消息，加入房间成功后发给加入者
+     * @param room  房间名
+     * @param users 房间中的用户
+     */
+    public static Message roomSnapshot(String room, Map<String, Object> users) {
+        Message msg = new Message();
+        msg.type = "room_snapshot";
+        msg.data.put("room", room);
+        msg.data.put("users", users);
+        return msg;
+    }
+
+    /**
+     * 构造一条“用户加入房间”的通知，发给房间中的其他成员
+     */
+    public static Message roomJoin(String room, String username) {
+        Message msg = new Message();
+        msg.type = "room_join";
+        msg.data.put("room", room);
+        msg.data.put("username", username);
+        return msg;
+    }
+
+    /**
+     * 构造一条“用户离开房间”的通知，发给房间中剩下的成员，以及离开者本人（作为确认）
+     */
+    public static Message roomLeave(String room, String username) {
+        Message msg = new Message();
+        msg.type = "room_leave";
+        msg.data.put("room", room);
+        msg.data.put("username", username);
+        return msg;
+    }
+
+    /**
+     * 构造一条“服务器繁忙”的回复（协议第 9 版，登录阶段的请求被拒绝时代替 "success" 等文本回复发送）
+     * 建议的重试时间放在 retry_after_ms 字段中，content 是给用户看的提示
+     * @param retryAfterMs 建议客户端等待多久之后重试（毫秒）
+     */
+    public static Message busy(long retryAfterMs) {
+        Message msg = new Message();
+        msg.type = "busy";
+        msg.data.put("content", busyText(retryAfterMs));
+        msg.data.put("retry_after_ms", retryAfterMs);
+        return msg;
+    }
+
+    /**
+     * “服务器繁忙”回复的提示文字；更低版本的客户端直接收到这段文字
+     * @param retryAfterMs 建议客户端等待多久之后重试（毫秒）
+     */
+    public static String busyText(long retryAfterMs) {
+        return BUSY + "，请在 " + String.format(Locale.ROOT, "%.1f", retryAfterMs / 1000.0) + " 秒后重试";
+    }
+
+    /**
+     * 从“服务器繁忙”的回复（busy 消息）中取出建议的重试时间
+     * @return 建议等待的毫秒数；不是繁忙回复时返回 -1
+     */
+    public static long retryAfterMs(Object reply) {
+        if (reply instanceof Message msg && "busy".equals(msg.type)) {
+            return msg.data.get("retry_after_ms") instanceof Long ms ? ms : 0;
+        }
+        return -1;
+    }
+
+    /**
+     * 登录阶段的回复：结构化的繁忙回复换成它的提示文字，其他回复原样返回
+     */
+    public static Object textReply(Object reply) {
+        if (reply instanceof Message msg && "busy".equals(msg.type)) {
+            return String.valueOf(msg.data.get("content"));
+        }
+        return reply;
+    }
+}
@@ -0,0 +1,16 @@
+// MessageChannel.java 位于 shared 包中
+package shared;
+
+import java.io.IOException;
+
+/**
+ * MessageChannel 是一个阻塞式的双向消息通道。
+ * 客户端和“每连接一个线程”模式的服务器使用它收发消息。
+ */
+public interface MessageChannel extends MessageSink {
+
+    /**
+     * 阻塞读取下一个对象（Message 或 String）。
+     */
+    Object receive() throws IOException, ClassNotFoundException;
+}
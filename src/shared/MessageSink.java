@@ -0,0 +1,33 @@
+// MessageSink.java 位于 shared 包中
+package shared;
+
+import java.io.IOException;
+
+/**
+ * MessageSink 表示一个可以发送消息的对端。
+ * 服务器在不同的运行模式下（每连接一个线程 / NIO 事件循环）都通过它向客户端发送消息。
+ */
+public interface MessageSink {
+
+    /**
+     * 发送一个对象（Message 或 String）。
+     */
+    void send(Object obj) throws IOException;
+
+    /**
+     * 返回与对端协商出的协议版本（见 FrameCodec）；没有发送握手头的旧版对象流返回 0。
+     */
+    int version();
+
+    /**
+     * 返回发送队列中还没有写出的消息数（用于监控）；没有发送队列的实现返回 0。
+     */
+    default int pending() {
+        return 0;
+    }
+
+    /**
+     * 关闭连接，释放资源。
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,68 @@
+// ObjectStreamChannel.java 位于 shared 包中
+package shared;
+
+import java.io.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ObjectStreamChannel 是旧版协议的通道实现：
+ * 整个连接就是一条连续的 Java 序列化对象流（ObjectOutputStream / ObjectInputStream）。
+ * 服务器保留它是为了兼容尚未升级的旧客户端。读取时同样只允许 FrameCodec.SERIAL_FILTER 中列出的类。
+ */
+public class ObjectStreamChannel implements MessageChannel {
+    private final ObjectOutputStream out; // 输出对象流
+    private final ObjectInputStream in;   // 输入对象流
+    // 写锁，保证多个线程同时发送时对象不会交错
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * 创建通道。会先写出并刷新输出流的头部，再读取对端的头部。
+     */
+    public ObjectStreamChannel(InputStream in, OutputStream out) throws IOException {
+        this.out = new ObjectOutputStream(out);
+        this.out.flush();
+        this.in = FrameCodec.objectInput(in);
+    }
+
+    /**
+     * 发送一个对象。写完后重置对象流，避免句柄表一直引用已经发送过的消息。
+     * 旧版客户端不认识 history_batch，批量历史记录拆成逐条的 history 消息后一次刷新。
+     */
+    @Override
+    public void send(Object obj) throws IOException {
+        Object message = Frame.messageOf(obj);
+        writeLock.lock();
+        try {
+            if (Message.isHistoryBatch(message)) {
+                for (Message line : Message.splitHistoryBatch((Message) message)) {
+                    out.writeObject(line);
+                }
+            } else {
+                out.writeObject(message);
+            }
+            out.reset();
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public int version() {
+        return 0;
+    }
+
+    @Override
+    public Object receive() throws IOException, ClassNotFoundException {
+        return in.readObject();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+}